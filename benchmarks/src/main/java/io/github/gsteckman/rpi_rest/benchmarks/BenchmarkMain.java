@@ -0,0 +1,47 @@
+package io.github.gsteckman.rpi_rest.benchmarks;
+
+/*
+ * BenchmarkMain.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of the benchmarks jar. Runs the JMH command line with the given arguments, writing the results in JSON
+ * to jmh-result.json unless another result format or file is given, so that the results of different builds can be
+ * compared by tools.
+ *
+ * @author Greg Steckman
+ *
+ */
+public class BenchmarkMain {
+    private BenchmarkMain() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        List<String> l = new ArrayList<String>(Arrays.asList(args));
+        if (!l.contains("-rf")) {
+            l.add("-rf");
+            l.add("json");
+        }
+        if (!l.contains("-rff")) {
+            l.add("-rff");
+            l.add("jmh-result.json");
+        }
+        org.openjdk.jmh.Main.main(l.toArray(new String[l.size()]));
+    }
+}
@@ -0,0 +1,84 @@
+package io.github.gsteckman.rpi_rest.benchmarks;
+
+/*
+ * CallbackHeaderBenchmark.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import io.github.gsteckman.rpi_rest.SubscriptionManager;
+
+/**
+ * Measures parsing of the CALLBACK header of a SUBSCRIBE request holding one or several URLs.
+ *
+ * @author Greg Steckman
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CallbackHeaderBenchmark {
+    @Param({ "1", "4" })
+    public int urls;
+
+    private Parser parser;
+    private String header;
+
+    /**
+     * Exposes the protected parseCallbackHeader method.
+     */
+    private static class Parser extends SubscriptionManager {
+        Parser() {
+            super(1);
+        }
+
+        List<URL> parse(final String h) {
+            return parseCallbackHeader(h);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        parser = new Parser();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < urls; i++) {
+            sb.append("<http://192.168.1.").append(10 + i).append(":49152/upnp/event/gpio/").append(i).append('>');
+        }
+        header = sb.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        parser.shutdown();
+    }
+
+    @Benchmark
+    public List<URL> parse() {
+        return parser.parse(header);
+    }
+}
@@ -0,0 +1,110 @@
+package io.github.gsteckman.rpi_rest.benchmarks;
+
+/*
+ * GenaFanOutBenchmark.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import io.github.gsteckman.rpi_rest.SubscriptionManager;
+
+/**
+ * Measures the time for an event passed to SubscriptionManager.fireEvent to be delivered to every subscriber, each
+ * subscriber having its own StubCallbackServer on the loopback interface. Each operation fires one event and waits
+ * until all subscribers have acknowledged it, so the result is the end to end fan-out latency including encoding,
+ * dispatch and the HTTP exchange over kept-alive connections.
+ *
+ * @author Greg Steckman
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GenaFanOutBenchmark {
+    private static final String KEY = "gpio";
+    private static final String CONTENT_TYPE = "text/xml; charset=\"utf-8\"";
+    private static final String BODY = "<?xml version=\"1.0\"?>"
+            + "<e:propertyset xmlns:e=\"urn:schemas-upnp-org:event-1-0\">"
+            + "<e:property><state>{\"address\":4,\"mode\":\"INPUT\",\"state\":\"HIGH\"}</state></e:property>"
+            + "</e:propertyset>";
+
+    @Param({ "1", "8", "32" })
+    public int subscribers;
+
+    @Param({ "4" })
+    public int threads;
+
+    private SubscriptionManager sm;
+    private StubCallbackServer[] servers;
+    private long expected;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        sm = new SubscriptionManager(threads);
+        servers = new StubCallbackServer[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            servers[i] = new StubCallbackServer();
+            MockHttpServletRequest req = new MockHttpServletRequest("SUBSCRIBE", "/" + KEY);
+            req.addHeader("CALLBACK", "<" + servers[i].getUrl() + ">");
+            req.addHeader("NT", "upnp:event");
+            req.addHeader("TIMEOUT", "Second-3600");
+            MockHttpServletResponse res = new MockHttpServletResponse();
+            sm.processSubscribe(KEY, req, res);
+            if (res.getStatus() != 200) {
+                throw new IllegalStateException("SUBSCRIBE failed with status " + res.getStatus());
+            }
+        }
+        expected = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sm.shutdown();
+        for (StubCallbackServer s : servers) {
+            s.close();
+        }
+    }
+
+    @Benchmark
+    public void fireEvent() {
+        sm.fireEvent(KEY, CONTENT_TYPE, BODY);
+        expected += subscribers;
+        while (received() < expected) {
+            Thread.yield();
+        }
+    }
+
+    private long received() {
+        long n = 0;
+        for (StubCallbackServer s : servers) {
+            n += s.getReceived();
+        }
+        return n;
+    }
+}
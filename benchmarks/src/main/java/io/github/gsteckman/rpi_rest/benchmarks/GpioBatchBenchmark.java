@@ -0,0 +1,108 @@
+package io.github.gsteckman.rpi_rest.benchmarks;
+
+/*
+ * GpioBatchBenchmark.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+import com.pi4j.io.gpio.impl.GpioControllerImpl;
+
+import io.github.gsteckman.rpi_rest.PinLocks;
+import io.github.gsteckman.rpi_rest.PinStateCache;
+import io.github.gsteckman.rpi_rest.RestGpioController;
+import io.github.gsteckman.rpi_rest.SimulatedGpioProvider;
+
+/**
+ * Compares switching a group of output pins with one POST /gpios batch against one POST /gpios/{address} per pin.
+ * Each operation switches every pin in the group, alternating between HIGH and LOW so that every write is a change.
+ * HTTP transport is excluded, so the per-pin figure understates the cost of one request per pin.
+ *
+ * @author Greg Steckman
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GpioBatchBenchmark {
+    @Param({ "8", "16" })
+    public int pins;
+
+    private GpioController gpio;
+    private RestGpioController ctrl;
+    private List<Map<String, String>> high;
+    private List<Map<String, String>> low;
+    private boolean level;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SimulatedGpioProvider provider = new SimulatedGpioProvider();
+        gpio = new GpioControllerImpl(provider);
+        high = new ArrayList<Map<String, String>>();
+        low = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < pins; i++) {
+            int address = i + 4;
+            gpio.provisionDigitalOutputPin(provider, RaspiBcmPin.getPinByAddress(address), PinState.LOW);
+            high.add(write(address, "HIGH"));
+            low.add(write(address, "LOW"));
+        }
+        ctrl = new RestGpioController(gpio, new PinLocks(), new PinStateCache(gpio));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        gpio.shutdown();
+    }
+
+    @Benchmark
+    public void batch(final Blackhole bh) {
+        level = !level;
+        bh.consume(ctrl.setGpios(level ? high : low));
+    }
+
+    @Benchmark
+    public void perPin(final Blackhole bh) {
+        level = !level;
+        for (Map<String, String> m : level ? high : low) {
+            bh.consume(ctrl.setGpio(Integer.parseInt(m.get("address")), m));
+        }
+    }
+
+    private static Map<String, String> write(final int address, final String state) {
+        Map<String, String> m = new HashMap<String, String>();
+        m.put("address", Integer.toString(address));
+        m.put("state", state);
+        return m;
+    }
+}
@@ -0,0 +1,119 @@
+package io.github.gsteckman.rpi_rest.benchmarks;
+
+/*
+ * NotifyEncoderBenchmark.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.eaio.uuid.UUID;
+
+import io.github.gsteckman.rpi_rest.NotifyEncoder;
+
+/**
+ * Compares encoding one event for a number of subscribers with the NotifyEncoder against the former approach of
+ * formatting each message with PrintWriter.printf and encoding the resulting String.
+ *
+ * @author Greg Steckman
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NotifyEncoderBenchmark {
+    private static final String CONTENT_TYPE = "text/xml; charset=\"utf-8\"";
+    private static final String BODY = "<?xml version=\"1.0\"?>"
+            + "<e:propertyset xmlns:e=\"urn:schemas-upnp-org:event-1-0\">"
+            + "<e:property><state>{\"address\":4,\"mode\":\"INPUT\",\"state\":\"HIGH\"}</state></e:property>"
+            + "</e:propertyset>";
+
+    @Param({ "1", "16" })
+    public int subscribers;
+
+    private URL[] urls;
+    private String[] sids;
+    private NotifyEncoder[] encoders;
+    private long seq;
+
+    @Setup(Level.Trial)
+    public void setUp() throws MalformedURLException {
+        urls = new URL[subscribers];
+        sids = new String[subscribers];
+        encoders = new NotifyEncoder[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            urls[i] = new URL("http://192.168.1." + (i + 10) + ":49152/upnp/event/gpio");
+            sids[i] = new UUID().toString();
+            encoders[i] = new NotifyEncoder(urls[i], sids[i]);
+        }
+    }
+
+    @Benchmark
+    public void printf(final Blackhole bh) {
+        seq++;
+        for (int i = 0; i < subscribers; i++) {
+            bh.consume(generateNotify(urls[i], CONTENT_TYPE, BODY, sids[i], seq).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Benchmark
+    public void encoder(final Blackhole bh) {
+        seq++;
+        NotifyEncoder.Event e = new NotifyEncoder.Event(CONTENT_TYPE, BODY);
+        for (int i = 0; i < subscribers; i++) {
+            ByteBuffer[] bufs = encoders[i].encode(e, seq);
+            bh.consume(bufs);
+        }
+    }
+
+    /**
+     * The message formatting formerly used by SubscriptionManager.
+     */
+    private static String generateNotify(final URL url, final String contentType, final String body, final String sid,
+            final long eventKey) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        pw.printf("NOTIFY %s HTTP/1.1\r\n", url.getPath());
+        pw.printf("HOST: %s:%d\r\n", url.getHost(), url.getPort());
+        pw.printf("CONTENT-TYPE: %s\r\n", contentType);
+        pw.printf("NT: upnp:event\r\n");
+        pw.printf("NTS: upnp:propchange\r\n");
+        pw.printf("SID: uuid:%s\r\n", sid);
+        pw.printf("SEQ: %d\r\n", eventKey);
+        pw.printf("CONTENT-LENGTH: %d\r\n", body.length());
+        pw.printf("\r\n");
+        pw.print(body);
+        pw.flush();
+        String resp = sw.toString();
+        pw.close();
+        return resp;
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.gsteckman.rpi_rest.benchmarks;
+
+/*
+ * RestGpioBenchmark.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+import com.pi4j.io.gpio.impl.GpioControllerImpl;
+
+import io.github.gsteckman.rpi_rest.PinLocks;
+import io.github.gsteckman.rpi_rest.PinStateCache;
+import io.github.gsteckman.rpi_rest.RestGpioController;
+import io.github.gsteckman.rpi_rest.SimulatedGpioProvider;
+
+/**
+ * Measures the RestGpioController request handlers, excluding HTTP transport, on the SimulatedGpioProvider with its
+ * default latencies: reading all pins with and without a matching entity tag, writing a pin, and a group of readers
+ * running against a writer to show the effect of locking and snapshot publication on reads.
+ *
+ * The board has 8 output pins, 4 to 11, and 8 input pins, 16 to 23, driven by a 1 kHz square wave so that input events
+ * replace the snapshot concurrently with the benchmark.
+ *
+ * @author Greg Steckman
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RestGpioBenchmark {
+    private static final int OUTPUTS = 8;
+    private static final int INPUTS = 8;
+
+    private SimulatedGpioProvider provider;
+    private GpioController gpio;
+    private PinStateCache cache;
+    private RestGpioController ctrl;
+    private Map<String, String> high;
+    private Map<String, String> low;
+
+    /**
+     * State of a thread writing pins.
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+        private boolean level;
+        private int pin;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        provider = new SimulatedGpioProvider();
+        provider.setDefaultWaveform(SimulatedGpioProvider.Waveform.SQUARE, 1000);
+        gpio = new GpioControllerImpl(provider);
+        for (int i = 0; i < OUTPUTS; i++) {
+            gpio.provisionDigitalOutputPin(provider, RaspiBcmPin.getPinByAddress(4 + i), PinState.LOW);
+        }
+        for (int i = 0; i < INPUTS; i++) {
+            gpio.provisionDigitalInputPin(provider, RaspiBcmPin.getPinByAddress(16 + i));
+        }
+        cache = new PinStateCache(gpio);
+        ctrl = new RestGpioController(gpio, new PinLocks(), cache);
+        high = new HashMap<String, String>();
+        high.put("state", "HIGH");
+        low = new HashMap<String, String>();
+        low.put("state", "LOW");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        gpio.shutdown();
+        provider.shutdown();
+    }
+
+    @Benchmark
+    public void getGpios(final Blackhole bh) {
+        bh.consume(ctrl.getGpios(null));
+    }
+
+    @Benchmark
+    public void getGpiosNotModified(final Blackhole bh) {
+        bh.consume(ctrl.getGpios(cache.getSnapshot().getETag()));
+    }
+
+    @Benchmark
+    public void setGpio(final Writer w, final Blackhole bh) {
+        w.level = !w.level;
+        bh.consume(ctrl.setGpio(4, w.level ? high : low));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void read(final Blackhole bh) {
+        bh.consume(ctrl.getGpios(null));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void write(final Writer w, final Blackhole bh) {
+        w.pin = (w.pin + 1) % OUTPUTS;
+        if (w.pin == 0) {
+            w.level = !w.level;
+        }
+        bh.consume(ctrl.setGpio(4 + w.pin, w.level ? high : low));
+    }
+}
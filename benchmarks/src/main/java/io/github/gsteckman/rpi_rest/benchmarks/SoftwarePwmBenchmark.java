@@ -0,0 +1,130 @@
+package io.github.gsteckman.rpi_rest.benchmarks;
+
+/*
+ * SoftwarePwmBenchmark.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+import com.pi4j.io.gpio.impl.GpioControllerImpl;
+
+import io.github.gsteckman.rpi_rest.PinLocks;
+import io.github.gsteckman.rpi_rest.PinStateCache;
+import io.github.gsteckman.rpi_rest.SimulatedGpioProvider;
+import io.github.gsteckman.rpi_rest.SoftwarePwm;
+
+/**
+ * Measures the timing jitter and CPU cost of SoftwarePwm driving a number of pins, on the SimulatedGpioProvider with a
+ * write latency of 2 us. Each pin has a different duty cycle, so that every pin's falling edge is a separate entry of
+ * the schedule. Each operation lets the PWM run for WINDOW ms; its time is not of interest. The results are the
+ * auxiliary counters, taken over each iteration:
+ *
+ * <ul>
+ * <li>meanLateness and maxLateness: how late, in ns, the schedule's entries were played.</li>
+ * <li>cpuPerPin: CPU time used by the PWM thread per pin, as a percentage of the time elapsed.</li>
+ * <li>toggles: the pin toggles played.</li>
+ * </ul>
+ *
+ * @author Greg Steckman
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SoftwarePwmBenchmark {
+    private static final int BASE_FREQUENCY = 50; // Hz
+    private static final long WINDOW = 100; // ms
+
+    @Param({ "1", "8", "16" })
+    public int pins;
+
+    @Param({ "50", "1000" })
+    public int frequency;
+
+    private SimulatedGpioProvider provider;
+    private GpioController gpio;
+    private SoftwarePwm pwm;
+    private long start;
+
+    /**
+     * Statistics of the PWM thread over the iteration, reported by JMH as auxiliary counters.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Statistics {
+        public long meanLateness;
+        public long maxLateness;
+        public double cpuPerPin;
+        public long toggles;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        provider = new SimulatedGpioProvider();
+        provider.setWriteLatency(2000);
+        gpio = new GpioControllerImpl(provider);
+        for (int i = 0; i < pins; i++) {
+            gpio.provisionDigitalOutputPin(provider, RaspiBcmPin.getPinByAddress(4 + i), PinState.LOW);
+        }
+        pwm = new SoftwarePwm(gpio, new PinLocks(), new PinStateCache(gpio), BASE_FREQUENCY);
+        for (int i = 0; i < pins; i++) {
+            Map<String, String> model = new HashMap<String, String>();
+            model.put("duty", Double.toString(10 + 80.0 * i / pins));
+            model.put("frequency", Integer.toString(frequency));
+            if (pwm.setPwm(4 + i, model).getStatusCodeValue() != 200) {
+                throw new IllegalStateException("Setting PWM of pin " + (4 + i) + " failed");
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetStatistics() throws InterruptedException {
+        pwm.resetStatistics();
+        Thread.sleep(2000 / BASE_FREQUENCY); // the reset takes effect at the start of a frame
+        start = System.nanoTime();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pwm.close();
+        provider.shutdown();
+    }
+
+    @Benchmark
+    public void run(final Statistics stats) throws InterruptedException {
+        Thread.sleep(WINDOW);
+        stats.meanLateness = pwm.getMeanLateness();
+        stats.maxLateness = pwm.getMaxLateness();
+        stats.cpuPerPin = 100.0 * pwm.getCpuTime() / (System.nanoTime() - start) / pins;
+        stats.toggles = pwm.getToggles();
+    }
+}
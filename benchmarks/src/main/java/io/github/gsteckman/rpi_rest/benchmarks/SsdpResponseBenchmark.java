@@ -0,0 +1,128 @@
+package io.github.gsteckman.rpi_rest.benchmarks;
+
+/*
+ * SsdpResponseBenchmark.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.eaio.uuid.UUID;
+
+import io.github.gsteckman.rpi_rest.SsdpEncoder;
+
+/**
+ * Compares answering an M-SEARCH as SsdpHandler does, by sending the response cached by an SsdpEncoder through a
+ * non-blocking DatagramChannel, against encoding each response with SsdpEncoder.encodeSearchResponse, and against the
+ * former approach of formatting each response with PrintWriter.printf and sending it with a DatagramSocket. Responses
+ * are sent to an unread socket on the loopback interface.
+ *
+ * @author Greg Steckman
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SsdpResponseBenchmark {
+    private static final String ST = "urn:gsteckman-github-io:device:rpi:1";
+    private static final String LOCATION = "http://192.168.1.2:8080";
+    private static final int PORT = 8080;
+    private static final long CONFIGID = 1;
+    private final String uuid = new UUID().toString();
+    private final String[] targets = {ST};
+    private final String[] usns = {"uuid:" + uuid + "::" + ST};
+    private final SsdpEncoder encoder = new SsdpEncoder("192.168.1.2");
+    private DatagramSocket sink;
+    private InetSocketAddress to;
+    private DatagramSocket socket;
+    private DatagramChannel channel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        sink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        to = new InetSocketAddress(InetAddress.getLoopbackAddress(), sink.getLocalPort());
+        socket = new DatagramSocket();
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        socket.close();
+        sink.close();
+    }
+
+    @Benchmark
+    public void printf() throws IOException {
+        byte[] ba = generateSearchResponse(ST, "::" + ST).getBytes(StandardCharsets.US_ASCII);
+        socket.send(new DatagramPacket(ba, ba.length, to));
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        return channel.send(ByteBuffer.wrap(SsdpEncoder.encodeSearchResponse(LOCATION, ST, usns[0], CONFIGID)), to);
+    }
+
+    @Benchmark
+    public int cached() throws IOException {
+        ByteBuffer response = encoder.getSearchResponses(PORT, CONFIGID, targets, usns)[0];
+        response.rewind();
+        return channel.send(response, to);
+    }
+
+    /**
+     * The response formatting formerly used by SsdpHandler for every search.
+     */
+    private String generateSearchResponse(final String st, final String usnSuffix) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        pw.print("HTTP/1.1 200 OK\r\n");
+        pw.printf("CACHE-CONTROL: max-age=%d\r\n", 1800);
+        pw.print("EXT:\r\n");
+        pw.printf("LOCATION: %s\r\n", LOCATION);
+        pw.print("SERVER: " + System.getProperty("os.name") + "/" + System.getProperty("os.version")
+                + ", UPnP/1.1, rpi-rest/0.1\r\n");
+        pw.printf("ST: %s\r\n", st);
+        pw.printf("USN: uuid:%s%s\r\n", uuid, usnSuffix);
+        pw.printf("BOOTID.UPNP.ORG: %d\r\n", 1L);
+        pw.printf("CONFIGID.UPNP.ORG: %d\r\n", 1L);
+        pw.printf("\r\n");
+        pw.flush();
+        String resp = sw.toString();
+        pw.close();
+        return resp;
+    }
+}
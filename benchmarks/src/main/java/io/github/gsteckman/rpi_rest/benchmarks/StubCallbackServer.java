@@ -0,0 +1,139 @@
+package io.github.gsteckman.rpi_rest.benchmarks;
+
+/*
+ * StubCallbackServer.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A GENA subscriber's callback server on the loopback interface, which answers each NOTIFY request with 200 OK on a
+ * kept-alive connection and counts the requests received. Each connection is served by its own daemon thread.
+ *
+ * @author Greg Steckman
+ *
+ */
+public class StubCallbackServer implements Runnable {
+    private static final byte[] OK = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private final ServerSocket server;
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * Creates a server listening on an ephemeral port, and starts it.
+     *
+     * @throws IOException
+     *             If the server socket can't be opened.
+     */
+    public StubCallbackServer() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(this, "Stub Callback Server " + server.getLocalPort());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return The callback URL of this server.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getLocalPort() + "/notify";
+    }
+
+    /**
+     * @return The number of NOTIFY requests received.
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Stops accepting connections.
+     */
+    public void close() throws IOException {
+        server.close();
+    }
+
+    public void run() {
+        while (!server.isClosed()) {
+            try {
+                final Socket s = server.accept();
+                s.setTcpNoDelay(true);
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        serve(s);
+                    }
+                }, "Stub Callback Connection");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(final Socket s) {
+        try {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                int length = 0;
+                int c;
+                // read the headers, noting the content length
+                while (true) {
+                    line.setLength(0);
+                    while ((c = in.read()) >= 0 && c != '\n') {
+                        if (c != '\r') {
+                            line.append((char) c);
+                        }
+                    }
+                    if (c < 0) {
+                        s.close();
+                        return;
+                    }
+                    if (line.length() == 0) {
+                        break;
+                    }
+                    if (line.length() > 15 && line.substring(0, 15).equalsIgnoreCase("CONTENT-LENGTH:")) {
+                        length = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                while (length > 0) {
+                    long skipped = in.skip(length);
+                    if (skipped <= 0) {
+                        if (in.read() < 0) {
+                            s.close();
+                            return;
+                        }
+                        skipped = 1;
+                    }
+                    length -= skipped;
+                }
+                out.write(OK);
+                out.flush();
+                received.incrementAndGet();
+            }
+        } catch (IOException e) {
+            // connection closed
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package io.github.gsteckman.rpi_rest.benchmarks;
+
+/*
+ * WebSocketLoadClient.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.ContainerProvider;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+
+import io.github.gsteckman.rpi_rest.GpioWebSocketHandler;
+
+/**
+ * Load test client for the GpioWebSocketHandler binary protocol. Each connection repeatedly writes a pin, alternating
+ * HIGH and LOW, keeping up to a fixed number of writes outstanding, and measures the time from sending each write to
+ * receiving its acknowledgement. At the end of the run the throughput in operations per second and the median and 99th
+ * percentile latencies are printed.
+ *
+ * Usage:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar io.github.gsteckman.rpi_rest.benchmarks.WebSocketLoadClient \
+ *     [uri] [address] [connections] [pipeline depth] [records per message] [seconds]
+ * </pre>
+ *
+ * Defaults are ws://localhost:8080/gpios/ws, pin 4, 1 connection, depth 64, 8 records per message and 10 seconds.
+ *
+ * @author Greg Steckman
+ *
+ */
+public class WebSocketLoadClient {
+    private static final int MAX_SAMPLES = 1 << 22;
+
+    private final int address;
+    private final int depth;
+    private final int batch;
+    private final Semaphore window;
+    private final long[] sent;
+    private final long[] samples = new long[MAX_SAMPLES];
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile boolean running = true;
+    private int seq;
+
+    private WebSocketLoadClient(final int address, final int depth, final int batch) {
+        this.address = address;
+        this.depth = depth;
+        this.batch = Math.min(batch, depth);
+        window = new Semaphore(depth);
+        sent = new long[Integer.highestOneBit(depth) << 1];
+    }
+
+    public static void main(final String[] args) throws Exception {
+        URI uri = URI.create(args.length > 0 ? args[0] : "ws://localhost:8080/gpios/ws");
+        int address = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int depth = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int batch = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+        int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+
+        WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+        WebSocketLoadClient[] clients = new WebSocketLoadClient[connections];
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            final WebSocketLoadClient c = new WebSocketLoadClient(address, depth, batch);
+            final Session session = container.connectToServer(c.new Listener(),
+                    ClientEndpointConfig.Builder.create().build(), uri);
+            clients[i] = c;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    c.send(session);
+                }
+            }, "Load " + i);
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        for (WebSocketLoadClient c : clients) {
+            c.running = false;
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long ops = 0;
+        long errs = 0;
+        int n = 0;
+        for (WebSocketLoadClient c : clients) {
+            ops += c.completed.get();
+            errs += c.errors.get();
+            n += (int) Math.min(c.completed.get(), MAX_SAMPLES);
+        }
+        long[] all = new long[n];
+        int pos = 0;
+        for (WebSocketLoadClient c : clients) {
+            int len = (int) Math.min(c.completed.get(), MAX_SAMPLES);
+            System.arraycopy(c.samples, 0, all, pos, len);
+            pos += len;
+        }
+        Arrays.sort(all);
+
+        System.out.printf("connections=%d depth=%d batch=%d%n", connections, depth, batch);
+        System.out.printf("ops=%d errors=%d ops/sec=%.0f%n", ops, errs, ops / elapsed);
+        if (n > 0) {
+            System.out.printf("latency us: p50=%.1f p99=%.1f max=%.1f%n", all[n / 2] / 1e3, all[(int) (n * 0.99)] / 1e3,
+                    all[n - 1] / 1e3);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Sends batches of writes while the window permits, until the run ends.
+     */
+    private void send(final Session session) {
+        ByteBuffer buf = ByteBuffer.allocate(batch * GpioWebSocketHandler.RECORD_SIZE);
+        try {
+            while (running) {
+                if (!window.tryAcquire(batch, 100, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                buf.clear();
+                long now = System.nanoTime();
+                for (int i = 0; i < batch; i++) {
+                    int s = seq++;
+                    sent[s & (sent.length - 1)] = now;
+                    buf.put(GpioWebSocketHandler.OP_WRITE).put((byte) address).put((byte) (s & 1)).put((byte) 0)
+                            .putInt(s);
+                }
+                buf.flip();
+                session.getBasicRemote().sendBinary(buf);
+            }
+            // allow outstanding acknowledgements to arrive
+            window.tryAcquire(depth, 5, TimeUnit.SECONDS);
+            session.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Receives acknowledgements and records their latency.
+     */
+    private class Listener extends Endpoint {
+        @Override
+        public void onOpen(final Session session, final EndpointConfig config) {
+            session.addMessageHandler(new MessageHandler.Whole<ByteBuffer>() {
+                public void onMessage(final ByteBuffer in) {
+                    long now = System.nanoTime();
+                    int n = 0;
+                    while (in.remaining() >= GpioWebSocketHandler.RECORD_SIZE) {
+                        byte op = in.get();
+                        in.get();
+                        in.get();
+                        byte status = in.get();
+                        int s = in.getInt();
+                        if (op != (byte) (GpioWebSocketHandler.OP_WRITE | GpioWebSocketHandler.ACK)) {
+                            continue; // not an acknowledgement of a write, e.g. a pushed event
+                        }
+                        if (status != GpioWebSocketHandler.STATUS_OK) {
+                            errors.incrementAndGet();
+                        }
+                        long i = completed.getAndIncrement();
+                        if (i < MAX_SAMPLES) {
+                            samples[(int) i] = now - sent[s & (sent.length - 1)];
+                        }
+                        n++;
+                    }
+                    window.release(n);
+                }
+            });
+        }
+    }
+}
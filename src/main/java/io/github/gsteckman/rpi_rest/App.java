@@ -16,8 +16,15 @@ package io.github.gsteckman.rpi_rest;
  *
  */
 
+import java.io.File;
+import java.io.IOException;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Profile;
 
 import com.pi4j.io.gpio.GpioController;
 import com.pi4j.io.gpio.GpioProvider;
@@ -57,10 +64,15 @@ import com.pi4j.io.gpio.RaspiPinNumberingScheme;
  * }
  * </code>
  * 
+ * When the "simulator" profile is active (for example with --spring.profiles.active=simulator) a SimulatedGpioProvider
+ * is used in place of the RaspiGpioProvider, so that the application can be run and load tested without a Raspberry
+ * Pi. Its input waveform and latencies are set by the gpio.simulator.* properties.
+ * 
  * @author Greg Steckman
  *
  */
 @SpringBootApplication
+@Import(WebSocketConfig.class)
 public abstract class App {
     /**
      * @return The SsdpHandler to be used by the application.
@@ -74,10 +86,42 @@ public abstract class App {
      * @return The GpioProvider to be used by the GpioController.
      */
     @Bean
+    @Profile("!simulator")
     public GpioProvider raspiGpioProvider() {
         return new RaspiGpioProvider(RaspiPinNumberingScheme.BROADCOM_PIN_NUMBERING);
     }
 
+    /**
+     * Creates the GpioProvider used in place of the RaspiGpioProvider when the "simulator" profile is active.
+     * 
+     * @param waveform
+     *            Waveform applied to every digital input pin, one of NONE, SQUARE, RANDOM or BURSTY.
+     * @param period
+     *            Period of the waveform in microseconds.
+     * @param readLatency
+     *            Time taken by each read of a pin in nanoseconds.
+     * @param writeLatency
+     *            Time taken by each write of a pin in nanoseconds.
+     * @param eventLatency
+     *            Delay from a change of state to the notification of listeners in microseconds.
+     * @return The simulated GpioProvider.
+     */
+    @Bean(destroyMethod = "shutdown")
+    @Profile("simulator")
+    public GpioProvider simulatedGpioProvider(
+            @Value("${gpio.simulator.waveform:SQUARE}") final SimulatedGpioProvider.Waveform waveform,
+            @Value("${gpio.simulator.period:1000000}") final long period,
+            @Value("${gpio.simulator.read-latency:1000}") final long readLatency,
+            @Value("${gpio.simulator.write-latency:2000}") final long writeLatency,
+            @Value("${gpio.simulator.event-latency:100}") final long eventLatency) {
+        SimulatedGpioProvider gp = new SimulatedGpioProvider();
+        gp.setDefaultWaveform(waveform, period);
+        gp.setReadLatency(readLatency);
+        gp.setWriteLatency(writeLatency);
+        gp.setEventLatency(eventLatency);
+        return gp;
+    }
+
     /**
      * This method should be overridden by a subclass that creates a GpioController with the required pins provisioned
      * for input/output as needed by the end application.
@@ -89,16 +133,170 @@ public abstract class App {
     @Bean
     public abstract GpioController gpioController(final GpioProvider gp);
 
+    /**
+     * @return The PinLocks shared by all users of the GpioController.
+     */
+    @Bean
+    public PinLocks pinLocks() {
+        return new PinLocks();
+    }
+
+    /**
+     * @param gc
+     *            GpioController whose pins are cached.
+     * @return The PinStateCache holding the state of all provisioned pins.
+     */
+    @Bean
+    public PinStateCache pinStateCache(final GpioController gc) {
+        return new PinStateCache(gc);
+    }
+
     /**
      * Creates and returns the RestGpioController bean.
      * 
      * @param gc
      *            GpioController to be used by the RestGpioController.
+     * @param locks
+     *            PinLocks guarding access to the GPIO pins.
+     * @param cache
+     *            PinStateCache holding the state of the GPIO pins.
      * @return A new RestGpioController.
      */
     @Bean
-    public RestGpioController restGpioController(final GpioController gc) {
-        return new RestGpioController(gc);
+    public RestGpioController restGpioController(final GpioController gc, final PinLocks locks,
+            final PinStateCache cache) {
+        return new RestGpioController(gc, locks, cache);
+    }
+
+    /**
+     * Creates and returns the PinEventStream bean, which streams pin state changes as Server-Sent Events.
+     * 
+     * @param cache
+     *            PinStateCache holding the state of the GPIO pins.
+     * @return A new PinEventStream.
+     */
+    @Bean
+    public PinEventStream pinEventStream(final PinStateCache cache) {
+        return new PinEventStream(cache);
+    }
+
+    /**
+     * Creates and returns the SubscriptionManager bean. If the gena.journal.file property is set, subscriptions are
+     * recorded in a SubscriptionJournal in that file and restored from it at startup.
+     * 
+     * @param journalFile
+     *            Path of the subscription journal, or empty for no journal.
+     * @return The SubscriptionManager holding the GENA event subscriptions.
+     * @throws IOException
+     *             If the journal can't be opened.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public SubscriptionManager subscriptionManager(@Value("${gena.journal.file:}") final String journalFile)
+            throws IOException {
+        if (journalFile.isEmpty()) {
+            return new SubscriptionManager();
+        }
+        return new SubscriptionManager(new SubscriptionJournal(new File(journalFile)));
     }
 
+    /**
+     * Creates and returns the GpioEventController bean, which publishes pin state changes as GENA events at
+     * /gpios/events and /gpios/{address}/events.
+     * 
+     * @param sm
+     *            SubscriptionManager holding the subscriptions.
+     * @param cache
+     *            PinStateCache holding the state of the GPIO pins.
+     * @return A new GpioEventController.
+     */
+    @Bean
+    public GpioEventController gpioEventController(final SubscriptionManager sm, final PinStateCache cache) {
+        return new GpioEventController(sm, cache);
+    }
+
+    /**
+     * Creates and returns the InputFilter bean, which debounces the digital input pins before their changes reach the
+     * PinStateCache, and is configured at /gpios/{address}/config.
+     *
+     * @param gc
+     *            GpioController whose input pins are filtered.
+     * @param cache
+     *            PinStateCache receiving the filtered changes.
+     * @return A new InputFilter.
+     */
+    @Bean
+    public InputFilter inputFilter(final GpioController gc, final PinStateCache cache) {
+        return new InputFilter(gc, cache);
+    }
+
+    /**
+     * Creates and returns the OutputSequencer bean, which plays timed patterns on the output pins uploaded to
+     * /gpios/sequences. It depends on the RestGpioController so that it is closed before the RestGpioController shuts
+     * down the GpioController.
+     *
+     * @param gc
+     *            GpioController whose output pins are driven.
+     * @param locks
+     *            PinLocks guarding access to the GPIO pins.
+     * @param cache
+     *            PinStateCache holding the state of the GPIO pins.
+     * @return A new OutputSequencer.
+     */
+    @Bean
+    @DependsOn("restGpioController")
+    public OutputSequencer outputSequencer(final GpioController gc, final PinLocks locks, final PinStateCache cache) {
+        return new OutputSequencer(gc, locks, cache);
+    }
+
+    /**
+     * Creates and returns the SoftwarePwm bean, which drives PWM signals on output pins configured at
+     * /gpios/{address}/pwm. It depends on the RestGpioController so that its thread is stopped before the
+     * RestGpioController shuts down the GpioController.
+     *
+     * @param gc
+     *            GpioController whose output pins are driven.
+     * @param locks
+     *            PinLocks guarding access to the GPIO pins, in which the driven pins are reserved.
+     * @param cache
+     *            PinStateCache holding the state of the GPIO pins.
+     * @param frequency
+     *            Base frequency in Hz, of which the frequency of each pin must be a multiple.
+     * @return A new SoftwarePwm.
+     */
+    @Bean
+    @DependsOn("restGpioController")
+    public SoftwarePwm softwarePwm(final GpioController gc, final PinLocks locks, final PinStateCache cache,
+            @Value("${gpio.pwm.frequency:50}") final int frequency) {
+        return new SoftwarePwm(gc, locks, cache, frequency);
+    }
+
+    /**
+     * Creates and returns the EdgeCapture bean, which records the edges of the digital input pins and returns them at
+     * /gpios/{address}/edges.
+     *
+     * @param gc
+     *            GpioController whose input pins are captured.
+     * @return A new EdgeCapture.
+     */
+    @Bean
+    public EdgeCapture edgeCapture(final GpioController gc) {
+        return new EdgeCapture(gc);
+    }
+
+    /**
+     * Creates and returns the GpioWebSocketHandler bean, registered at /gpios/ws by WebSocketConfig.
+     * 
+     * @param gc
+     *            GpioController to be used by the handler.
+     * @param locks
+     *            PinLocks guarding access to the GPIO pins.
+     * @param cache
+     *            PinStateCache holding the state of the GPIO pins.
+     * @return A new GpioWebSocketHandler.
+     */
+    @Bean
+    public GpioWebSocketHandler gpioWebSocketHandler(final GpioController gc, final PinLocks locks,
+            final PinStateCache cache) {
+        return new GpioWebSocketHandler(gc, locks, cache);
+    }
 }
@@ -0,0 +1,247 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * EdgeCapture.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioPin;
+import com.pi4j.io.gpio.GpioPinDigitalInput;
+import com.pi4j.io.gpio.PinDirection;
+import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+
+/**
+ * Records every edge of the digital input pins, so that pulses shorter than the interval between polls of the pin
+ * state are not lost. Each edge is given a sequence number, starting at 1, and recorded with its pin, direction and
+ * System.nanoTime() in a ring buffer of primitive longs allocated when the instance is created, so recording an edge
+ * allocates nothing. The edges are recorded as reported by Pi4J, whether or not the InputFilter accepts them.
+ *
+ * Pi4J's state change events carry no timestamp, so an edge is timestamped when its event reaches this listener on
+ * Pi4J's event dispatch thread, not when the pin changed. Each timestamp therefore includes Pi4J's dispatch latency,
+ * and the interval between two edges includes its jitter, which on a loaded system may be tens or hundreds of
+ * microseconds. As Pi4J may dispatch events on several threads, edges that occur close together may even be recorded
+ * out of order.
+ *
+ * Edges are written by one producer at a time: Pi4J may dispatch events on several threads, so recording is
+ * serialized by a lock, which is uncontended while edges arrive one at a time. Readers don't lock; they read the
+ * entries up to the published sequence number and then check that none was overwritten while being read. When a reader
+ * asks for edges that have already been overwritten, because more than the buffer's capacity of edges were recorded
+ * since, the overrun is reported along with the number of edges lost.
+ *
+ * Edges are returned by GET /gpios/{address}/edges?since=seq as JSON, for example:
+ *
+ * <pre>
+ * {"last":12,"overrun":false,"lost":0,"edges":[{"seq":11,"edge":"RISING","nanos":81723001234}, ...]}
+ * </pre>
+ *
+ * where last is the sequence number to pass as since in the next request, and lost is the number of edges, of any pin,
+ * that were overwritten before they could be returned. Sequence numbers are shared by all pins, and restart from 1
+ * when the application restarts; a since value beyond the last edge recorded is taken to be from before a restart.
+ *
+ * @author Greg Steckman
+ *
+ */
+@RestController
+public class EdgeCapture implements GpioPinListenerDigital {
+    private static final Log LOG = LogFactory.getLog(EdgeCapture.class);
+    static final int DEFAULT_CAPACITY = 4096; // edges
+    static final int MAX_EDGES = 1024; // returned per request
+    private static final int RISING = 1 << 8; // flag in an entry's info word, below which is the pin address
+    private final GpioController gpio;
+    private final long[] ring; // pairs of nanoTime and info
+    private final int mask;
+    private final Object producerLock = new Object();
+    private volatile long head; // sequence number of the last edge written
+
+    /**
+     * Creates a new instance holding the last DEFAULT_CAPACITY edges, and registers for state change events of the
+     * controller's digital input pins.
+     *
+     * @param gpioCtrl
+     *            GpioController whose input pins are captured.
+     */
+    public EdgeCapture(final GpioController gpioCtrl) {
+        this(gpioCtrl, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new instance and registers for state change events of the controller's digital input pins.
+     *
+     * @param gpioCtrl
+     *            GpioController whose input pins are captured.
+     * @param capacity
+     *            Number of edges held, rounded up to a power of two.
+     */
+    public EdgeCapture(final GpioController gpioCtrl, final int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new long[2 * size];
+        mask = size - 1;
+        gpio = gpioCtrl;
+        refresh();
+    }
+
+    /**
+     * Registers for state change events of the digital input pins currently provisioned. Should be called after pins
+     * are provisioned.
+     */
+    public synchronized void refresh() {
+        for (GpioPin pin : gpio.getProvisionedPins()) {
+            if (pin instanceof GpioPinDigitalInput && pin.getMode().getDirection() == PinDirection.IN) {
+                ((GpioPinDigitalInput) pin).removeListener(this);
+                ((GpioPinDigitalInput) pin).addListener(this);
+            }
+        }
+    }
+
+    /**
+     * Implements GpioPinListenerDigital to record the edge.
+     */
+    public void handleGpioPinDigitalStateChangeEvent(final GpioPinDigitalStateChangeEvent event) {
+        record(event.getPin().getPin().getAddress(), event.getState().isHigh(), System.nanoTime());
+    }
+
+    /**
+     * Records an edge.
+     *
+     * @param address
+     *            BCM address of the pin.
+     * @param rising
+     *            true for a low to high transition.
+     * @param nanos
+     *            System.nanoTime() of the edge.
+     */
+    void record(final int address, final boolean rising, final long nanos) {
+        synchronized (producerLock) {
+            long seq = head + 1;
+            int i = (int) ((seq - 1) & mask) << 1;
+            ring[i] = nanos;
+            ring[i + 1] = (address & (RISING - 1)) | (rising ? RISING : 0);
+            head = seq; // publishes the entry
+        }
+    }
+
+    /**
+     * @return Sequence number of the last edge recorded, 0 if none.
+     */
+    public long getLastSequence() {
+        return head;
+    }
+
+    /**
+     * @return Number of edges held.
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * GET handler returning the edges of a pin recorded after the given sequence number, at most MAX_EDGES per
+     * request.
+     *
+     * @param address
+     *            Pin whose edges are returned.
+     * @param since
+     *            Sequence number of the last edge already received; 0 for all edges held.
+     * @return JSON object describing the edges.
+     */
+    @GetMapping(path = "/gpios/{address}/edges")
+    public ResponseEntity<byte[]> getEdges(@PathVariable int address,
+            @RequestParam(value = "since", defaultValue = "0") long since) {
+        LOG.debug("getEdges");
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8)
+                .body(edgesJson(address, since).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the edges of a pin after a sequence number and encodes them as JSON.
+     */
+    String edgesJson(final int address, final long since) {
+        int capacity = mask + 1;
+        long end = head;
+        long from = since > end ? 0 : Math.max(since, 0); // a since beyond the last edge is from before a restart
+        long start = from + 1;
+        long oldest = Math.max(1, end - capacity + 1);
+        if (start < oldest) {
+            start = oldest;
+        }
+
+        // copy the candidate entries, then discard any overwritten while being copied
+        int n = (int) Math.max(0, end - start + 1);
+        long[] copy = new long[2 * n];
+        for (int k = 0; k < n; k++) {
+            int i = (int) ((start + k - 1) & mask) << 1;
+            copy[2 * k] = ring[i];
+            copy[2 * k + 1] = ring[i + 1];
+        }
+        // oldest entry not overwritten after the copy, allowing for the entry the producer may be writing
+        long valid = Math.max(1, head - capacity + 2);
+        long lost = Math.max(0, Math.min(valid, end + 1) - (from + 1));
+
+        StringBuilder sb = new StringBuilder(64 + 64 * Math.min(n, MAX_EDGES));
+        sb.append("{\"last\":");
+        int lastPos = sb.length();
+        sb.append(",\"overrun\":").append(lost > 0);
+        sb.append(",\"lost\":").append(lost);
+        sb.append(",\"edges\":[");
+        long last = Math.max(from, Math.min(valid - 1, end));
+        int count = 0;
+        for (int k = 0; k < n && count < MAX_EDGES; k++) {
+            long seq = start + k;
+            if (seq < valid) {
+                continue;
+            }
+            last = seq;
+            long info = copy[2 * k + 1];
+            if ((info & (RISING - 1)) != address) {
+                continue;
+            }
+            if (count++ > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"seq\":").append(seq);
+            sb.append(",\"edge\":\"").append((info & RISING) != 0 ? "RISING" : "FALLING");
+            sb.append("\",\"nanos\":").append(copy[2 * k]).append('}');
+        }
+        sb.append("]}");
+        sb.insert(lastPos, last);
+        return sb.toString();
+    }
+
+    /**
+     * Stops capturing edges. Called by Spring Framework prior to destroying the bean.
+     */
+    @PreDestroy
+    public synchronized void close() {
+        for (GpioPin pin : gpio.getProvisionedPins()) {
+            if (pin instanceof GpioPinDigitalInput) {
+                ((GpioPinDigitalInput) pin).removeListener(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * GpioEventController.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import io.github.gsteckman.rpi_rest.PinStateCache.PinStatus;
+import io.github.gsteckman.rpi_rest.PinStateCache.Snapshot;
+
+/**
+ * Publishes GPIO pin state changes as UPnP GENA events. Subscribers send SUBSCRIBE and UNSUBSCRIBE requests to
+ * /gpios/events for changes of any pin, or to /gpios/{address}/events for changes of a single pin, which are processed
+ * by the SubscriptionManager.
+ *
+ * Each event body is a UPnP property set. An event for a single pin has one property, state, with the value HIGH or
+ * LOW. An event for the whole board has a property gpioN for each pin N reported, so a change carries only the pin that
+ * changed. A new subscription is first sent an event with the current state of the pin or of every digital pin.
+ *
+ * Events are fired from the PinStateCache listener. Creating a subscription and firing an event are serialized, so
+ * that a change published after the initial event's state was read is always sent to the new subscription after it.
+ *
+ * @author Greg Steckman
+ *
+ */
+@RestController
+public class GpioEventController implements PinStateCache.Listener {
+    private static final Log LOG = LogFactory.getLog(GpioEventController.class);
+    private static final String CONTENT_TYPE = "text/xml; charset=\"utf-8\"";
+    private static final String BOARD_KEY = "gpios";
+    private static final String PIN_KEY = "gpios/";
+    private static final String PROPERTYSET_START =
+            "<?xml version=\"1.0\"?><e:propertyset xmlns:e=\"urn:schemas-upnp-org:event-1-0\">";
+    private static final String PROPERTYSET_END = "</e:propertyset>";
+    private final SubscriptionManager subscriptions;
+    private final PinStateCache cache;
+    private final Object lock = new Object();
+
+    /**
+     * Creates a new instance publishing changes from the provided cache.
+     *
+     * @param sm
+     *            SubscriptionManager holding the subscriptions.
+     * @param pinCache
+     *            Source of pin state changes.
+     */
+    public GpioEventController(final SubscriptionManager sm, final PinStateCache pinCache) {
+        subscriptions = sm;
+        cache = pinCache;
+        cache.addListener(this);
+    }
+
+    /**
+     * SUBSCRIBE and UNSUBSCRIBE handler for events of all pins.
+     *
+     * @param req
+     *            The request.
+     * @param res
+     *            The response.
+     * @throws IOException
+     *             If an error occurs writing the response.
+     */
+    @RequestMapping(path = "/gpios/events")
+    public void boardEvents(final HttpServletRequest req, final HttpServletResponse res) throws IOException {
+        LOG.debug("boardEvents " + req.getMethod());
+        handle(BOARD_KEY, -1, req, res);
+    }
+
+    /**
+     * SUBSCRIBE and UNSUBSCRIBE handler for events of a single pin.
+     *
+     * @param address
+     *            Pin whose events are subscribed to.
+     * @param req
+     *            The request.
+     * @param res
+     *            The response.
+     * @throws IOException
+     *             If an error occurs writing the response.
+     */
+    @RequestMapping(path = "/gpios/{address}/events")
+    public void pinEvents(@PathVariable int address, final HttpServletRequest req, final HttpServletResponse res)
+            throws IOException {
+        LOG.debug("pinEvents " + address + " " + req.getMethod());
+        PinStatus ps = cache.getSnapshot().getPin(address);
+        if (ps == null || ps.getPinState() == null) {
+            res.sendError(HttpServletResponse.SC_NOT_FOUND, "No digital pin with address " + address);
+            return;
+        }
+        handle(PIN_KEY + address, address, req, res);
+    }
+
+    /**
+     * Implements PinStateCache.Listener to fire an event for the pin and for the whole board.
+     */
+    public void pinChanged(final PinStatus status) {
+        if (status.getPinState() == null) {
+            return;
+        }
+        String pinKey = PIN_KEY + status.getAddress();
+        synchronized (lock) {
+            if (!subscriptions.getSubscriptions(pinKey).isEmpty()) {
+                subscriptions.fireEvent(pinKey, CONTENT_TYPE, pinBody(status));
+            }
+            if (!subscriptions.getSubscriptions(BOARD_KEY).isEmpty()) {
+                StringBuilder sb = new StringBuilder(128).append(PROPERTYSET_START);
+                appendBoardProperty(sb, status);
+                subscriptions.fireEvent(BOARD_KEY, CONTENT_TYPE, sb.append(PROPERTYSET_END).toString());
+            }
+        }
+    }
+
+    /**
+     * Stops publishing events. Called by Spring Framework prior to destroying the bean.
+     */
+    @PreDestroy
+    public void close() {
+        cache.removeListener(this);
+    }
+
+    private void handle(final String key, final int address, final HttpServletRequest req,
+            final HttpServletResponse res) throws IOException {
+        if ("SUBSCRIBE".equalsIgnoreCase(req.getMethod())) {
+            synchronized (lock) {
+                Snapshot snap = cache.getSnapshot();
+                String body;
+                if (address < 0) {
+                    body = boardBody(snap);
+                } else {
+                    body = pinBody(snap.getPin(address));
+                }
+                subscriptions.processSubscribe(key, req, res, CONTENT_TYPE, body);
+            }
+        } else if ("UNSUBSCRIBE".equalsIgnoreCase(req.getMethod())) {
+            subscriptions.processUnsubscribe(key, req, res);
+        } else {
+            res.setHeader("Allow", "SUBSCRIBE, UNSUBSCRIBE");
+            res.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+                    "Method " + req.getMethod() + " not allowed for this resource.");
+        }
+    }
+
+    private static String pinBody(final PinStatus ps) {
+        return PROPERTYSET_START + "<e:property><state>" + ps.getState() + "</state></e:property>" + PROPERTYSET_END;
+    }
+
+    private static String boardBody(final Snapshot snap) {
+        StringBuilder sb = new StringBuilder(512).append(PROPERTYSET_START);
+        for (PinStatus ps : snap.getPins()) {
+            if (ps.getPinState() != null) {
+                appendBoardProperty(sb, ps);
+            }
+        }
+        return sb.append(PROPERTYSET_END).toString();
+    }
+
+    private static void appendBoardProperty(final StringBuilder sb, final PinStatus ps) {
+        sb.append("<e:property><gpio").append(ps.getAddress()).append('>').append(ps.getState());
+        sb.append("</gpio").append(ps.getAddress()).append("></e:property>");
+    }
+}
@@ -0,0 +1,319 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * GpioWebSocketHandler.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.BinaryWebSocketHandler;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioPin;
+import com.pi4j.io.gpio.GpioPinDigitalOutput;
+import com.pi4j.io.gpio.PinMode;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+
+import io.github.gsteckman.rpi_rest.PinStateCache.PinStatus;
+
+/**
+ * Implements a compact binary WebSocket protocol for reading, writing and subscribing to GPIO pins at high rates. It
+ * uses the same PinLocks and PinStateCache as the RestGpioController, so the two interfaces may be used together.
+ *
+ * Every binary message consists of one or more 8 byte records, with multi-byte fields in network byte order:
+ *
+ * <pre>
+ * byte 0    opcode
+ * byte 1    pin BCM address
+ * byte 2    value: 0 = LOW, 1 = HIGH
+ * byte 3    status (responses only; 0 in requests)
+ * bytes 4-7 sequence number
+ * </pre>
+ *
+ * Request opcodes are READ (1), WRITE (2), SUBSCRIBE (3) and UNSUBSCRIBE (4). Each request record is acknowledged by a
+ * record with the request opcode OR'd with 0x80, the same address and sequence number, the pin's value after the
+ * operation and a status of OK (0), UNKNOWN_PIN (1), NOT_OUTPUT (2), BAD_OPCODE (3) or RESERVED (4), the last for a
+ * WRITE of a pin reserved by the OutputSequencer or SoftwarePwm. Clients may pipeline requests, sending further
+ * records without waiting for acknowledgement; the acknowledgements for all of the records in one message are returned
+ * together in one message, in request order.
+ *
+ * After a SUBSCRIBE, each change of the pin's state is pushed as an EVENT (0x40) record whose sequence number is the
+ * low 32 bits of the PinStateCache snapshot version. Events are queued by the thread that changed the pin and sent by a
+ * small shared thread pool, so a slow client never blocks the writer or the PinStateCache. Each session holds at most
+ * one pending event per pin: if the pin changes again before the event is sent, only the latest state is sent, and
+ * events pending for several pins are sent together in one message. Sends go through a
+ * ConcurrentWebSocketSessionDecorator, which closes a session whose send takes longer than SEND_TIME_LIMIT or whose
+ * buffered messages exceed BUFFER_SIZE_LIMIT.
+ *
+ * @author Greg Steckman
+ *
+ */
+public class GpioWebSocketHandler extends BinaryWebSocketHandler implements PinStateCache.Listener {
+    public static final byte OP_READ = 1;
+    public static final byte OP_WRITE = 2;
+    public static final byte OP_SUBSCRIBE = 3;
+    public static final byte OP_UNSUBSCRIBE = 4;
+    public static final byte OP_EVENT = 0x40;
+    public static final byte ACK = (byte) 0x80;
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_UNKNOWN_PIN = 1;
+    public static final byte STATUS_NOT_OUTPUT = 2;
+    public static final byte STATUS_BAD_OPCODE = 3;
+    public static final byte STATUS_RESERVED = 4;
+    public static final int RECORD_SIZE = 8;
+    private static final Log LOG = LogFactory.getLog(GpioWebSocketHandler.class);
+    private static final int MAX_RECORDS = 1024; // per message
+    private static final int SEND_TIME_LIMIT = 5000; // ms
+    private static final int BUFFER_SIZE_LIMIT = 64 * 1024; // bytes
+    private static final int MAX_ADDRESS = 63;
+    private final GpioController gpio;
+    private final PinLocks locks;
+    private final PinStateCache cache;
+    private final Map<String, Client> clients = new ConcurrentHashMap<String, Client>();
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new handler.
+     *
+     * @param gpioCtrl
+     *            GpioController to be used for controlling GPIO resources.
+     * @param pinLocks
+     *            Locks shared by all users of the GpioController.
+     * @param pinCache
+     *            Cache of pin state, which is updated by this class when pins are written.
+     */
+    public GpioWebSocketHandler(final GpioController gpioCtrl, final PinLocks pinLocks, final PinStateCache pinCache) {
+        gpio = gpioCtrl;
+        locks = pinLocks;
+        cache = pinCache;
+        executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "WebSocket Delivery " + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        cache.addListener(this);
+    }
+
+    @Override
+    public void afterConnectionEstablished(final WebSocketSession session) throws Exception {
+        session.setBinaryMessageSizeLimit(MAX_RECORDS * RECORD_SIZE);
+        clients.put(session.getId(),
+                new Client(new ConcurrentWebSocketSessionDecorator(session, SEND_TIME_LIMIT, BUFFER_SIZE_LIMIT)));
+    }
+
+    @Override
+    public void afterConnectionClosed(final WebSocketSession session, final CloseStatus status) throws Exception {
+        clients.remove(session.getId());
+    }
+
+    @Override
+    protected void handleBinaryMessage(final WebSocketSession session, final BinaryMessage message)
+            throws Exception {
+        Client c = clients.get(session.getId());
+        ByteBuffer in = message.getPayload();
+        if (c == null) {
+            return;
+        }
+        if (in.remaining() % RECORD_SIZE != 0) {
+            session.close(CloseStatus.BAD_DATA);
+            return;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(in.remaining());
+        while (in.hasRemaining()) {
+            byte op = in.get();
+            int address = in.get() & 0xff;
+            byte value = in.get();
+            in.get(); // status, unused in requests
+            int seq = in.getInt();
+
+            byte status;
+            switch (op) {
+            case OP_READ:
+                status = cache.getSnapshot().getPin(address) == null ? STATUS_UNKNOWN_PIN : STATUS_OK;
+                break;
+            case OP_WRITE:
+                status = write(address, value != 0 ? PinState.HIGH : PinState.LOW);
+                break;
+            case OP_SUBSCRIBE:
+            case OP_UNSUBSCRIBE:
+                if (address > MAX_ADDRESS || cache.getSnapshot().getPin(address) == null) {
+                    status = STATUS_UNKNOWN_PIN;
+                } else {
+                    c.subscribe(address, op == OP_SUBSCRIBE);
+                    status = STATUS_OK;
+                }
+                break;
+            default:
+                status = STATUS_BAD_OPCODE;
+            }
+            out.put((byte) (op | ACK)).put((byte) address).put(value(address)).put(status).putInt(seq);
+        }
+        out.flip();
+        c.session.sendMessage(new BinaryMessage(out));
+    }
+
+    /**
+     * Implements PinStateCache.Listener to queue the change for delivery to subscribed clients. Never blocks.
+     */
+    public void pinChanged(final PinStatus status) {
+        int address = status.getAddress();
+        if (address > MAX_ADDRESS) {
+            return;
+        }
+        for (Client c : clients.values()) {
+            if (c.isSubscribed(address)) {
+                c.pending.set(address, status);
+                c.schedule();
+            }
+        }
+    }
+
+    /**
+     * Stops delivering events. Called by Spring Framework prior to destroying the bean.
+     */
+    @PreDestroy
+    public void close() {
+        cache.removeListener(this);
+        executor.shutdownNow();
+    }
+
+    private byte write(final int address, final PinState state) {
+        locks.lock(address);
+        try {
+            GpioPin pin = gpio.getProvisionedPin(RaspiBcmPin.getPinByAddress(address));
+            if (pin == null) {
+                return STATUS_UNKNOWN_PIN;
+            }
+            if (!pin.isMode(PinMode.DIGITAL_OUTPUT)) {
+                return STATUS_NOT_OUTPUT;
+            }
+            if (locks.isReserved(address)) {
+                return STATUS_RESERVED;
+            }
+            ((GpioPinDigitalOutput) pin).setState(state);
+            cache.update(pin, state);
+            return STATUS_OK;
+        } finally {
+            locks.unlock(address);
+        }
+    }
+
+    private byte value(final int address) {
+        return value(cache.getSnapshot().getPin(address));
+    }
+
+    private static byte value(final PinStatus ps) {
+        return (byte) (ps != null && ps.getPinState() != null && ps.getPinState().isHigh() ? 1 : 0);
+    }
+
+    /**
+     * A connected session, the set of pins to which it is subscribed and its pending events.
+     */
+    private class Client implements Runnable {
+        private final WebSocketSession session;
+        private final AtomicLong subscriptions = new AtomicLong(); // bit per address
+        private final AtomicReferenceArray<PinStatus> pending = new AtomicReferenceArray<PinStatus>(MAX_ADDRESS + 1);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Client(final WebSocketSession session) {
+            this.session = session;
+        }
+
+        void subscribe(final int address, final boolean subscribe) {
+            long bit = 1L << address;
+            long old;
+            do {
+                old = subscriptions.get();
+            } while (!subscriptions.compareAndSet(old, subscribe ? old | bit : old & ~bit));
+        }
+
+        boolean isSubscribed(final int address) {
+            return (subscriptions.get() & (1L << address)) != 0;
+        }
+
+        /**
+         * Schedules delivery of the pending events unless already scheduled.
+         */
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        public void run() {
+            try {
+                do {
+                    ByteBuffer events = null;
+                    for (int i = 0; i <= MAX_ADDRESS; i++) {
+                        PinStatus ps = pending.getAndSet(i, null);
+                        if (ps != null && isSubscribed(i)) {
+                            if (events == null) {
+                                events = ByteBuffer.allocate((MAX_ADDRESS + 1) * RECORD_SIZE);
+                            }
+                            events.put(OP_EVENT).put((byte) i).put(value(ps)).put(STATUS_OK)
+                                    .putInt((int) ps.getVersion());
+                        }
+                    }
+                    if (events != null && session.isOpen()) {
+                        events.flip();
+                        session.sendMessage(new BinaryMessage(events));
+                    }
+                    scheduled.set(false);
+                } while (hasPending() && scheduled.compareAndSet(false, true));
+            } catch (IOException | RuntimeException e) {
+                LOG.info("Closing WebSocket session " + session.getId(), e);
+                clients.remove(session.getId());
+                try {
+                    session.close(CloseStatus.SERVER_ERROR);
+                } catch (IOException e1) {
+                    // ignore
+                }
+            }
+        }
+
+        private boolean hasPending() {
+            for (int i = 0; i <= MAX_ADDRESS; i++) {
+                if (pending.get(i) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * InputFilter.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioPin;
+import com.pi4j.io.gpio.GpioPinDigitalInput;
+import com.pi4j.io.gpio.PinDirection;
+import com.pi4j.io.gpio.PinState;
+
+import io.github.gsteckman.rpi_rest.PinStateCache.PinStatus;
+
+/**
+ * Debounces and filters glitches from the digital input pins, before their state changes reach the PinStateCache and
+ * so the subscribers to pin events. Each pin has two settings, both in microseconds and 0 when not used:
+ *
+ * <ul>
+ * <li>minPulseWidth: a new level is accepted only once the input has held it this long, so shorter pulses are
+ * discarded. Accepting a change is delayed by this time.</li>
+ * <li>stableTime: after a change is accepted, further edges are held back until the input has had no edge for this
+ * long, and then the level it settled at is accepted if it differs. The first edge of a switch's bounce is accepted
+ * without delay and the rest are collapsed.</li>
+ * </ul>
+ *
+ * The settings of a pin are read by GET /gpios/{address}/config and changed by POST /gpios/{address}/config with a JSON
+ * object holding either or both, for example {"stableTime":20000,"minPulseWidth":0}. The response includes the number
+ * of raw edges seen since the pin was first filtered, the number accepted, and the number collapsed.
+ *
+ * Held back edges are re-examined by timeouts on a single TimerWheel shared by all pins. Timeouts expire at the end of
+ * the wheel's tick, so a change may be accepted up to one tick after its deadline.
+ *
+ * @author Greg Steckman
+ *
+ */
+@RestController
+public class InputFilter {
+    private static final Log LOG = LogFactory.getLog(InputFilter.class);
+    private static final int MAX_ADDRESS = 63;
+    static final long DEFAULT_TICK = 1000; // microseconds
+    private static final int WHEEL_SIZE = 256; // slots
+    private static final String STABLE_TIME = "stableTime";
+    private static final String MIN_PULSE_WIDTH = "minPulseWidth";
+    private final GpioController gpio;
+    private final PinStateCache cache;
+    private final TimerWheel wheel;
+    private volatile PinFilter[] filters = new PinFilter[MAX_ADDRESS + 1]; // replaced, not modified, by refresh
+
+    /**
+     * Creates a new instance with a tick of DEFAULT_TICK microseconds, and sets it as the cache's filter.
+     *
+     * @param gpioCtrl
+     *            GpioController whose input pins are filtered.
+     * @param pinCache
+     *            Cache receiving the filtered state changes.
+     */
+    public InputFilter(final GpioController gpioCtrl, final PinStateCache pinCache) {
+        this(gpioCtrl, pinCache, DEFAULT_TICK);
+    }
+
+    /**
+     * Creates a new instance and sets it as the cache's filter.
+     *
+     * @param gpioCtrl
+     *            GpioController whose input pins are filtered.
+     * @param pinCache
+     *            Cache receiving the filtered state changes.
+     * @param tick
+     *            Resolution of the filter's timeouts in microseconds.
+     */
+    public InputFilter(final GpioController gpioCtrl, final PinStateCache pinCache, final long tick) {
+        gpio = gpioCtrl;
+        cache = pinCache;
+        wheel = new TimerWheel(tick, WHEEL_SIZE, "GPIO Input Filter");
+        refresh();
+        cache.setFilter(this);
+    }
+
+    /**
+     * Adds the digital input pins currently provisioned. Should be called after pins are provisioned.
+     */
+    public synchronized void refresh() {
+        PinFilter[] f = filters.clone();
+        for (GpioPin pin : gpio.getProvisionedPins()) {
+            int address = pin.getPin().getAddress();
+            if (address >= 0 && address <= MAX_ADDRESS && f[address] == null && pin instanceof GpioPinDigitalInput
+                    && pin.getMode().getDirection() == PinDirection.IN) {
+                PinStatus ps = cache.getSnapshot().getPin(address);
+                f[address] = new PinFilter(pin, ps == null ? ((GpioPinDigitalInput) pin).getState() : ps.getPinState());
+            }
+        }
+        filters = f;
+    }
+
+    /**
+     * Passes an edge of an input pin through the filter.
+     *
+     * @param pin
+     *            The pin.
+     * @param state
+     *            The pin's new state.
+     * @param nanos
+     *            System.nanoTime() of the edge.
+     * @return true if the filter has taken the edge, and will update the cache if and when the change is accepted;
+     *         false if the pin isn't filtered and the caller should update the cache.
+     */
+    boolean edge(final GpioPin pin, final PinState state, final long nanos) {
+        int address = pin.getPin().getAddress();
+        PinFilter pf = address >= 0 && address <= MAX_ADDRESS ? filters[address] : null;
+        return pf != null && pf.edge(state, nanos);
+    }
+
+    /**
+     * GET handler returning the filter settings and edge counts of an input pin.
+     *
+     * @param address
+     *            The pin.
+     * @return JSON object of the settings and counts, or a 404 status if the pin isn't a digital input.
+     */
+    @GetMapping(path = "/gpios/{address}/config")
+    public ResponseEntity<byte[]> getConfig(@PathVariable int address) {
+        LOG.debug("getConfig");
+        PinFilter pf = address >= 0 && address <= MAX_ADDRESS ? filters[address] : null;
+        if (pf == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return json(pf);
+    }
+
+    /**
+     * POST handler changing the filter settings of an input pin. Settings missing from the body are left unchanged.
+     *
+     * @param address
+     *            The pin.
+     * @param model
+     *            stableTime and minPulseWidth in microseconds.
+     * @return JSON object of the new settings and the edge counts, as for the GET handler; a 404 status if the pin
+     *         isn't a digital input, or a 400 status if a setting isn't a number of microseconds from 0 to 60 seconds.
+     */
+    @PostMapping(path = "/gpios/{address}/config")
+    public ResponseEntity<byte[]> setConfig(@PathVariable int address, @RequestBody Map<String, String> model) {
+        LOG.debug("setConfig");
+        PinFilter pf = address >= 0 && address <= MAX_ADDRESS ? filters[address] : null;
+        if (pf == null) {
+            return ResponseEntity.notFound().build();
+        }
+        long stable;
+        long minPulse;
+        try {
+            stable = parseMicros(model.get(STABLE_TIME));
+            minPulse = parseMicros(model.get(MIN_PULSE_WIDTH));
+        } catch (NumberFormatException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        pf.configure(stable, minPulse);
+        return json(pf);
+    }
+
+    /**
+     * Stops filtering; later state changes go directly to the cache. Called by Spring Framework prior to destroying the
+     * bean.
+     */
+    @PreDestroy
+    public void close() {
+        cache.setFilter(null);
+        wheel.close();
+    }
+
+    /**
+     * @return Settings in nanoseconds, or -1 where unchanged.
+     */
+    private static long parseMicros(final String s) {
+        if (s == null) {
+            return -1;
+        }
+        long us = Long.parseLong(s.trim());
+        if (us < 0 || us > TimeUnit.SECONDS.toMicros(60)) {
+            throw new NumberFormatException("Out of range: " + s);
+        }
+        return TimeUnit.MICROSECONDS.toNanos(us);
+    }
+
+    private static ResponseEntity<byte[]> json(final PinFilter pf) {
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8)
+                .body(pf.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Filter state of one pin, and its timeout for re-examining a held back edge. Changes are accepted, and written to
+     * the cache, while holding the PinFilter's lock, so they reach the cache in the order accepted.
+     */
+    private class PinFilter extends TimerWheel.Timeout {
+        private final GpioPin pin;
+        private long stableNanos;
+        private long minPulseNanos;
+        private PinState raw; // last state reported
+        private long rawTime; // System.nanoTime() of the last edge
+        private PinState accepted; // state last written to the cache
+        private long quietUntil; // changes held back until then
+        private long rawEdges;
+        private long acceptedEdges;
+
+        PinFilter(final GpioPin pin, final PinState state) {
+            this.pin = pin;
+            raw = state;
+            accepted = state;
+            quietUntil = System.nanoTime();
+        }
+
+        synchronized boolean edge(final PinState state, final long nanos) {
+            rawEdges++;
+            raw = state;
+            rawTime = nanos;
+            if (stableNanos == 0 && minPulseNanos == 0) {
+                accepted = state;
+                acceptedEdges++;
+                return false;
+            }
+            if (nanos - quietUntil < 0) {
+                quietUntil = nanos + stableNanos;
+            }
+            evaluate(nanos);
+            return true;
+        }
+
+        synchronized void configure(final long stable, final long minPulse) {
+            if (stable >= 0) {
+                stableNanos = stable;
+            }
+            if (minPulse >= 0) {
+                minPulseNanos = minPulse;
+            }
+            long now = System.nanoTime();
+            quietUntil = Math.min(quietUntil - now, stableNanos) + now;
+            evaluate(now);
+        }
+
+        @Override
+        protected synchronized void expire() {
+            evaluate(System.nanoTime());
+        }
+
+        /**
+         * Accepts the raw state if it differs and both deadlines have passed, otherwise schedules the timeout for the
+         * later of them.
+         */
+        private void evaluate(final long now) {
+            if (raw == accepted) {
+                wheel.cancel(this);
+                return;
+            }
+            long deadline = rawTime + minPulseNanos;
+            if (quietUntil - deadline > 0) {
+                deadline = quietUntil;
+            }
+            if (now - deadline < 0) {
+                wheel.schedule(this, deadline);
+                return;
+            }
+            accepted = raw;
+            acceptedEdges++;
+            quietUntil = now + stableNanos;
+            cache.update(pin, accepted);
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder(160);
+            sb.append("{\"address\":").append(pin.getPin().getAddress());
+            sb.append(",\"").append(STABLE_TIME).append("\":").append(TimeUnit.NANOSECONDS.toMicros(stableNanos));
+            sb.append(",\"").append(MIN_PULSE_WIDTH).append("\":").append(TimeUnit.NANOSECONDS.toMicros(minPulseNanos));
+            sb.append(",\"rawEdges\":").append(rawEdges);
+            sb.append(",\"acceptedEdges\":").append(acceptedEdges);
+            sb.append(",\"collapsedEdges\":").append(rawEdges - acceptedEdges);
+            return sb.append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * NotifyConnectionPool.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Pool of persistent HTTP connections used to send GENA NOTIFY requests, keyed by the subscriber's address. A
+ * connection is returned to the pool after its response has been fully read, provided the subscriber didn't ask for it
+ * to be closed, and is reused for the next event to the same address. Connections idle for longer than the idle
+ * timeout are closed by a background timer, which should be shorter than the subscribers' own keep-alive timeouts.
+ *
+ * @author Greg Steckman
+ *
+ */
+public class NotifyConnectionPool {
+    private static final Log LOG = LogFactory.getLog(NotifyConnectionPool.class);
+    private static final int MAX_IDLE_PER_KEY = 2;
+    private static final int MAX_HEADER_LINE = 8192;
+    private final int connectTimeout;
+    private final int soTimeout;
+    private final long idleTimeout;
+    private final Map<InetSocketAddress, Deque<Connection>> idle =
+            new ConcurrentHashMap<InetSocketAddress, Deque<Connection>>();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+    private final AtomicLong connectNanos = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final Timer reaper = new Timer("NOTIFY Connection Reaper", true);
+
+    /**
+     * Creates a new pool.
+     *
+     * @param connectTimeout
+     *            Timeout in ms for establishing a new connection.
+     * @param soTimeout
+     *            Timeout in ms for reading a response.
+     * @param idleTimeout
+     *            Time in ms after which an unused connection is closed.
+     */
+    public NotifyConnectionPool(final int connectTimeout, final int soTimeout, final long idleTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.soTimeout = soTimeout;
+        this.idleTimeout = idleTimeout;
+        reaper.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, idleTimeout, idleTimeout);
+    }
+
+    /**
+     * Returns an idle pooled connection to the host and port if one is available, otherwise opens a new connection.
+     * The connection must be passed to release when no longer in use.
+     *
+     * @param host
+     *            Host name or address.
+     * @param port
+     *            TCP port.
+     * @return An open connection.
+     * @throws IOException
+     *             If a new connection can't be established.
+     */
+    public Connection acquire(final String host, final int port) throws IOException {
+        return acquire(new InetSocketAddress(host, port));
+    }
+
+    /**
+     * Returns an idle pooled connection to the address if one is available, otherwise opens a new connection. The
+     * connection must be passed to release when no longer in use.
+     *
+     * @param address
+     *            Resolved address and port of the host.
+     * @return An open connection.
+     * @throws IOException
+     *             If a new connection can't be established.
+     */
+    public Connection acquire(final InetSocketAddress address) throws IOException {
+        InetSocketAddress key = address;
+        Deque<Connection> q = idle.get(key);
+        if (q != null) {
+            long now = System.currentTimeMillis();
+            synchronized (q) {
+                Connection c;
+                while ((c = q.pollFirst()) != null) {
+                    if (now - c.lastUsed < idleTimeout && c.channel.isOpen()) {
+                        reuses.incrementAndGet();
+                        c.reused = true;
+                        return c;
+                    }
+                    evictions.incrementAndGet();
+                    c.close();
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        SocketChannel ch = SocketChannel.open();
+        try {
+            Socket sock = ch.socket();
+            sock.connect(address, connectTimeout);
+            sock.setSoTimeout(soTimeout);
+            sock.setTcpNoDelay(true);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        connectNanos.addAndGet(System.nanoTime() - start);
+        connects.incrementAndGet();
+        return new Connection(key, ch);
+    }
+
+    /**
+     * Returns a connection to the pool, or closes it.
+     *
+     * @param c
+     *            Connection obtained from acquire.
+     * @param reusable
+     *            true if the last response was fully read and the connection may carry another request.
+     */
+    public void release(final Connection c, final boolean reusable) {
+        if (!reusable) {
+            c.close();
+            return;
+        }
+        c.lastUsed = System.currentTimeMillis();
+        c.reused = false;
+        Deque<Connection> q = idle.get(c.key);
+        if (q == null) {
+            idle.putIfAbsent(c.key, new ArrayDeque<Connection>());
+            q = idle.get(c.key);
+        }
+        synchronized (q) {
+            if (q.size() < MAX_IDLE_PER_KEY) {
+                q.addFirst(c);
+                return;
+            }
+        }
+        c.close();
+    }
+
+    /**
+     * Closes connections that have been idle longer than the idle timeout.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Deque<Connection>> it = idle.values().iterator(); it.hasNext();) {
+            Deque<Connection> q = it.next();
+            synchronized (q) {
+                for (Iterator<Connection> ci = q.iterator(); ci.hasNext();) {
+                    Connection c = ci.next();
+                    if (now - c.lastUsed >= idleTimeout) {
+                        ci.remove();
+                        evictions.incrementAndGet();
+                        c.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops the idle connection timer.
+     */
+    public void close() {
+        reaper.cancel();
+        for (Deque<Connection> q : idle.values()) {
+            synchronized (q) {
+                for (Connection c : q) {
+                    c.close();
+                }
+                q.clear();
+            }
+        }
+    }
+
+    /**
+     * @return The number of new connections established.
+     */
+    public long getConnectCount() {
+        return connects.get();
+    }
+
+    /**
+     * @return The number of times a pooled connection was reused.
+     */
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    /**
+     * @return The fraction of acquired connections that were reused, from 0 to 1.
+     */
+    public double getReuseRate() {
+        long r = reuses.get();
+        long total = r + connects.get();
+        return total == 0 ? 0 : (double) r / total;
+    }
+
+    /**
+     * @return The mean time to establish a new connection, in ms.
+     */
+    public double getAverageConnectMillis() {
+        long n = connects.get();
+        return n == 0 ? 0 : connectNanos.get() / 1e6 / n;
+    }
+
+    /**
+     * @return The number of idle connections closed because they timed out or were found closed.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * A connection to a subscriber.
+     */
+    public static class Connection {
+        private final InetSocketAddress key;
+        private final SocketChannel channel;
+        private final InputStream in;
+        private long lastUsed;
+        private boolean reused;
+
+        private Connection(final InetSocketAddress key, final SocketChannel channel) throws IOException {
+            this.key = key;
+            this.channel = channel;
+            // the socket's stream, unlike the channel, honors the read timeout
+            in = new BufferedInputStream(channel.socket().getInputStream());
+        }
+
+        /**
+         * @return true if this connection was taken from the pool rather than newly established.
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Writes the contents of the buffers, in order, with gathering writes.
+         *
+         * @param buffers
+         *            The buffers to write.
+         * @throws IOException
+         *             If an exception occurs writing to the socket.
+         */
+        public void write(final ByteBuffer[] buffers) throws IOException {
+            int i = 0;
+            while (i < buffers.length) {
+                channel.write(buffers, i, buffers.length - i);
+                while (i < buffers.length && !buffers[i].hasRemaining()) {
+                    i++;
+                }
+            }
+        }
+
+        /**
+         * Reads an HTTP response, discarding any body.
+         *
+         * @return The response, giving the status code and whether the connection may be reused.
+         * @throws IOException
+         *             If the response can't be read or is malformed.
+         */
+        public Response readResponse() throws IOException {
+            String status = readLine();
+            if (status == null) {
+                throw new IOException("Connection closed before response");
+            }
+            String[] parts = status.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line: " + status);
+            }
+            int code;
+            try {
+                code = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed status line: " + status);
+            }
+            boolean keepAlive = "HTTP/1.1".equals(parts[0]);
+            long length = -1;
+            String line;
+            while ((line = readLine()) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        length = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed Content-Length: " + value);
+                    }
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    keepAlive = value.equalsIgnoreCase("keep-alive")
+                            || (keepAlive && !value.equalsIgnoreCase("close"));
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    keepAlive = false; // body length unknown without decoding; don't reuse
+                }
+            }
+            if (line == null) {
+                throw new IOException("Connection closed in response headers");
+            }
+            if (length > 0) {
+                long skipped = 0;
+                while (skipped < length) {
+                    long n = in.skip(length - skipped);
+                    if (n <= 0) {
+                        if (in.read() < 0) {
+                            throw new IOException("Connection closed in response body");
+                        }
+                        n = 1;
+                    }
+                    skipped += n;
+                }
+            } else if (length < 0) {
+                keepAlive = false; // body delimited by connection close
+            }
+            return new Response(code, keepAlive);
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c == '\n') {
+                    int len = sb.length();
+                    if (len > 0 && sb.charAt(len - 1) == '\r') {
+                        sb.setLength(len - 1);
+                    }
+                    return sb.toString();
+                }
+                if (sb.length() >= MAX_HEADER_LINE) {
+                    throw new IOException("Response header line too long");
+                }
+                sb.append((char) c);
+            }
+            return sb.length() == 0 ? null : sb.toString();
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("Exception closing connection", e);
+            }
+        }
+    }
+
+    /**
+     * Status of a response read from a connection.
+     */
+    public static class Response {
+        private final int status;
+        private final boolean keepAlive;
+
+        private Response(final int status, final boolean keepAlive) {
+            this.status = status;
+            this.keepAlive = keepAlive;
+        }
+
+        /**
+         * @return The HTTP status code.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return true if the connection may be reused for another request.
+         */
+        public boolean isKeepAlive() {
+            return keepAlive;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * NotifyEncoder.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes GENA NOTIFY requests for one subscription and callback URL as a set of buffers suitable for a gathering
+ * write. The request is assembled from four parts:
+ *
+ * <ol>
+ * <li>the request line and the HOST, NT, NTS and SID headers, followed by "SEQ: ", which are fixed for the
+ * subscription and callback URL and encoded once when the encoder is created;</li>
+ * <li>the SEQ value and line end, written into a reused buffer for each request;</li>
+ * <li>the CONTENT-TYPE and CONTENT-LENGTH headers and the blank line ending the headers; and</li>
+ * <li>the body,</li>
+ * </ol>
+ *
+ * the last two of which are encoded once per event by the Event constructor and shared by all subscriptions. No
+ * formatting or copying of the message takes place per request. An encoder is not thread-safe.
+ *
+ * @author Greg Steckman
+ *
+ */
+public class NotifyEncoder {
+    private static final int MAX_DIGITS = 10; // SEQ is a 32 bit unsigned value
+    private final ByteBuffer prefix;
+    private final byte[] seqBytes = new byte[MAX_DIGITS + 2];
+    private final ByteBuffer seq = ByteBuffer.wrap(seqBytes);
+    private final ByteBuffer[] buffers = new ByteBuffer[4];
+    private Event event;
+
+    /**
+     * Creates an encoder for requests to the provided callback URL.
+     *
+     * @param url
+     *            The subscriber's callback URL.
+     * @param sid
+     *            The subscription ID, without the "uuid:" prefix.
+     */
+    public NotifyEncoder(final URL url, final String sid) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("NOTIFY ").append(path).append(" HTTP/1.1\r\n");
+        sb.append("HOST: ").append(url.getHost()).append(':').append(port).append("\r\n");
+        sb.append("NT: upnp:event\r\n");
+        sb.append("NTS: upnp:propchange\r\n");
+        sb.append("SID: uuid:").append(sid).append("\r\n");
+        sb.append("SEQ: ");
+        prefix = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        buffers[0] = prefix;
+        buffers[1] = seq;
+    }
+
+    /**
+     * Prepares the buffers holding a request. The buffers remain valid until the next call.
+     *
+     * @param e
+     *            The event to be sent.
+     * @param eventKey
+     *            The SEQ value.
+     * @return The buffers to be written, in order.
+     */
+    public ByteBuffer[] encode(final Event e, final long eventKey) {
+        if (e != event) {
+            // views of the shared event bytes, with a position private to this encoder
+            buffers[2] = ByteBuffer.wrap(e.head);
+            buffers[3] = ByteBuffer.wrap(e.body);
+            event = e;
+        } else {
+            buffers[2].clear();
+            buffers[3].clear();
+        }
+        prefix.clear();
+
+        int pos = seqBytes.length;
+        seqBytes[--pos] = '\n';
+        seqBytes[--pos] = '\r';
+        long v = eventKey;
+        do {
+            seqBytes[--pos] = (byte) ('0' + (int) (v % 10));
+            v /= 10;
+        } while (v != 0);
+        seq.limit(seqBytes.length).position(pos);
+        return buffers;
+    }
+
+    /**
+     * An event to be sent to subscribers, holding the encoded headers describing the body and the encoded body.
+     */
+    public static final class Event {
+        private final byte[] head;
+        private final byte[] body;
+
+        /**
+         * Encodes an event.
+         *
+         * @param contentType
+         *            The content type of the message body.
+         * @param body
+         *            The content for the message body.
+         */
+        public Event(final String contentType, final String body) {
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+            head = ("CONTENT-TYPE: " + contentType + "\r\nCONTENT-LENGTH: " + this.body.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return The size of the encoded body in bytes.
+         */
+        public int getContentLength() {
+            return body.length;
+        }
+    }
+}
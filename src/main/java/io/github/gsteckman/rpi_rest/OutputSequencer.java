@@ -0,0 +1,550 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * OutputSequencer.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioPin;
+import com.pi4j.io.gpio.GpioPinDigitalOutput;
+import com.pi4j.io.gpio.Pin;
+import com.pi4j.io.gpio.PinMode;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+
+/**
+ * Plays timed patterns on the digital output pins, so that clients wanting a blink or a pulse upload the pattern once
+ * rather than timing a series of POST requests across the network. A pattern is a list of steps, each setting the
+ * pins of a mask of BCM addresses to a state and then waiting a delay, played a number of times. For example:
+ *
+ * <pre>
+ * POST /gpios/sequences
+ * {"repeat":10,"steps":[{"mask":"0x10","state":"HIGH","delay":500000},{"mask":16,"state":"LOW","delay":500000}]}
+ * </pre>
+ *
+ * blinks pin 4 ten times at 1 Hz. Masks are numbers, or strings in decimal or hexadecimal with a 0x prefix; delays are
+ * in microseconds; repeat is the number of times the steps are played, 0 for until cancelled, and defaults to 1. A
+ * pattern played more than once must last at least MIN_PERIOD. A pattern may only use provisioned digital output pins,
+ * and not those of another running sequence or of the SoftwarePwm. The pins of a running sequence are reserved in the
+ * PinLocks, so other writers refuse to write them.
+ *
+ * Each sequence is given an id, and can be inspected by GET /gpios/sequences/{id} and cancelled by DELETE
+ * /gpios/sequences/{id}; GET /gpios/sequences lists the running sequences and the last few that ended. The pins keep
+ * the state they had when the sequence ended.
+ *
+ * All sequences are played by a single thread. The time of each step is computed from that of the previous step, so
+ * the timing doesn't drift, and the thread sleeps until SPIN_THRESHOLD before a step and then spins, so steps aren't
+ * delayed by the granularity of sleeping. Steps of different sequences falling due together are written in one pass,
+ * with one GpioController call per GPIO bank and state, holding the PinLocks of the pins and publishing one snapshot;
+ * a sequence that is late plays one step per pass until it catches up, so none of its edges are lost. The pass is
+ * worked out while holding the sequencer's monitor, into buffers allocated once, and written after releasing it, so
+ * that requests aren't held up by the GPIO writes; cancelling a sequence waits for a write of its pins.
+ *
+ * @author Greg Steckman
+ *
+ */
+@RestController
+public class OutputSequencer {
+    private static final Log LOG = LogFactory.getLog(OutputSequencer.class);
+    private static final int MAX_ADDRESS = 63;
+    private static final int BANK_SIZE = 32; // BCM GPIO pins per bank (register)
+    static final int MAX_STEPS = 1024;
+    static final long MAX_DELAY = TimeUnit.SECONDS.toMicros(3600);
+    static final long MIN_PERIOD = 1000; // microseconds, of a pattern played more than once
+    static final long SPIN_THRESHOLD = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final int MAX_ENDED = 16; // ended sequences retained for inspection
+    private static final int BANKS = MAX_ADDRESS / BANK_SIZE + 1;
+    private final GpioController gpio;
+    private final PinLocks locks;
+    private final PinStateCache cache;
+    private final GpioPinDigitalOutput[] outputs = new GpioPinDigitalOutput[MAX_ADDRESS + 1]; // guarded by this
+    private final PriorityQueue<Sequence> queue = new PriorityQueue<Sequence>(); // running, guarded by this
+    private final Map<Long, Sequence> sequences = new LinkedHashMap<Long, Sequence>(); // guarded by this
+    private final List<Sequence> played = new ArrayList<Sequence>(); // in the current pass, guarded by this
+    private final Deque<Sequence> ended = new ArrayDeque<Sequence>(); // guarded by this
+    private long lastId; // guarded by this
+    private long writing; // pins being written by the thread, guarded by this
+    private boolean closed; // guarded by this
+    // the pass being written, filled under this and then read by the thread alone
+    private final int[] addresses = new int[MAX_ADDRESS + 1];
+    private int count;
+    private final GpioPinDigitalOutput[][][] buffers = new GpioPinDigitalOutput[2 * BANKS][BANK_SIZE + 1][];
+    private final GpioPinDigitalOutput[][] batch = new GpioPinDigitalOutput[2 * BANKS][]; // high, low of each bank
+    private final Map<GpioPin, PinState> states = new IdentityHashMap<GpioPin, PinState>(2 * (MAX_ADDRESS + 1));
+
+    /**
+     * Status of a sequence.
+     */
+    public enum Status {
+        RUNNING, COMPLETED, CANCELLED, FAILED
+    }
+
+    /**
+     * Creates a new sequencer and starts its thread.
+     *
+     * @param gpioCtrl
+     *            GpioController whose output pins are driven.
+     * @param pinLocks
+     *            Locks shared by all users of the GpioController.
+     * @param pinCache
+     *            Cache of pin state, which is updated as the pins are written.
+     */
+    public OutputSequencer(final GpioController gpioCtrl, final PinLocks pinLocks, final PinStateCache pinCache) {
+        gpio = gpioCtrl;
+        locks = pinLocks;
+        cache = pinCache;
+        for (GpioPinDigitalOutput[][] b : buffers) {
+            for (int n = 1; n <= BANK_SIZE; n++) {
+                b[n] = new GpioPinDigitalOutput[n];
+            }
+        }
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                OutputSequencer.this.run();
+            }
+        }, "GPIO Sequencer");
+        t.setDaemon(true);
+        t.setPriority(Thread.MAX_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * POST handler starting a sequence.
+     *
+     * @param model
+     *            The pattern, as described for the class.
+     * @return JSON object describing the new sequence, with a 201 status and its URI in the Location header; a 400
+     *         status if the pattern is invalid, or a 409 status if it uses a reserved pin, such as one of a running
+     *         sequence or driven by the SoftwarePwm.
+     */
+    @PostMapping(path = "/gpios/sequences")
+    public ResponseEntity<byte[]> startSequence(@RequestBody Map<String, Object> model) {
+        LOG.debug("startSequence");
+        Sequence s;
+        try {
+            s = parse(model);
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Invalid sequence: " + e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        synchronized (this) {
+            if (closed) {
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+            }
+            for (int a = 0; a <= MAX_ADDRESS; a++) {
+                if ((s.pins & (1L << a)) != 0) {
+                    Pin p = RaspiBcmPin.getPinByAddress(a);
+                    GpioPin pin = p == null ? null : gpio.getProvisionedPin(p);
+                    if (pin == null || !pin.isMode(PinMode.DIGITAL_OUTPUT)) {
+                        return ResponseEntity.badRequest().build();
+                    }
+                    outputs[a] = (GpioPinDigitalOutput) pin;
+                }
+            }
+            if (!locks.reserve(s.pins)) {
+                return ResponseEntity.status(HttpStatus.CONFLICT).build();
+            }
+            s.id = ++lastId;
+            s.due = System.nanoTime();
+            sequences.put(s.id, s);
+            queue.add(s);
+            notifyAll();
+            return ResponseEntity.created(URI.create("/gpios/sequences/" + s.id))
+                    .contentType(MediaType.APPLICATION_JSON_UTF8).body(bytes(s.toString()));
+        }
+    }
+
+    /**
+     * GET handler listing the running sequences and the last MAX_ENDED that ended.
+     *
+     * @return JSON array of objects describing the sequences, as for the GET /gpios/sequences/{id} handler.
+     */
+    @GetMapping(path = "/gpios/sequences")
+    public synchronized ResponseEntity<byte[]> getSequences() {
+        LOG.debug("getSequences");
+        StringBuilder sb = new StringBuilder(256).append('[');
+        for (Sequence s : sequences.values()) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            s.append(sb);
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(bytes(sb.append(']').toString()));
+    }
+
+    /**
+     * GET handler describing a sequence.
+     *
+     * @param id
+     *            Id of the sequence.
+     * @return JSON object with the sequence's id, status, repeat count, the iteration and step to be played next, the
+     *         steps, and the largest lateness of a step in microseconds; or a 404 status if there's no such sequence.
+     */
+    @GetMapping(path = "/gpios/sequences/{id}")
+    public synchronized ResponseEntity<byte[]> getSequence(@PathVariable long id) {
+        LOG.debug("getSequence");
+        Sequence s = sequences.get(id);
+        if (s == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(bytes(s.toString()));
+    }
+
+    /**
+     * DELETE handler cancelling a sequence. Once it returns no more steps of the sequence are played, waiting for a
+     * step being written to complete.
+     *
+     * @param id
+     *            Id of the sequence.
+     * @return JSON object describing the sequence, or a 404 status if there's no such sequence.
+     */
+    @DeleteMapping(path = "/gpios/sequences/{id}")
+    public synchronized ResponseEntity<byte[]> cancelSequence(@PathVariable long id) {
+        LOG.debug("cancelSequence");
+        Sequence s = sequences.get(id);
+        if (s == null) {
+            return ResponseEntity.notFound().build();
+        }
+        if (s.status == Status.RUNNING) {
+            queue.remove(s);
+            end(s, Status.CANCELLED);
+            try {
+                while ((writing & s.pins) != 0) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(bytes(s.toString()));
+    }
+
+    /**
+     * Cancels all sequences and stops the thread. Called by Spring Framework prior to destroying the bean.
+     */
+    @PreDestroy
+    public synchronized void close() {
+        closed = true;
+        while (!queue.isEmpty()) {
+            end(queue.poll(), Status.CANCELLED);
+        }
+        notifyAll();
+    }
+
+    private void run() {
+        while (true) {
+            long due;
+            synchronized (this) {
+                try {
+                    while (!closed && (queue.isEmpty() || queue.peek().due - System.nanoTime() > SPIN_THRESHOLD)) {
+                        if (queue.isEmpty()) {
+                            wait();
+                        } else {
+                            TimeUnit.NANOSECONDS.timedWait(this,
+                                    queue.peek().due - System.nanoTime() - SPIN_THRESHOLD);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+                due = queue.peek().due;
+            }
+            while (System.nanoTime() - due < 0) {
+                // spin for the last SPIN_THRESHOLD ns
+            }
+            long pins;
+            synchronized (this) {
+                pins = play(System.nanoTime());
+                writing = pins;
+            }
+            if (pins != 0) {
+                boolean written = write();
+                synchronized (this) {
+                    writing = 0;
+                    if (!written) {
+                        fail(pins);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Plays the steps due by the specified time, at most one of each sequence, into the buffers of the pass to be
+     * written.
+     *
+     * @return The pins of the sequences played, or 0 if there's nothing to write.
+     */
+    private long play(final long now) {
+        long high = 0;
+        long low = 0;
+        long pins = 0;
+        while (!queue.isEmpty() && queue.peek().due - now <= 0) {
+            Sequence s = queue.poll();
+            s.maxLate = Math.max(s.maxLate, now - s.due);
+            if (s.step == s.masks.length) {
+                s.step = 0;
+                s.iteration++;
+                if (s.repeat > 0 && s.iteration == s.repeat) {
+                    end(s, Status.COMPLETED);
+                    continue;
+                }
+            }
+            long m = s.masks[s.step];
+            if (s.high[s.step]) {
+                high |= m;
+                low &= ~m;
+            } else {
+                low |= m;
+                high &= ~m;
+            }
+            pins |= s.pins;
+            s.due += s.delays[s.step];
+            s.step++;
+            played.add(s);
+        }
+        // a late sequence plays its next step in the next pass, rather than losing the edges of this one
+        queue.addAll(played);
+        played.clear();
+        if ((high | low) == 0) {
+            return 0;
+        }
+        count = 0;
+        for (int a = 0; a <= MAX_ADDRESS; a++) {
+            if (((high | low) & (1L << a)) != 0) {
+                addresses[count++] = a;
+            }
+        }
+        states.clear();
+        for (int bank = 0; bank < BANKS; bank++) {
+            batch[2 * bank] = pins(high, bank, buffers[2 * bank], PinState.HIGH);
+            batch[2 * bank + 1] = pins(low, bank, buffers[2 * bank + 1], PinState.LOW);
+        }
+        return pins;
+    }
+
+    /**
+     * @return The pins of a mask in a bank, in the buffer of their number, or null if none, after adding them to the
+     *         states map.
+     */
+    private GpioPinDigitalOutput[] pins(final long mask, final int bank, final GpioPinDigitalOutput[][] buffer,
+            final PinState state) {
+        int bits = (int) (mask >>> (bank * BANK_SIZE));
+        if (bits == 0) {
+            return null;
+        }
+        GpioPinDigitalOutput[] p = buffer[Integer.bitCount(bits)];
+        int n = 0;
+        for (int i = 0; i < BANK_SIZE; i++) {
+            if ((bits & (1 << i)) != 0) {
+                p[n] = outputs[bank * BANK_SIZE + i];
+                states.put(p[n++], state);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Writes the pass worked out by play, with at most one GpioController call per GPIO bank and level. The PinLocks
+     * are taken one at a time in ascending order, as by PinLocks.lock(int...), without allocating.
+     *
+     * @return false if the pins couldn't be written.
+     */
+    private boolean write() {
+        int locked = 0;
+        try {
+            for (; locked < count; locked++) {
+                locks.lock(addresses[locked]);
+            }
+            for (int i = 0; i < batch.length; i++) {
+                if (batch[i] != null) {
+                    if (i % 2 == 0) {
+                        gpio.high(batch[i]);
+                    } else {
+                        gpio.low(batch[i]);
+                    }
+                }
+            }
+            cache.update(states);
+            return true;
+        } catch (RuntimeException e) {
+            LOG.warn("Error writing sequence", e);
+            return false;
+        } finally {
+            while (locked > 0) {
+                locks.unlock(addresses[--locked]);
+            }
+        }
+    }
+
+    /**
+     * Ends the running sequences using any of the specified pins, which couldn't be written.
+     */
+    private void fail(final long pins) {
+        for (Sequence s : queue.toArray(new Sequence[queue.size()])) {
+            if ((s.pins & pins) != 0) {
+                queue.remove(s);
+                end(s, Status.FAILED);
+            }
+        }
+    }
+
+    private void end(final Sequence s, final Status status) {
+        s.status = status;
+        locks.release(s.pins);
+        ended.add(s);
+        if (ended.size() > MAX_ENDED) {
+            sequences.remove(ended.poll().id);
+        }
+    }
+
+    /**
+     * Parses and validates a pattern.
+     *
+     * @throws IllegalArgumentException
+     *             If the pattern is invalid.
+     */
+    private static Sequence parse(final Map<String, Object> model) {
+        Object steps = model.get("steps");
+        if (!(steps instanceof List) || ((List<?>) steps).isEmpty() || ((List<?>) steps).size() > MAX_STEPS) {
+            throw new IllegalArgumentException("steps must be a list of 1 to " + MAX_STEPS + " steps");
+        }
+        List<?> l = (List<?>) steps;
+        Sequence s = new Sequence(l.size());
+        s.repeat = model.get("repeat") == null ? 1 : (int) parseLong(model.get("repeat"), 0, Integer.MAX_VALUE);
+        long period = 0;
+        for (int i = 0; i < l.size(); i++) {
+            if (!(l.get(i) instanceof Map)) {
+                throw new IllegalArgumentException("Step " + i + " isn't an object");
+            }
+            Map<?, ?> step = (Map<?, ?>) l.get(i);
+            s.masks[i] = parseLong(step.get("mask"), Long.MIN_VALUE, Long.MAX_VALUE);
+            String state = String.valueOf(step.get("state"));
+            if (!state.equalsIgnoreCase("HIGH") && !state.equalsIgnoreCase("LOW")) {
+                throw new IllegalArgumentException("Step " + i + " state must be HIGH or LOW");
+            }
+            s.high[i] = state.equalsIgnoreCase("HIGH");
+            long delay = parseLong(step.get("delay"), 0, MAX_DELAY);
+            s.delays[i] = TimeUnit.MICROSECONDS.toNanos(delay);
+            s.pins |= s.masks[i];
+            period += delay;
+        }
+        if (s.pins == 0) {
+            throw new IllegalArgumentException("No pins");
+        }
+        if (s.repeat != 1 && period < MIN_PERIOD) {
+            throw new IllegalArgumentException("A pattern played more than once must last " + MIN_PERIOD + " us");
+        }
+        return s;
+    }
+
+    private static long parseLong(final Object o, final long min, final long max) {
+        if (o == null) {
+            throw new IllegalArgumentException("Missing value");
+        }
+        long v = o instanceof Number ? ((Number) o).longValue() : Long.decode(o.toString().trim());
+        if (v < min || v > max) {
+            throw new IllegalArgumentException("Out of range: " + o);
+        }
+        return v;
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A pattern and the progress of playing it. Guarded by the OutputSequencer.
+     */
+    private static class Sequence implements Comparable<Sequence> {
+        private long id;
+        private final long[] masks;
+        private final boolean[] high;
+        private final long[] delays; // ns
+        private int repeat;
+        private long pins; // union of the masks
+        private Status status = Status.RUNNING;
+        private int iteration;
+        private int step; // next to be played
+        private long due; // System.nanoTime() at which the next step is played
+        private long maxLate; // ns
+
+        Sequence(final int steps) {
+            masks = new long[steps];
+            high = new boolean[steps];
+            delays = new long[steps];
+        }
+
+        public int compareTo(final Sequence o) {
+            return Long.signum(due - o.due);
+        }
+
+        void append(final StringBuilder sb) {
+            sb.append("{\"id\":").append(id);
+            sb.append(",\"status\":\"").append(status).append('"');
+            sb.append(",\"repeat\":").append(repeat);
+            sb.append(",\"iteration\":").append(iteration);
+            sb.append(",\"step\":").append(step);
+            sb.append(",\"maxLateness\":").append(TimeUnit.NANOSECONDS.toMicros(maxLate));
+            sb.append(",\"steps\":[");
+            for (int i = 0; i < masks.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append("{\"mask\":").append(masks[i]);
+                sb.append(",\"state\":\"").append(high[i] ? "HIGH" : "LOW");
+                sb.append("\",\"delay\":").append(TimeUnit.NANOSECONDS.toMicros(delays[i])).append('}');
+            }
+            sb.append("]}");
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(128 + 48 * masks.length);
+            append(sb);
+            return sb.toString();
+        }
+    }
+}
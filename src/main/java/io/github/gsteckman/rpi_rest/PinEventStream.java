@@ -0,0 +1,369 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * PinEventStream.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import io.github.gsteckman.rpi_rest.PinStateCache.PinStatus;
+
+/**
+ * Streams GPIO pin state changes to clients as Server-Sent Events. A client connecting to /gpios/stream first receives
+ * a "snapshot" event containing the state of all pins, followed by a "pin" event for each pin state change. The event
+ * data is the same JSON as returned by the GET /gpios and GET /gpios/{address} handlers, and the event id is the
+ * version of the PinStateCache snapshot.
+ *
+ * Changes are received from the PinStateCache on the GPIO event or request thread and handed to a small shared thread
+ * pool for delivery, so a slow client never blocks the thread that changed the pin. Each client has a buffer holding at
+ * most one pending change per pin; if a pin changes again before the previous change is delivered the older change is
+ * replaced (coalesced).
+ *
+ * SseEmitter.send blocks until the container has written the event, so a watchdog thread drops any client whose write
+ * has been in progress for longer than the stall timeout. The client's delivery thread is interrupted and an extra
+ * delivery thread is started in its place until the write returns, so that a stalled client can't hold up the
+ * others. Neither the listener nor the watchdog ever calls into an emitter that may be writing; a dropped client's
+ * stream is completed by its own delivery task.
+ *
+ * @author Greg Steckman
+ *
+ */
+@RestController
+public class PinEventStream implements PinStateCache.Listener {
+    private static final Log LOG = LogFactory.getLog(PinEventStream.class);
+    private static final long TIMEOUT = 1800000; // ms, after which the client is expected to reconnect
+    private static final long MAX_STALL = 10000; // ms
+    private static final int MAX_REPLACED = 16; // stuck delivery threads replaced at any one time
+    private static final int PINS = 64;
+    private final PinStateCache cache;
+    private final long maxStall;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService watchdog;
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private int replacements; // guarded by executor
+    private volatile boolean closed;
+
+    /**
+     * Creates a new instance streaming changes from the provided cache, delivering events with two threads.
+     *
+     * @param pinCache
+     *            Source of pin state changes.
+     */
+    public PinEventStream(final PinStateCache pinCache) {
+        this(pinCache, 2);
+    }
+
+    /**
+     * Creates a new instance streaming changes from the provided cache.
+     *
+     * @param pinCache
+     *            Source of pin state changes.
+     * @param threads
+     *            Number of threads used to deliver events to clients.
+     */
+    public PinEventStream(final PinStateCache pinCache, final int threads) {
+        this(pinCache, threads, MAX_STALL);
+    }
+
+    /**
+     * Creates a new instance streaming changes from the provided cache.
+     *
+     * @param pinCache
+     *            Source of pin state changes.
+     * @param threads
+     *            Number of threads used to deliver events to clients.
+     * @param stallTimeout
+     *            Time in ms a write to a client may take before the client is dropped.
+     */
+    public PinEventStream(final PinStateCache pinCache, final int threads, final long stallTimeout) {
+        cache = pinCache;
+        maxStall = stallTimeout;
+        executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger n = new AtomicInteger();
+
+                    public Thread newThread(final Runnable r) {
+                        Thread t = new Thread(r, "SSE Delivery " + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "SSE Watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(10, maxStall / 4);
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (Client c : clients) {
+                    if (c.isStalled(now)) {
+                        expire(c);
+                    }
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        cache.addListener(this);
+    }
+
+    /**
+     * GET handler that opens an event stream.
+     *
+     * @return The SseEmitter to which events are sent.
+     */
+    @GetMapping(path = "/gpios/stream")
+    public SseEmitter stream() {
+        LOG.debug("stream");
+        return register(new SseEmitter(TIMEOUT));
+    }
+
+    /**
+     * Adds a client receiving events through the provided emitter.
+     *
+     * @param emitter
+     *            Emitter to which events are sent.
+     * @return The emitter.
+     */
+    SseEmitter register(final SseEmitter emitter) {
+        final Client c = new Client(emitter);
+        emitter.onCompletion(new Runnable() {
+            public void run() {
+                clients.remove(c);
+            }
+        });
+        emitter.onTimeout(new Runnable() {
+            public void run() {
+                clients.remove(c);
+            }
+        });
+        clients.add(c);
+        c.schedule();
+        return emitter;
+    }
+
+    /**
+     * Implements PinStateCache.Listener to queue the change for delivery to every client. Never blocks.
+     */
+    public void pinChanged(final PinStatus status) {
+        for (Client c : clients) {
+            if (c.pending.getAndSet(status.getAddress(), status) != null) {
+                coalesced.incrementAndGet();
+            }
+            c.schedule();
+        }
+    }
+
+    /**
+     * @return The number of connected clients.
+     */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * @return The number of pin changes replaced by a later change before being delivered.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return The number of clients dropped because they failed or were too slow.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Closes all streams and terminates the delivery threads. Called by Spring Framework prior to destroying the bean.
+     */
+    @PreDestroy
+    public void close() {
+        closed = true;
+        cache.removeListener(this);
+        watchdog.shutdownNow();
+        executor.shutdownNow();
+        for (Client c : clients) {
+            synchronized (c) {
+                // an emitter in the middle of a write is left to the container, which closes the connection
+                if (c.sender == null) {
+                    c.emitter.complete();
+                }
+            }
+        }
+        clients.clear();
+    }
+
+    private void drop(final Client c, final Exception e) {
+        if (clients.remove(c)) {
+            dropped.incrementAndGet();
+            LOG.info("Dropping event stream client", e);
+            c.emitter.completeWithError(e);
+        }
+    }
+
+    /**
+     * Drops a stalled client. Called from the watchdog, which must not touch an emitter that is being written.
+     */
+    private void expire(final Client c) {
+        if (!clients.remove(c)) {
+            return;
+        }
+        dropped.incrementAndGet();
+        LOG.info("Dropping event stream client that didn't accept an event within " + maxStall + " ms");
+        c.expired = true;
+        synchronized (c) {
+            if (c.sender == null) {
+                // not being delivered to, and any delivery starting now sees expired and sends nothing
+                c.emitter.completeWithError(new IOException("Client too slow"));
+                return;
+            }
+            synchronized (executor) {
+                if (replacements < MAX_REPLACED && !executor.isShutdown()) {
+                    replacements++;
+                    c.replaced = true;
+                    executor.setMaximumPoolSize(executor.getMaximumPoolSize() + 1);
+                    executor.setCorePoolSize(executor.getCorePoolSize() + 1);
+                }
+            }
+            c.sender.interrupt();
+        }
+    }
+
+    /**
+     * A connected client and its pending events.
+     */
+    private class Client implements Runnable {
+        private final SseEmitter emitter;
+        private final AtomicReferenceArray<PinStatus> pending = new AtomicReferenceArray<PinStatus>(PINS);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile long sendingSince; // 0 when not sending
+        private volatile boolean expired;
+        private boolean initial = true;
+        private Thread sender; // guarded by this
+        private boolean replaced; // guarded by this
+
+        Client(final SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        /**
+         * Schedules delivery of the pending events unless already scheduled.
+         */
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * @return true if a write to the client has been in progress for longer than the stall timeout.
+         */
+        boolean isStalled(final long now) {
+            long since = sendingSince;
+            return since != 0 && now - since > maxStall;
+        }
+
+        public void run() {
+            synchronized (this) {
+                sender = Thread.currentThread();
+            }
+            try {
+                if (initial) {
+                    initial = false;
+                    PinStateCache.Snapshot snap = cache.getSnapshot();
+                    send(SseEmitter.event().id(Long.toString(snap.getVersion())).name("snapshot")
+                            .data(new String(snap.getJson(), "UTF-8"), MediaType.APPLICATION_JSON));
+                }
+                do {
+                    for (int i = 0; i < PINS; i++) {
+                        PinStatus ps = pending.getAndSet(i, null);
+                        if (ps != null) {
+                            send(SseEmitter.event().id(Long.toString(ps.getVersion())).name("pin")
+                                    .data(ps.toString(), MediaType.APPLICATION_JSON));
+                        }
+                    }
+                    scheduled.set(false);
+                } while (hasPending() && scheduled.compareAndSet(false, true));
+            } catch (IOException | IllegalStateException e) {
+                if (!expired) {
+                    drop(this, e);
+                }
+            } finally {
+                synchronized (this) {
+                    sender = null;
+                    if (replaced) {
+                        replaced = false;
+                        synchronized (executor) {
+                            replacements--;
+                            executor.setCorePoolSize(executor.getCorePoolSize() - 1);
+                            executor.setMaximumPoolSize(executor.getMaximumPoolSize() - 1);
+                        }
+                    }
+                }
+                if (expired) {
+                    emitter.completeWithError(new IOException("Client too slow"));
+                }
+            }
+        }
+
+        private void send(final SseEmitter.SseEventBuilder event) throws IOException {
+            if (expired || closed) {
+                throw new IOException("Event stream closed");
+            }
+            sendingSince = System.currentTimeMillis();
+            try {
+                emitter.send(event);
+            } finally {
+                sendingSince = 0;
+            }
+        }
+
+        private boolean hasPending() {
+            for (int i = 0; i < PINS; i++) {
+                if (pending.get(i) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
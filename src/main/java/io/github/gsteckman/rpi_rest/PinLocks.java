@@ -0,0 +1,219 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * PinLocks.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped locks guarding access to individual GPIO pins, identified by BCM address. Operations on different pins may
+ * proceed in parallel, each holding only the lock for its own pin. Operations that affect every pin, such as
+ * provisioning or shutdown of the GpioController, acquire the global lock which excludes all per-pin operations.
+ *
+ * Typical usage for a single pin operation:
+ *
+ * <code>
+ * locks.lock(address);
+ * try {
+ *    ...
+ * } finally {
+ *    locks.unlock(address);
+ * }
+ * </code>
+ *
+ * Pins may also be reserved by a user that drives them from its own thread, such as the OutputSequencer or the
+ * SoftwarePwm. Other writers check isReserved while holding the pin's lock and refuse to write a reserved pin.
+ *
+ * @author Greg Steckman
+ *
+ */
+public class PinLocks {
+    private static final int STRIPES = 64; // must be a power of 2, and larger than the highest BCM address
+    private final ReentrantReadWriteLock global = new ReentrantReadWriteLock();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private volatile long reserved; // written holding this
+
+    /**
+     * Creates a new set of pin locks.
+     */
+    public PinLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Acquires the lock for the pin with the specified address, blocking while the global lock is held.
+     *
+     * @param address
+     *            BCM address of the pin.
+     */
+    public void lock(final int address) {
+        global.readLock().lock();
+        try {
+            stripes[index(address)].lock();
+        } catch (RuntimeException e) {
+            global.readLock().unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the lock for the pin with the specified address.
+     *
+     * @param address
+     *            BCM address of the pin.
+     */
+    public void unlock(final int address) {
+        stripes[index(address)].unlock();
+        global.readLock().unlock();
+    }
+
+    /**
+     * Acquires the locks for all of the pins with the specified addresses, in ascending order of lock so that
+     * concurrent multi-pin operations cannot deadlock.
+     *
+     * @param addresses
+     *            BCM addresses of the pins. Duplicates are permitted.
+     */
+    public void lock(final int... addresses) {
+        int[] idx = indexes(addresses);
+        global.readLock().lock();
+        int locked = 0;
+        try {
+            for (; locked < idx.length; locked++) {
+                stripes[idx[locked]].lock();
+            }
+        } catch (RuntimeException e) {
+            for (int i = locked - 1; i >= 0; i--) {
+                stripes[idx[i]].unlock();
+            }
+            global.readLock().unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the locks acquired by lock(int...) for the pins with the specified addresses.
+     *
+     * @param addresses
+     *            BCM addresses of the pins, as passed to lock(int...).
+     */
+    public void unlock(final int... addresses) {
+        int[] idx = indexes(addresses);
+        for (int i = idx.length - 1; i >= 0; i--) {
+            stripes[idx[i]].unlock();
+        }
+        global.readLock().unlock();
+    }
+
+    /**
+     * Acquires the global lock, waiting for all in-progress pin operations to complete and excluding new ones until
+     * unlockAll is called.
+     */
+    public void lockAll() {
+        global.writeLock().lock();
+    }
+
+    /**
+     * Releases the global lock.
+     */
+    public void unlockAll() {
+        global.writeLock().unlock();
+    }
+
+    /**
+     * Reserves pins for the exclusive use of the caller, unless any of them is already reserved. The reservation is
+     * made holding the locks of the pins, so once it returns no other writer of the pins is in progress, and a writer
+     * holding a pin's lock sees the reservation unchanged until it unlocks. Must not be called holding a pin lock.
+     *
+     * @param mask
+     *            Bit mask of the BCM addresses of the pins, each of which must be below STRIPES.
+     * @return true if the pins were reserved; false if any of them was already reserved, in which case none is.
+     */
+    public boolean reserve(final long mask) {
+        global.readLock().lock();
+        int locked = 0;
+        try {
+            for (; locked < STRIPES; locked++) {
+                if ((mask & (1L << locked)) != 0) {
+                    stripes[locked].lock();
+                }
+            }
+            synchronized (this) {
+                if ((reserved & mask) != 0) {
+                    return false;
+                }
+                reserved |= mask;
+                return true;
+            }
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                if ((mask & (1L << i)) != 0) {
+                    stripes[i].unlock();
+                }
+            }
+            global.readLock().unlock();
+        }
+    }
+
+    /**
+     * Releases pins reserved by reserve.
+     *
+     * @param mask
+     *            Bit mask of the BCM addresses of the pins.
+     */
+    public synchronized void release(final long mask) {
+        reserved &= ~mask;
+    }
+
+    /**
+     * @param address
+     *            BCM address of the pin.
+     * @return true if the pin is reserved.
+     */
+    public boolean isReserved(final int address) {
+        return address >= 0 && address < STRIPES && (reserved & (1L << address)) != 0;
+    }
+
+    private static int index(final int address) {
+        return address & (STRIPES - 1);
+    }
+
+    /**
+     * @return The distinct stripe indexes for the addresses, in ascending order.
+     */
+    private static int[] indexes(final int[] addresses) {
+        boolean[] used = new boolean[STRIPES];
+        int n = 0;
+        for (int a : addresses) {
+            int i = index(a);
+            if (!used[i]) {
+                used[i] = true;
+                n++;
+            }
+        }
+        int[] idx = new int[n];
+        int j = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            if (used[i]) {
+                idx[j++] = i;
+            }
+        }
+        return idx;
+    }
+}
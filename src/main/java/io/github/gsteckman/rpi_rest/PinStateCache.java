@@ -0,0 +1,400 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * PinStateCache.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioPin;
+import com.pi4j.io.gpio.GpioPinDigital;
+import com.pi4j.io.gpio.GpioPinDigitalInput;
+import com.pi4j.io.gpio.PinDirection;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+
+/**
+ * Maintains an immutable snapshot of the state of all provisioned GPIO pins. The current snapshot is published through
+ * a single volatile reference so that readers never lock or access the GPIO hardware. The snapshot is replaced when a
+ * writer reports a new pin state via the update method, or when a Pi4J state change event is received for a digital
+ * input pin. Events of input pins pass first through the InputFilter, if one is set, which may hold back or discard
+ * edges of pins configured for debouncing.
+ * 
+ * Each snapshot carries its JSON representation as UTF-8 bytes, ready to be written to an HTTP response. When a pin
+ * changes only that pin is re-encoded; the encoding of the other pins is shared with the previous snapshot.
+ *
+ * @author Greg Steckman
+ *
+ */
+public class PinStateCache implements GpioPinListenerDigital {
+    private static final Log LOG = LogFactory.getLog(PinStateCache.class);
+    private static final int MAX_ADDRESS = 63;
+    // distinguishes entity tags across restarts
+    private static final String EPOCH = Long.toHexString(System.currentTimeMillis());
+    private final GpioController gpio;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile Snapshot snapshot;
+    private volatile InputFilter filter;
+
+    /**
+     * Creates a new cache populated from the pins currently provisioned on the GpioController, and registers for state
+     * change events on its digital input pins.
+     *
+     * @param gpioCtrl
+     *            GpioController whose pins are cached.
+     */
+    public PinStateCache(final GpioController gpioCtrl) {
+        gpio = gpioCtrl;
+        refresh();
+    }
+
+    /**
+     * @return The current snapshot of all provisioned pins.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Registers a listener to be notified of each pin whose state changes.
+     *
+     * @param l
+     *            The listener.
+     */
+    public void addListener(final Listener l) {
+        listeners.add(l);
+    }
+
+    /**
+     * Removes a previously registered listener.
+     *
+     * @param l
+     *            The listener.
+     */
+    public void removeListener(final Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Sets the filter through which the state changes of input pins pass before being recorded.
+     *
+     * @param f
+     *            The filter, or null to record every state change.
+     */
+    public void setFilter(final InputFilter f) {
+        filter = f;
+    }
+
+    /**
+     * Rebuilds the snapshot from the GpioController. Should be called after pins are provisioned or unprovisioned.
+     */
+    public synchronized void refresh() {
+        PinStatus[] pins = new PinStatus[MAX_ADDRESS + 1];
+        for (GpioPin pin : gpio.getProvisionedPins()) {
+            int address = pin.getPin().getAddress();
+            if (address < 0 || address > MAX_ADDRESS) {
+                LOG.warn("Ignoring pin with out of range address " + address);
+                continue;
+            }
+            PinState state = null;
+            if (pin instanceof GpioPinDigital) {
+                state = ((GpioPinDigital) pin).getState();
+                if (pin.getMode().getDirection() == PinDirection.IN) {
+                    ((GpioPinDigitalInput) pin).removeListener(this);
+                    ((GpioPinDigitalInput) pin).addListener(this);
+                }
+            }
+            pins[address] = new PinStatus(address, pin.getMode().toString(), state, nextVersion());
+        }
+        publish(pins);
+    }
+
+    /**
+     * Records a new state for a pin and publishes a new snapshot. The pin must be provisioned.
+     *
+     * @param pin
+     *            Pin whose state changed.
+     * @param state
+     *            The new pin state.
+     */
+    public synchronized void update(final GpioPin pin, final PinState state) {
+        int address = pin.getPin().getAddress();
+        PinStatus old = snapshot.getPin(address);
+        if (old != null && state == old.state) {
+            return;
+        }
+        PinStatus[] pins = snapshot.pins.clone();
+        pins[address] = new PinStatus(address, pin.getMode().toString(), state, nextVersion());
+        publish(pins);
+        fireChanged(pins[address]);
+    }
+
+    /**
+     * Records new states for several pins and publishes them together in a single new snapshot, so that readers see
+     * either none or all of the changes. The pins must be provisioned.
+     *
+     * @param states
+     *            New state of each pin that changed.
+     */
+    public synchronized void update(final Map<GpioPin, PinState> states) {
+        PinStatus[] pins = null;
+        List<PinStatus> changed = new ArrayList<PinStatus>();
+        long version = nextVersion();
+        for (Map.Entry<GpioPin, PinState> e : states.entrySet()) {
+            GpioPin pin = e.getKey();
+            int address = pin.getPin().getAddress();
+            PinStatus old = snapshot.getPin(address);
+            if (old != null && e.getValue() == old.state) {
+                continue;
+            }
+            if (pins == null) {
+                pins = snapshot.pins.clone();
+            }
+            pins[address] = new PinStatus(address, pin.getMode().toString(), e.getValue(), version);
+            changed.add(pins[address]);
+        }
+        if (pins != null) {
+            publish(pins);
+            for (PinStatus ps : changed) {
+                fireChanged(ps);
+            }
+        }
+    }
+
+    /**
+     * Implements GpioPinListenerDigital to track the state of input pins.
+     */
+    public void handleGpioPinDigitalStateChangeEvent(final GpioPinDigitalStateChangeEvent event) {
+        InputFilter f = filter;
+        if (f == null || !f.edge(event.getPin(), event.getState(), System.nanoTime())) {
+            update(event.getPin(), event.getState());
+        }
+    }
+
+    private void fireChanged(final PinStatus ps) {
+        for (Listener l : listeners) {
+            try {
+                l.pinChanged(ps);
+            } catch (RuntimeException e) {
+                LOG.warn("Exception in pin state listener", e);
+            }
+        }
+    }
+
+    private long nextVersion() {
+        return snapshot == null ? 1 : snapshot.version + 1;
+    }
+
+    private void publish(final PinStatus[] pins) {
+        snapshot = new Snapshot(nextVersion(), pins);
+    }
+
+    /**
+     * Receives notification of pin state changes. Listeners are called synchronously, in order of change, after the
+     * snapshot containing the change is published. They are called from GPIO event and request handling threads and so
+     * must not block.
+     */
+    public interface Listener {
+        /**
+         * Called when the state of a pin changes.
+         *
+         * @param status
+         *            The new status of the pin.
+         */
+        void pinChanged(PinStatus status);
+    }
+
+    /**
+     * Immutable state of all provisioned pins at a point in time.
+     */
+    public static class Snapshot {
+        private final long version;
+        private final PinStatus[] pins;
+        private final List<PinStatus> list;
+        private final byte[] json;
+
+        private Snapshot(final long version, final PinStatus[] pins) {
+            this.version = version;
+            this.pins = pins;
+            List<PinStatus> l = new ArrayList<PinStatus>();
+            int length = 2;
+            for (PinStatus p : pins) {
+                if (p != null) {
+                    l.add(p);
+                    length += p.json.length + 1;
+                }
+            }
+            list = Collections.unmodifiableList(l);
+
+            // concatenate the already encoded pins into a JSON array
+            json = new byte[l.isEmpty() ? 2 : length - 1];
+            int pos = 0;
+            json[pos++] = '[';
+            for (PinStatus p : l) {
+                if (pos > 1) {
+                    json[pos++] = ',';
+                }
+                System.arraycopy(p.json, 0, json, pos, p.json.length);
+                pos += p.json.length;
+            }
+            json[pos] = ']';
+        }
+
+        /**
+         * @return Version number of this snapshot, incremented each time a new snapshot is published.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @param address
+         *            BCM address of the pin.
+         * @return The status of the pin, or null if the pin isn't provisioned.
+         */
+        public PinStatus getPin(final int address) {
+            if (address < 0 || address > MAX_ADDRESS) {
+                return null;
+            }
+            return pins[address];
+        }
+
+        /**
+         * @return Status of all provisioned pins, in order of address.
+         */
+        public Collection<PinStatus> getPins() {
+            return list;
+        }
+
+        /**
+         * @return Entity tag identifying this snapshot.
+         */
+        public String getETag() {
+            return "\"" + EPOCH + "-" + version + "\"";
+        }
+
+        /**
+         * @return JSON array of the status of all provisioned pins, as UTF-8 bytes. The array must not be modified.
+         */
+        public byte[] getJson() {
+            return json;
+        }
+    }
+
+    /**
+     * Immutable state of a single pin. Serialized by the REST interface as a JSON object with address, mode and (for
+     * digital pins) state attributes.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class PinStatus {
+        private final int address;
+        private final String mode;
+        private final PinState state;
+        private final long version;
+        private final String text;
+        private final byte[] json;
+
+        private PinStatus(final int address, final String mode, final PinState state, final long version) {
+            this.address = address;
+            this.mode = mode;
+            this.state = state;
+            this.version = version;
+
+            StringBuilder sb = new StringBuilder(64);
+            sb.append("{\"address\":").append(address);
+            sb.append(",\"mode\":\"").append(mode).append('"');
+            if (state != null) {
+                sb.append(",\"state\":\"").append(state.toString()).append('"');
+            }
+            sb.append('}');
+            text = sb.toString();
+            json = text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return BCM address of the pin.
+         */
+        public int getAddress() {
+            return address;
+        }
+
+        /**
+         * @return Pin mode.
+         */
+        public String getMode() {
+            return mode;
+        }
+
+        /**
+         * @return Pin state, or null if not a digital pin.
+         */
+        public String getState() {
+            return state == null ? null : state.toString();
+        }
+
+        /**
+         * @return Pin state, or null if not a digital pin.
+         */
+        @JsonIgnore
+        public PinState getPinState() {
+            return state;
+        }
+
+        /**
+         * @return Version of the snapshot in which the pin last changed.
+         */
+        @JsonIgnore
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return Entity tag identifying this version of the pin's status.
+         */
+        @JsonIgnore
+        public String getETag() {
+            return "\"" + EPOCH + "-" + address + "-" + version + "\"";
+        }
+
+        /**
+         * @return JSON object of the pin status, as UTF-8 bytes. The array must not be modified.
+         */
+        @JsonIgnore
+        public byte[] getJson() {
+            return json;
+        }
+
+        /**
+         * @return JSON object of the pin status.
+         */
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
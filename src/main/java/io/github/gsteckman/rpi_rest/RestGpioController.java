@@ -16,24 +16,7 @@ package io.github.gsteckman.rpi_rest;
  *
  */
 
-import java.util.Collection;
-
-/*
- * RestGpioController.java
- * 
- * Copyright 2017 Greg Steckman
- *
- * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at:
- *
- * http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
- * implied. See the License for the specific language governing permissions and limitations under the License.
- *
- */
-
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -41,23 +24,33 @@ import javax.annotation.PreDestroy;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.pi4j.io.gpio.GpioController;
 import com.pi4j.io.gpio.GpioPin;
-import com.pi4j.io.gpio.GpioPinDigital;
 import com.pi4j.io.gpio.GpioPinDigitalOutput;
+import com.pi4j.io.gpio.PinMode;
+import com.pi4j.io.gpio.PinState;
 import com.pi4j.io.gpio.RaspiBcmPin;
 
+import io.github.gsteckman.rpi_rest.PinStateCache.PinStatus;
+import io.github.gsteckman.rpi_rest.PinStateCache.Snapshot;
+
 /**
- * This class implements a REST interface to the Raspberry Pi GPIO. Methods that read/write the GPIO are synchronized on
- * the GpioController object so as to avoid concurrent access from multiple threads. Other users of the GpioController
- * instance should take care to prevent concurrent access with this class' instance by also synchronizing on the object
- * or with other suitable mechanisms.
+ * This class implements a REST interface to the Raspberry Pi GPIO. Methods that write a GPIO pin hold the PinLocks
+ * lock for that pin's BCM address, so operations on different pins may proceed concurrently while operations on the
+ * same pin are serialized. Shutdown holds the global lock. Reads are served from a PinStateCache, which writes keep
+ * up to date, as pre-encoded JSON tagged with an ETag so that unchanged state can be answered with 304 Not Modified.
+ * Other users of the GpioController instance should take care to prevent concurrent access with this class' instance
+ * by using the same PinLocks object.
  * 
  * @author Greg Steckman
  *
@@ -66,116 +59,220 @@ import com.pi4j.io.gpio.RaspiBcmPin;
 public class RestGpioController {
     private static final Log LOG = LogFactory.getLog(RestGpioController.class);
     private GpioController gpio;
+    private PinLocks locks;
+    private PinStateCache cache;
 
     /**
-     * Creates a new instance using the specified GpioController.
+     * Creates a new instance using the specified GpioController and a private set of pin locks and pin state cache.
      * 
      * @param gpioCtrl
      *            GpioController to be used for controlling GPIO resources.
      */
     public RestGpioController(final GpioController gpioCtrl) {
+        this(gpioCtrl, new PinLocks(), new PinStateCache(gpioCtrl));
+    }
+
+    /**
+     * Creates a new instance using the specified GpioController, pin locks and pin state cache.
+     * 
+     * @param gpioCtrl
+     *            GpioController to be used for controlling GPIO resources.
+     * @param pinLocks
+     *            Locks shared by all users of the GpioController.
+     * @param pinCache
+     *            Cache of pin state, which is updated by this class when pins are written.
+     */
+    public RestGpioController(final GpioController gpioCtrl, final PinLocks pinLocks, final PinStateCache pinCache) {
         gpio = gpioCtrl;
+        locks = pinLocks;
+        cache = pinCache;
     }
 
     /**
      * GPIOS POST handler. POST parameter named "state" should be provided in the POST body to set the value either
      * "HIGH" or "LOW"
      * 
-     * @param pinName
-     *            Name of Pin to be set/cleared
-     * @param state
-     *            High=set, Low=clear
-     * @return The GPIO state
+     * @param address
+     *            BCM address of the pin to be set/cleared
+     * @param model
+     *            POST body; its "state" entry is "HIGH" to set, anything else to clear
+     * @return The GPIO state as JSON, or a 409 status if the pin is reserved by the OutputSequencer or SoftwarePwm
      */
     @PostMapping(path = "/gpios/{address}")
-    public Map<String, Object> setGpio(@PathVariable int address, @RequestBody Map<String, String> model) {
+    public ResponseEntity<byte[]> setGpio(@PathVariable int address, @RequestBody Map<String, String> model) {
         LOG.debug("setGpio");
-        synchronized (gpio) {
+        locks.lock(address);
+        try {
             GpioPin pin = gpio.getProvisionedPin(RaspiBcmPin.getPinByAddress(address));
             if (pin != null) {
-                if (pin instanceof GpioPinDigitalOutput) {
+                if (pin.isMode(PinMode.DIGITAL_OUTPUT)) {
+                    if (locks.isReserved(address)) {
+                        return ResponseEntity.status(HttpStatus.CONFLICT).build();
+                    }
+                    PinState state;
                     if (model.get("state") != null && model.get("state").toUpperCase().equals("HIGH")) {
-                        ((GpioPinDigitalOutput) pin).setState(true);
+                        state = PinState.HIGH;
                     } else {
-                        ((GpioPinDigitalOutput) pin).setState(false);
+                        state = PinState.LOW;
                     }
+                    ((GpioPinDigitalOutput) pin).setState(state);
+                    cache.update(pin, state);
+                }
+                PinStatus ps = cache.getSnapshot().getPin(address);
+                if (ps == null) {
+                    // provisioned after the cache was last refreshed
+                    cache.refresh();
+                    ps = cache.getSnapshot().getPin(address);
+                }
+                if (ps != null) {
+                    return json(ps);
                 }
-                if (pin instanceof GpioPinDigital)
-                    return mapFromPinState((GpioPinDigital) pin);
-                else
-                    return mapFromPinState(pin);
             }
+        } finally {
+            locks.unlock(address);
         }
-        return null;
+        return ResponseEntity.ok().build();
     }
 
     /**
-     * GET handler to return status of a gpio pin.
+     * Batch GPIOS POST handler. The POST body is a JSON array of objects each with an "address" and a "state" of either
+     * "HIGH" or "LOW", for example [{"address":4,"state":"HIGH"},{"address":17,"state":"LOW"}]. All of the pins are
+     * validated before any is written; if any address isn't a provisioned digital output a 400 status is returned and
+     * no pin is changed. The pins are then written one at a time, in request order, while holding the locks for all of
+     * them, and the new state of all pins is published as a single snapshot. Pi4J has no bulk register write, so pins
+     * aren't switched at the same instant; readers of the cache, however, see either none or all of the changes.
+     * 
+     * @param model
+     *            List of address/state pairs.
+     * @return The state of all GPIO pins as JSON, as for the GET /gpios handler; or a 409 status, with no pin changed,
+     *         if any pin is reserved by the OutputSequencer or SoftwarePwm.
+     */
+    @PostMapping(path = "/gpios")
+    public ResponseEntity<byte[]> setGpios(@RequestBody List<Map<String, String>> model) {
+        LOG.debug("setGpios");
+        Map<GpioPin, PinState> states = new LinkedHashMap<GpioPin, PinState>();
+        int[] addresses = new int[model.size()];
+        int i = 0;
+        for (Map<String, String> m : model) {
+            GpioPin pin = null;
+            try {
+                addresses[i++] = Integer.parseInt(m.get("address"));
+                pin = gpio.getProvisionedPin(RaspiBcmPin.getPinByAddress(addresses[i - 1]));
+            } catch (NumberFormatException e) {
+                // handled below
+            }
+            if (pin == null || !pin.isMode(PinMode.DIGITAL_OUTPUT)) {
+                return ResponseEntity.badRequest().build();
+            }
+            String state = m.get("state");
+            states.put(pin, state != null && state.toUpperCase().equals("HIGH") ? PinState.HIGH : PinState.LOW);
+        }
+
+        locks.lock(addresses);
+        try {
+            for (int a : addresses) {
+                if (locks.isReserved(a)) {
+                    return ResponseEntity.status(HttpStatus.CONFLICT).build();
+                }
+            }
+            for (Map.Entry<GpioPin, PinState> e : states.entrySet()) {
+                ((GpioPinDigitalOutput) e.getKey()).setState(e.getValue());
+            }
+            cache.update(states);
+        } finally {
+            locks.unlock(addresses);
+        }
+        Snapshot snap = cache.getSnapshot();
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).eTag(snap.getETag())
+                .body(snap.getJson());
+    }
+
+    /**
+     * GET handler to return status of a gpio pin. The status is read from the pin state cache without locking or
+     * accessing the GPIO hardware, and written as pre-encoded JSON. If the request's If-None-Match header matches the
+     * pin's current entity tag, a 304 status is returned with no body.
      * 
      * @param address
      *            Pin for which to return status.
-     * @return Map of pin state attributes, which Spring Framework converts to a JSON formatted HTTP response.
+     * @param ifNoneMatch
+     *            Value of the If-None-Match request header, if any.
+     * @return JSON formatted pin state attributes.
      */
     @GetMapping(path = "/gpios/{address}")
-    public Map<String, Object> getGpio(@PathVariable int address) {
+    public ResponseEntity<byte[]> getGpio(@PathVariable int address,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
         LOG.debug("getGpio");
-        synchronized (gpio) {
-            GpioPin pin = gpio.getProvisionedPin(RaspiBcmPin.getPinByAddress(address));
-            if (pin != null) {
-                if (pin instanceof GpioPinDigital)
-                    return mapFromPinState((GpioPinDigital) pin);
-                else
-                    return mapFromPinState(pin);
-            }
+        PinStatus ps = cache.getSnapshot().getPin(address);
+        if (ps == null) {
+            return ResponseEntity.ok().build();
         }
-        return null;
+        if (matches(ifNoneMatch, ps.getETag())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(ps.getETag()).build();
+        }
+        return json(ps);
     }
 
     /**
-     * Provides the status of all GPIO pins.
+     * Provides the status of all GPIO pins. The status is read from the pin state cache without locking or accessing
+     * the GPIO hardware, and written as pre-encoded JSON. If the request's If-None-Match header matches the current
+     * snapshot's entity tag, a 304 status is returned with no body.
      * 
-     * @return A list of Maps of pin state attributes, one per pin, which Spring Framework converts to a JSON formatted
-     *         HTTP response.
+     * @param ifNoneMatch
+     *            Value of the If-None-Match request header, if any.
+     * @return JSON formatted array of pin state attributes, one per pin.
      */
     @GetMapping(path = "/gpios")
-    public List<Map<String, Object>> getGpios() {
+    public ResponseEntity<byte[]> getGpios(
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
         LOG.debug("getGpios");
-        List<Map<String, Object>> l = new LinkedList<Map<String, Object>>();
-        synchronized (gpio) {
-            Collection<GpioPin> pins = gpio.getProvisionedPins();
-            for (GpioPin pin : pins) {
-                l.add(mapFromPinState(pin));
-            }
+        Snapshot snap = cache.getSnapshot();
+        if (matches(ifNoneMatch, snap.getETag())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(snap.getETag()).build();
         }
-        return l;
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).eTag(snap.getETag())
+                .body(snap.getJson());
     }
 
     /**
-     * shuts down the GPIO.
+     * shuts down the GPIO. Users driving pins from their own threads, such as the OutputSequencer and SoftwarePwm,
+     * must be closed first; App's beans of them depend on this one so that Spring Framework does so.
      */
     @PreDestroy
     public void shutdown() {
-        synchronized (gpio) {
+        locks.lockAll();
+        try {
             gpio.shutdown();
+        } finally {
+            locks.unlockAll();
         }
     }
 
-    private Map<String, Object> mapFromPinState(final GpioPin pin) {
-        Map<String, Object> m = new HashMap<String, Object>();
-        if (pin != null) {
-            m.put("mode", pin.getMode().toString());
-            m.put("address", RaspiBcmPin.getPinByName(pin.getName()).getAddress());
-        }
-        return m;
+    private static ResponseEntity<byte[]> json(final PinStatus ps) {
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).eTag(ps.getETag()).body(ps.getJson());
     }
 
-    private Map<String, Object> mapFromPinState(final GpioPinDigital pin) {
-        Map<String, Object> m = new HashMap<String, Object>();
-        if (pin != null) {
-            m.put("mode", pin.getMode().toString());
-            m.put("address", RaspiBcmPin.getPinByName(pin.getName()).getAddress());
-            m.put("state", pin.getState().toString());
+    /**
+     * Tests whether an If-None-Match header value matches an entity tag.
+     * 
+     * @param ifNoneMatch
+     *            Header value, either "*" or a comma separated list of entity tags. May be null.
+     * @param etag
+     *            Entity tag of the current representation.
+     * @return true if the header matches.
+     */
+    static boolean matches(final String ifNoneMatch, final String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
         }
-        return m;
+        return false;
     }
 }
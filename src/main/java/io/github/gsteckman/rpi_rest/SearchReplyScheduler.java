@@ -0,0 +1,212 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * SearchReplyScheduler.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Schedules replies to SSDP M-SEARCH requests. As required by the UPnP Device Architecture, each reply is delayed by a
+ * random time between 0 and the MX value of the search, so that the replies of many devices to one search, or of one
+ * device to many searches, are spread out rather than sent together. A requester that repeats a search for the same
+ * target within DEDUPE_WINDOW ms, as control points commonly do to allow for lost packets, is answered only once.
+ *
+ * Replies are sent by a single task on the provided executor, which sends every reply due within BATCH_WINDOW ms of
+ * the earliest in one run, so a storm of searches wakes the sending thread a bounded number of times.
+ *
+ * @author Greg Steckman
+ *
+ */
+public class SearchReplyScheduler {
+    private static final Log LOG = LogFactory.getLog(SearchReplyScheduler.class);
+    static final int MAX_MX = 5; // seconds; larger values are treated as 5
+    static final long BATCH_WINDOW = 20; // ms
+    static final long DEDUPE_WINDOW = 5000; // ms
+    private final ScheduledExecutorService executor;
+    private final Sender sender;
+    private final Random random = new Random();
+    private final PriorityQueue<Reply> queue = new PriorityQueue<Reply>(); // guarded by this
+    private final Map<String, Long> recent = new LinkedHashMap<String, Long>(); // in order scheduled, guarded by this
+    private ScheduledFuture<?> drain;
+    private long drainAt;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * Sends a reply to a search.
+     */
+    public interface Sender {
+        /**
+         * Sends the reply.
+         *
+         * @param to
+         *            The requester's address.
+         * @param st
+         *            The search target of the request.
+         */
+        void send(SocketAddress to, String st);
+    }
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param executor
+     *            Executor on which replies are sent.
+     * @param sender
+     *            Sends the replies.
+     */
+    public SearchReplyScheduler(final ScheduledExecutorService executor, final Sender sender) {
+        this.executor = executor;
+        this.sender = sender;
+    }
+
+    /**
+     * Schedules a reply to a search, unless the requester was already answered for the same search target within
+     * DEDUPE_WINDOW ms.
+     *
+     * @param to
+     *            The requester's address.
+     * @param st
+     *            The search target of the request.
+     * @param mx
+     *            The MX value of the request: the maximum time in seconds by which to delay the reply.
+     * @return true if a reply was scheduled, false if the request was a duplicate.
+     */
+    public boolean schedule(final SocketAddress to, final String st, final int mx) {
+        long now = System.currentTimeMillis();
+        String key = to + " " + st;
+        synchronized (this) {
+            Long last = recent.get(key);
+            if (last != null && now - last < DEDUPE_WINDOW) {
+                suppressed.incrementAndGet();
+                return false;
+            }
+            recent.remove(key); // so that the entry moves to the end
+            recent.put(key, now);
+
+            long delay = (long) (random.nextDouble() * Math.max(1, Math.min(MAX_MX, mx)) * 1000);
+            Reply r = new Reply(to, st, now + delay);
+            queue.add(r);
+            if (drain == null || r.due < drainAt) {
+                scheduleDrain(r.due, now);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of replies sent.
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * @return The number of duplicate requests not answered.
+     */
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+
+    /**
+     * @return The number of times the sending task has run.
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    private void scheduleDrain(final long due, final long now) {
+        if (drain != null) {
+            drain.cancel(false);
+        }
+        try {
+            drain = executor.schedule(new Runnable() {
+                public void run() {
+                    send();
+                }
+            }, Math.max(0, due - now), TimeUnit.MILLISECONDS);
+            drainAt = due;
+        } catch (RejectedExecutionException e) {
+            drain = null;
+            LOG.debug("Executor is shut down", e);
+        }
+    }
+
+    /**
+     * Sends the replies that are due, or will be within BATCH_WINDOW ms.
+     */
+    private void send() {
+        List<Reply> batch = new ArrayList<Reply>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            drain = null;
+            long cutoff = now + BATCH_WINDOW;
+            while (!queue.isEmpty() && queue.peek().due <= cutoff) {
+                batch.add(queue.poll());
+            }
+            for (Iterator<Long> it = recent.values().iterator(); it.hasNext() && now - it.next() >= DEDUPE_WINDOW;) {
+                it.remove();
+            }
+            if (!queue.isEmpty()) {
+                scheduleDrain(queue.peek().due, now);
+            }
+        }
+        batches.incrementAndGet();
+        for (Reply r : batch) {
+            try {
+                sender.send(r.to, r.st);
+                sent.incrementAndGet();
+            } catch (RuntimeException e) {
+                LOG.warn("Exception sending search reply to " + r.to, e);
+            }
+        }
+    }
+
+    /**
+     * A scheduled reply.
+     */
+    private static class Reply implements Comparable<Reply> {
+        private final SocketAddress to;
+        private final String st;
+        private final long due;
+
+        Reply(final SocketAddress to, final String st, final long due) {
+            this.to = to;
+            this.st = st;
+            this.due = due;
+        }
+
+        public int compareTo(final Reply o) {
+            return Long.compare(due, o.due);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * SimulatedGpioProvider.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.pi4j.io.gpio.GpioProviderBase;
+import com.pi4j.io.gpio.Pin;
+import com.pi4j.io.gpio.PinMode;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiGpioProvider;
+
+/**
+ * A GpioProvider that simulates the Raspberry Pi GPIO, so that the service can be run and load tested without the
+ * hardware. It accepts all the BCM pins of RaspiBcmPin, keeping their state in memory.
+ *
+ * Digital input pins are driven by a Waveform, either set for a pin with setWaveform or applied to every pin exported
+ * as an input by setDefaultWaveform. Each edge of an input is applied on a single simulator thread, and pin listeners
+ * are then called from that thread after the configured event latency, as they are from the interrupt thread on the
+ * hardware. A change of state of an output pin is likewise reported to its listeners. Reading and writing a pin busy
+ * waits for the configured read and write latency, modelling the cost of a hardware access.
+ *
+ * @author Greg Steckman
+ *
+ */
+public class SimulatedGpioProvider extends GpioProviderBase {
+    private static final Log LOG = LogFactory.getLog(SimulatedGpioProvider.class);
+    static final long DEFAULT_READ_LATENCY = 1000; // ns
+    static final long DEFAULT_WRITE_LATENCY = 2000; // ns
+    static final long DEFAULT_EVENT_LATENCY = 100; // us, from edge to listener
+    private static final int BURST_DIVISOR = 50; // edges within a burst are period / BURST_DIVISOR apart
+    private final ScheduledExecutorService executor;
+    private final Map<Integer, Signal> signals = new ConcurrentHashMap<Integer, Signal>(); // by pin address
+    private final Random random = new Random();
+    private volatile Waveform defaultWaveform = Waveform.NONE;
+    private volatile long defaultPeriod = 1000000; // us
+    private volatile long readLatency = DEFAULT_READ_LATENCY;
+    private volatile long writeLatency = DEFAULT_WRITE_LATENCY;
+    private volatile long eventLatency = DEFAULT_EVENT_LATENCY;
+    private final AtomicLong edges = new AtomicLong();
+
+    /**
+     * The signal applied to a simulated input pin.
+     */
+    public enum Waveform {
+        /** The input only changes when set by setInputState. */
+        NONE,
+        /** The input toggles every half period. */
+        SQUARE,
+        /** The input toggles at random, with exponentially distributed intervals averaging half the period. */
+        RANDOM,
+        /**
+         * Once a period the input toggles several times in quick succession, like a bouncing switch contact, and ends
+         * up in the opposite state to that before the burst.
+         */
+        BURSTY
+    }
+
+    /**
+     * Creates a new simulated provider with no input waveforms.
+     */
+    public SimulatedGpioProvider() {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "GPIO Simulator");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Uses the name of the RaspiGpioProvider, so that the Raspberry Pi pins can be provisioned on this provider.
+     */
+    @Override
+    public String getName() {
+        return RaspiGpioProvider.NAME;
+    }
+
+    /**
+     * Sets the waveform applied to each pin subsequently exported as a digital input that has no waveform of its own.
+     *
+     * @param w
+     *            The waveform.
+     * @param periodMicros
+     *            Period of the waveform in microseconds.
+     */
+    public void setDefaultWaveform(final Waveform w, final long periodMicros) {
+        defaultPeriod = periodMicros;
+        defaultWaveform = w;
+    }
+
+    /**
+     * Sets the waveform applied to an input pin, replacing any previous waveform. The pin does not need to be exported
+     * yet; the waveform starts when it is exported as a digital input.
+     *
+     * @param pin
+     *            The pin.
+     * @param w
+     *            The waveform.
+     * @param periodMicros
+     *            Period of the waveform in microseconds.
+     */
+    public void setWaveform(final Pin pin, final Waveform w, final long periodMicros) {
+        if (periodMicros <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        Signal s = new Signal(pin, w, periodMicros);
+        Signal old = signals.put(pin.getAddress(), s);
+        if (old != null) {
+            old.stop();
+        }
+        if (isInput(pin)) {
+            s.start();
+        }
+    }
+
+    /**
+     * @param pin
+     *            The pin.
+     * @return The waveform applied to the pin, NONE if there is none.
+     */
+    public Waveform getWaveform(final Pin pin) {
+        Signal s = signals.get(pin.getAddress());
+        return s == null ? Waveform.NONE : s.waveform;
+    }
+
+    /**
+     * Sets the state of a digital input pin, as if driven by external hardware, notifying its listeners after the event
+     * latency if the state changes.
+     *
+     * @param pin
+     *            The pin.
+     * @param state
+     *            The new state.
+     */
+    public void setInputState(final Pin pin, final PinState state) {
+        edge(pin, state);
+    }
+
+    /**
+     * Sets the time taken by each read of a pin.
+     *
+     * @param nanos
+     *            Latency in nanoseconds.
+     */
+    public void setReadLatency(final long nanos) {
+        readLatency = nanos;
+    }
+
+    /**
+     * Sets the time taken by each write of a pin.
+     *
+     * @param nanos
+     *            Latency in nanoseconds.
+     */
+    public void setWriteLatency(final long nanos) {
+        writeLatency = nanos;
+    }
+
+    /**
+     * Sets the delay between a change of state and the notification of pin listeners.
+     *
+     * @param micros
+     *            Latency in microseconds.
+     */
+    public void setEventLatency(final long micros) {
+        eventLatency = micros;
+    }
+
+    /**
+     * @return The number of changes of state of all pins so far.
+     */
+    public long getEdgeCount() {
+        return edges.get();
+    }
+
+    @Override
+    public void export(final Pin pin, final PinMode mode, final PinState defaultState) {
+        super.export(pin, mode, defaultState);
+        modeChanged(pin, mode);
+    }
+
+    @Override
+    public void export(final Pin pin, final PinMode mode) {
+        super.export(pin, mode);
+        modeChanged(pin, mode);
+    }
+
+    @Override
+    public void setMode(final Pin pin, final PinMode mode) {
+        super.setMode(pin, mode);
+        modeChanged(pin, mode);
+    }
+
+    @Override
+    public void unexport(final Pin pin) {
+        super.unexport(pin);
+        Signal s = signals.get(pin.getAddress());
+        if (s != null) {
+            s.stop();
+        }
+    }
+
+    @Override
+    public void setState(final Pin pin, final PinState state) {
+        spin(writeLatency);
+        PinState old;
+        synchronized (this) {
+            old = getPinCache(pin).getState();
+            super.setState(pin, state);
+        }
+        if (old != state) {
+            edges.incrementAndGet();
+            notifyListeners(pin, state);
+        }
+    }
+
+    @Override
+    public PinState getState(final Pin pin) {
+        spin(readLatency);
+        synchronized (this) {
+            return super.getState(pin);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdownNow();
+        super.shutdown();
+    }
+
+    private void modeChanged(final Pin pin, final PinMode mode) {
+        Signal s = signals.get(pin.getAddress());
+        if (mode != PinMode.DIGITAL_INPUT) {
+            if (s != null) {
+                s.stop();
+            }
+            return;
+        }
+        if (s == null && defaultWaveform != Waveform.NONE) {
+            s = new Signal(pin, defaultWaveform, defaultPeriod);
+            Signal existing = signals.putIfAbsent(pin.getAddress(), s);
+            if (existing != null) {
+                s = existing;
+            }
+        }
+        if (s != null) {
+            s.start();
+        }
+    }
+
+    private synchronized boolean isInput(final Pin pin) {
+        return isExported(pin) && getMode(pin) == PinMode.DIGITAL_INPUT;
+    }
+
+    /**
+     * Applies a change of state to an input pin.
+     */
+    private void edge(final Pin pin, final PinState state) {
+        synchronized (this) {
+            if (getPinCache(pin).getState() == state) {
+                return;
+            }
+            getPinCache(pin).setState(state);
+        }
+        edges.incrementAndGet();
+        notifyListeners(pin, state);
+    }
+
+    private void notifyListeners(final Pin pin, final PinState state) {
+        long latency = eventLatency;
+        if (latency <= 0) {
+            dispatchPinDigitalStateChangeEvent(pin, state);
+            return;
+        }
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    dispatchPinDigitalStateChangeEvent(pin, state);
+                }
+            }, latency, TimeUnit.MICROSECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Simulator is shut down", e);
+        }
+    }
+
+    private static void spin(final long nanos) {
+        if (nanos > 0) {
+            long end = System.nanoTime() + nanos;
+            while (System.nanoTime() - end < 0) {
+                // busy wait, as parking is far coarser than a GPIO access
+            }
+        }
+    }
+
+    /**
+     * A waveform applied to one pin, scheduling each edge as a task on the simulator thread.
+     */
+    private class Signal implements Runnable {
+        private final Pin pin;
+        private final Waveform waveform;
+        private final long period; // us
+        private int burstRemaining; // guarded by this
+        private ScheduledFuture<?> next; // guarded by this
+
+        Signal(final Pin pin, final Waveform waveform, final long period) {
+            this.pin = pin;
+            this.waveform = waveform;
+            this.period = period;
+        }
+
+        synchronized void start() {
+            if (next == null && waveform != Waveform.NONE) {
+                schedule(delay());
+            }
+        }
+
+        synchronized void stop() {
+            if (next != null) {
+                next.cancel(false);
+                next = null;
+            }
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (next == null) {
+                    return; // stopped
+                }
+            }
+            PinState state;
+            synchronized (SimulatedGpioProvider.this) {
+                state = getPinCache(pin).getState();
+            }
+            edge(pin, state == PinState.HIGH ? PinState.LOW : PinState.HIGH);
+            synchronized (this) {
+                if (next != null) {
+                    schedule(delay());
+                }
+            }
+        }
+
+        private void schedule(final long delay) {
+            try {
+                next = executor.schedule(this, delay, TimeUnit.MICROSECONDS);
+            } catch (RejectedExecutionException e) {
+                next = null;
+                LOG.debug("Simulator is shut down", e);
+            }
+        }
+
+        /**
+         * @return Time to the next edge in microseconds.
+         */
+        private long delay() {
+            switch (waveform) {
+            case RANDOM:
+                return Math.max(1, (long) (-Math.log(1 - random.nextDouble()) * period / 2));
+            case BURSTY:
+                if (burstRemaining > 0) {
+                    burstRemaining--;
+                    return Math.max(1, period / BURST_DIVISOR);
+                }
+                burstRemaining = 2 * random.nextInt(4); // an odd number of edges in all
+                return period;
+            default:
+                return Math.max(1, period / 2);
+            }
+        }
+    }
+}
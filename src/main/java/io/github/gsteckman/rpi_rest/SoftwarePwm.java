@@ -0,0 +1,715 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * SoftwarePwm.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioPin;
+import com.pi4j.io.gpio.GpioPinDigitalOutput;
+import com.pi4j.io.gpio.Pin;
+import com.pi4j.io.gpio.PinMode;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+
+/**
+ * Drives pulse width modulated signals on digital output pins in software, all from a single thread. Time is divided
+ * into frames at the base frequency, and each pin's frequency must be a multiple of it. When a pin is configured, the
+ * times within a frame at which every pin goes high or low are computed and merged into one schedule, in which pins
+ * switching at the same time share an entry and are written by one GpioController call. The thread then plays the
+ * schedule frame after frame without allocating, sleeping until SPIN_THRESHOLD before each entry and then spinning. A
+ * new schedule takes effect at the start of the next frame.
+ *
+ * The PWM of a pin is read by GET /gpios/{address}/pwm, set by POST /gpios/{address}/pwm with a JSON object holding
+ * the duty cycle in percent and optionally the frequency in Hz, for example {"duty":"7.5","frequency":"50"}, and
+ * stopped, leaving the pin low, by DELETE /gpios/{address}/pwm. GET /gpios/pwm returns the base frequency, every pin's
+ * PWM, and statistics of the thread: the number of pin toggles, the mean and largest lateness of the entries in
+ * microseconds, the number of frames skipped because the thread fell behind, the CPU time it used in microseconds, and
+ * whether it failed. If a pin can't be written the thread logs the error, stops driving and releases every pin, and
+ * further POSTs are answered with a 503 status.
+ *
+ * While a pin is driven it is reserved in the PinLocks, so that other writers refuse to write it, and its state isn't
+ * tracked by the PinStateCache. The thread holds the PinLocks of the pins it writes, and releases a pin once it has
+ * set it low after its PWM is stopped.
+ *
+ * @author Greg Steckman
+ *
+ */
+@RestController
+public class SoftwarePwm {
+    private static final Log LOG = LogFactory.getLog(SoftwarePwm.class);
+    private static final int MAX_ADDRESS = 63;
+    static final int DEFAULT_FREQUENCY = 50; // Hz
+    static final int MAX_FREQUENCY = 20000; // Hz
+    static final int MAX_ENTRIES = 4096; // per frame
+    static final long SPIN_THRESHOLD = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final GpioPinDigitalOutput[] NONE = new GpioPinDigitalOutput[0];
+    private final GpioController gpio;
+    private final PinLocks locks;
+    private final PinStateCache cache;
+    private final int frequency;
+    private final long frameNanos;
+    private final Channel[] channels = new Channel[MAX_ADDRESS + 1]; // guarded by this
+    private long reserved; // pins reserved in the PinLocks, driven or awaiting release, guarded by this
+    private volatile Schedule schedule; // latest
+    private volatile Schedule current; // being played
+    private volatile boolean closed;
+    private volatile boolean failed;
+    private final Thread thread;
+    // statistics, written only by the thread
+    private volatile long toggles;
+    private volatile long entries;
+    private volatile long totalLateness; // ns
+    private volatile long maxLateness; // ns
+    private volatile long overruns;
+    private volatile long cpuBase; // ns
+    private volatile boolean resetRequested;
+
+    /**
+     * Creates a new instance with a base frequency of DEFAULT_FREQUENCY Hz, and starts its thread.
+     *
+     * @param gpioCtrl
+     *            GpioController whose output pins are driven.
+     * @param pinLocks
+     *            Locks shared by all users of the GpioController.
+     * @param pinCache
+     *            Cache of pin state, updated when a pin stops being driven.
+     */
+    public SoftwarePwm(final GpioController gpioCtrl, final PinLocks pinLocks, final PinStateCache pinCache) {
+        this(gpioCtrl, pinLocks, pinCache, DEFAULT_FREQUENCY);
+    }
+
+    /**
+     * Creates a new instance and starts its thread.
+     *
+     * @param gpioCtrl
+     *            GpioController whose output pins are driven.
+     * @param pinLocks
+     *            Locks shared by all users of the GpioController, in which the driven pins are reserved.
+     * @param pinCache
+     *            Cache of pin state, updated when a pin stops being driven.
+     * @param baseFrequency
+     *            Frequency of the frames in Hz, of which the frequency of each pin must be a multiple.
+     */
+    public SoftwarePwm(final GpioController gpioCtrl, final PinLocks pinLocks, final PinStateCache pinCache,
+            final int baseFrequency) {
+        if (baseFrequency < 1 || baseFrequency > MAX_FREQUENCY) {
+            throw new IllegalArgumentException("Base frequency must be from 1 to " + MAX_FREQUENCY + " Hz");
+        }
+        gpio = gpioCtrl;
+        locks = pinLocks;
+        cache = pinCache;
+        frequency = baseFrequency;
+        frameNanos = TimeUnit.SECONDS.toNanos(1) / frequency;
+        schedule = build(channels, NONE);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                SoftwarePwm.this.run();
+            }
+        }, "GPIO PWM");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * GET handler returning the base frequency, the PWM of every pin, and the thread's statistics.
+     *
+     * @return JSON object as described for the class.
+     */
+    @GetMapping(path = "/gpios/pwm")
+    public synchronized ResponseEntity<byte[]> getPwms() {
+        LOG.debug("getPwms");
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"frequency\":").append(frequency);
+        sb.append(",\"toggles\":").append(toggles);
+        sb.append(",\"meanLateness\":").append(TimeUnit.NANOSECONDS.toMicros(getMeanLateness()));
+        sb.append(",\"maxLateness\":").append(TimeUnit.NANOSECONDS.toMicros(maxLateness));
+        sb.append(",\"overruns\":").append(overruns);
+        sb.append(",\"cpuTime\":").append(TimeUnit.NANOSECONDS.toMicros(getCpuTime()));
+        sb.append(",\"failed\":").append(failed);
+        sb.append(",\"channels\":[");
+        boolean first = true;
+        for (Channel c : channels) {
+            if (c != null) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                c.append(sb);
+            }
+        }
+        return json(sb.append("]}").toString());
+    }
+
+    /**
+     * GET handler returning the PWM of a pin.
+     *
+     * @param address
+     *            The pin.
+     * @return JSON object with the pin's address, frequency and duty, or a 404 status if the pin isn't driven.
+     */
+    @GetMapping(path = "/gpios/{address}/pwm")
+    public synchronized ResponseEntity<byte[]> getPwm(@PathVariable int address) {
+        LOG.debug("getPwm");
+        Channel c = address >= 0 && address <= MAX_ADDRESS ? channels[address] : null;
+        if (c == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return json(c.toString());
+    }
+
+    /**
+     * POST handler starting or changing the PWM of a pin.
+     *
+     * @param address
+     *            The pin, which must be a provisioned digital output.
+     * @param model
+     *            duty in percent, from 0 to 100, and optionally frequency in Hz, which defaults to the pin's current
+     *            frequency or to the base frequency.
+     * @return JSON object with the pin's address, frequency and duty; a 400 status if the pin isn't a digital output,
+     *         the duty or frequency is invalid, or the schedule would exceed MAX_ENTRIES entries; a 409 status if the
+     *         pin is reserved by another user, such as a sequence of the OutputSequencer; or a 503 status if the
+     *         thread has failed or been stopped.
+     */
+    @PostMapping(path = "/gpios/{address}/pwm")
+    public synchronized ResponseEntity<byte[]> setPwm(@PathVariable int address,
+            @RequestBody Map<String, String> model) {
+        LOG.debug("setPwm");
+        Pin p = address >= 0 && address <= MAX_ADDRESS ? RaspiBcmPin.getPinByAddress(address) : null;
+        GpioPin pin = p == null ? null : gpio.getProvisionedPin(p);
+        if (closed || failed) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        if (pin == null || !pin.isMode(PinMode.DIGITAL_OUTPUT)) {
+            return ResponseEntity.badRequest().build();
+        }
+        Channel c;
+        try {
+            double duty = Double.parseDouble(String.valueOf(model.get("duty")).trim());
+            int f = channels[address] == null ? frequency : channels[address].frequency;
+            if (model.get("frequency") != null) {
+                f = Integer.parseInt(model.get("frequency").trim());
+            }
+            if (!(duty >= 0 && duty <= 100) || f < frequency || f > MAX_FREQUENCY || f % frequency != 0) {
+                return ResponseEntity.badRequest().build();
+            }
+            c = new Channel((GpioPinDigitalOutput) pin, f, duty);
+        } catch (NumberFormatException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        long bit = 1L << address;
+        boolean reserving = (reserved & bit) == 0;
+        if (reserving) {
+            if (!locks.reserve(bit)) {
+                return ResponseEntity.status(HttpStatus.CONFLICT).build();
+            }
+            reserved |= bit;
+        }
+        Channel[] next = channels.clone();
+        next[address] = c;
+        try {
+            install(next, NONE);
+        } catch (IllegalArgumentException e) {
+            LOG.debug(e.getMessage());
+            if (reserving) {
+                reserved &= ~bit;
+                locks.release(bit);
+            }
+            return ResponseEntity.badRequest().build();
+        }
+        return json(c.toString());
+    }
+
+    /**
+     * DELETE handler stopping the PWM of a pin and setting it low.
+     *
+     * @param address
+     *            The pin.
+     * @return JSON object with the pin's address, frequency and duty before it was stopped, or a 404 status if the pin
+     *         isn't driven.
+     */
+    @DeleteMapping(path = "/gpios/{address}/pwm")
+    public synchronized ResponseEntity<byte[]> stopPwm(@PathVariable int address) {
+        LOG.debug("stopPwm");
+        Channel c = address >= 0 && address <= MAX_ADDRESS ? channels[address] : null;
+        if (c == null) {
+            return ResponseEntity.notFound().build();
+        }
+        Channel[] next = channels.clone();
+        next[address] = null;
+        install(next, new GpioPinDigitalOutput[] { c.pin });
+        return json(c.toString());
+    }
+
+    /**
+     * @return Number of pin toggles since the statistics were reset.
+     */
+    public long getToggles() {
+        return toggles;
+    }
+
+    /**
+     * @return Mean time in ns by which the schedule's entries were played late, since the statistics were reset.
+     */
+    public long getMeanLateness() {
+        long n = entries;
+        return n == 0 ? 0 : totalLateness / n;
+    }
+
+    /**
+     * @return Largest time in ns by which an entry of the schedule was played late, since the statistics were reset.
+     */
+    public long getMaxLateness() {
+        return maxLateness;
+    }
+
+    /**
+     * @return Number of frames skipped because the thread fell more than a frame behind.
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * @return CPU time in ns used by the thread since the statistics were reset, or 0 if it can't be measured.
+     */
+    public long getCpuTime() {
+        return Math.max(0, threadCpuTime() - cpuBase);
+    }
+
+    /**
+     * @return true if the thread stopped because a pin couldn't be written.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Resets the statistics at the start of the next frame.
+     */
+    public void resetStatistics() {
+        resetRequested = true;
+    }
+
+    /**
+     * Stops driving the pins, leaving them low, and releases them. Called by Spring Framework prior to destroying the
+     * bean.
+     */
+    @PreDestroy
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (int a = 0; a <= MAX_ADDRESS; a++) {
+                if (channels[a] != null) {
+                    setLow(channels[a].pin);
+                    channels[a] = null;
+                }
+            }
+            if (schedule != current) {
+                // stopped pins the thread hadn't yet set low
+                for (GpioPinDigitalOutput p : schedule.released) {
+                    setLow(p);
+                }
+            }
+            locks.release(reserved);
+            reserved = 0;
+        }
+    }
+
+    /**
+     * Builds the schedule for a new set of channels and hands it to the thread. Must be called holding this.
+     *
+     * @throws IllegalArgumentException
+     *             If the schedule would have too many entries.
+     */
+    private void install(final Channel[] next, final GpioPinDigitalOutput[] released) {
+        GpioPinDigitalOutput[] r = released;
+        Schedule pending = schedule;
+        if (pending != current && pending.released.length > 0) {
+            // the thread hasn't started the previous schedule, so it must still release its pins, unless driven again
+            List<GpioPinDigitalOutput> l = new ArrayList<GpioPinDigitalOutput>();
+            for (GpioPinDigitalOutput p : pending.released) {
+                if (next[p.getPin().getAddress()] == null) {
+                    l.add(p);
+                }
+            }
+            for (GpioPinDigitalOutput p : released) {
+                l.add(p);
+            }
+            r = l.toArray(NONE);
+        }
+        Schedule s = build(next, r);
+        System.arraycopy(next, 0, channels, 0, channels.length);
+        schedule = s;
+        notifyAll();
+    }
+
+    /**
+     * Computes the times within a frame at which the pins switch, merging those of the same time into one entry.
+     */
+    private Schedule build(final Channel[] chans, final GpioPinDigitalOutput[] released) {
+        TreeMap<Long, long[]> times = new TreeMap<Long, long[]>(); // offset -> masks of pins set high and low
+        List<GpioPinDigitalOutput> steadyHigh = new ArrayList<GpioPinDigitalOutput>();
+        List<GpioPinDigitalOutput> steadyLow = new ArrayList<GpioPinDigitalOutput>();
+        GpioPinDigitalOutput[] pins = new GpioPinDigitalOutput[MAX_ADDRESS + 1];
+        for (Channel c : chans) {
+            if (c == null) {
+                continue;
+            }
+            int address = c.pin.getPin().getAddress();
+            pins[address] = c.pin;
+            if (c.duty <= 0) {
+                steadyLow.add(c.pin);
+                continue;
+            }
+            if (c.duty >= 100) {
+                steadyHigh.add(c.pin);
+                continue;
+            }
+            int cycles = c.frequency / frequency;
+            for (int j = 0; j < cycles; j++) {
+                long start = j * frameNanos / cycles;
+                long end = (j + 1) * frameNanos / cycles;
+                long high = Math.round((end - start) * c.duty / 100);
+                mask(times, start)[0] |= 1L << address;
+                mask(times, start + Math.max(1, Math.min(high, end - start - 1)))[1] |= 1L << address;
+            }
+            if (times.size() > MAX_ENTRIES) {
+                throw new IllegalArgumentException("Schedule exceeds " + MAX_ENTRIES + " entries");
+            }
+        }
+
+        Schedule s = new Schedule(times.size());
+        int i = 0;
+        for (Map.Entry<Long, long[]> e : times.entrySet()) {
+            s.offsets[i] = e.getKey();
+            s.highs[i] = pins(pins, e.getValue()[0]);
+            s.lows[i] = pins(pins, e.getValue()[1]);
+            s.addresses[i] = addresses(e.getValue()[0] | e.getValue()[1]);
+            i++;
+        }
+        s.steadyHigh = steadyHigh.toArray(NONE);
+        s.steadyLow = steadyLow.toArray(NONE);
+        long steady = 0;
+        for (GpioPinDigitalOutput p : steadyHigh) {
+            steady |= 1L << p.getPin().getAddress();
+        }
+        for (GpioPinDigitalOutput p : steadyLow) {
+            steady |= 1L << p.getPin().getAddress();
+        }
+        s.steady = addresses(steady);
+        s.released = released;
+        return s;
+    }
+
+    private static long[] mask(final TreeMap<Long, long[]> times, final long offset) {
+        long[] m = times.get(offset);
+        if (m == null) {
+            m = new long[2];
+            times.put(offset, m);
+        }
+        return m;
+    }
+
+    private static GpioPinDigitalOutput[] pins(final GpioPinDigitalOutput[] pins, final long mask) {
+        GpioPinDigitalOutput[] p = new GpioPinDigitalOutput[Long.bitCount(mask)];
+        int n = 0;
+        for (int a = 0; a <= MAX_ADDRESS; a++) {
+            if ((mask & (1L << a)) != 0) {
+                p[n++] = pins[a];
+            }
+        }
+        return p;
+    }
+
+    /**
+     * @return The addresses of a mask, in ascending order.
+     */
+    private static int[] addresses(final long mask) {
+        int[] a = new int[Long.bitCount(mask)];
+        int n = 0;
+        for (int i = 0; i <= MAX_ADDRESS; i++) {
+            if ((mask & (1L << i)) != 0) {
+                a[n++] = i;
+            }
+        }
+        return a;
+    }
+
+    private long threadCpuTime() {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        return mx.isThreadCpuTimeSupported() ? mx.getThreadCpuTime(thread.getId()) : 0;
+    }
+
+    private void run() {
+        Schedule s = null;
+        long frameStart = System.nanoTime();
+        while (!closed) {
+            Schedule next = schedule;
+            if (next != s) {
+                if (s == null || s.offsets.length == 0) {
+                    frameStart = System.nanoTime();
+                }
+                s = next;
+                current = s;
+                start(s);
+            }
+            if (resetRequested) {
+                resetRequested = false;
+                toggles = 0;
+                entries = 0;
+                totalLateness = 0;
+                maxLateness = 0;
+                overruns = 0;
+                cpuBase = threadCpuTime();
+            }
+            if (s.offsets.length == 0) {
+                synchronized (this) {
+                    while (schedule == s && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                continue;
+            }
+            try {
+                for (int i = 0; i < s.offsets.length && !closed; i++) {
+                    long due = frameStart + s.offsets[i];
+                    long delay;
+                    while ((delay = due - System.nanoTime()) > SPIN_THRESHOLD && !closed) {
+                        LockSupport.parkNanos(delay - SPIN_THRESHOLD);
+                    }
+                    while (System.nanoTime() - due < 0) {
+                        // spin for the last SPIN_THRESHOLD ns
+                    }
+                    long late = System.nanoTime() - due;
+                    lock(s.addresses[i]);
+                    try {
+                        if (s.highs[i].length > 0) {
+                            gpio.high(s.highs[i]);
+                        }
+                        if (s.lows[i].length > 0) {
+                            gpio.low(s.lows[i]);
+                        }
+                    } finally {
+                        unlock(s.addresses[i]);
+                    }
+                    toggles += s.highs[i].length + s.lows[i].length;
+                    entries++;
+                    totalLateness += late;
+                    if (late > maxLateness) {
+                        maxLateness = late;
+                    }
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            frameStart += frameNanos;
+            if (System.nanoTime() - frameStart > frameNanos) {
+                overruns++;
+                frameStart = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Sets the pins that don't toggle in a new schedule, before its first frame.
+     */
+    private void start(final Schedule s) {
+        try {
+            lock(s.steady);
+            try {
+                if (s.steadyHigh.length > 0) {
+                    gpio.high(s.steadyHigh);
+                }
+                if (s.steadyLow.length > 0) {
+                    gpio.low(s.steadyLow);
+                }
+            } finally {
+                unlock(s.steady);
+            }
+            for (GpioPinDigitalOutput p : s.released) {
+                setLow(p);
+                int a = p.getPin().getAddress();
+                synchronized (this) {
+                    if (channels[a] == null && (reserved & (1L << a)) != 0) {
+                        reserved &= ~(1L << a);
+                        locks.release(1L << a);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Error starting PWM schedule", e);
+        }
+    }
+
+    /**
+     * Stops driving the pins after the thread failed to write one, trying to leave them low, and releases them.
+     */
+    private synchronized void fail(final RuntimeException e) {
+        LOG.warn("Error playing PWM schedule, stopping", e);
+        failed = true;
+        List<GpioPinDigitalOutput> pins = new ArrayList<GpioPinDigitalOutput>();
+        for (int a = 0; a <= MAX_ADDRESS; a++) {
+            if (channels[a] != null) {
+                pins.add(channels[a].pin);
+                channels[a] = null;
+            }
+        }
+        if (schedule != current) {
+            Collections.addAll(pins, schedule.released);
+        }
+        for (GpioPinDigitalOutput p : pins) {
+            try {
+                setLow(p);
+            } catch (RuntimeException ex) {
+                LOG.debug("Error setting pin " + p.getPin().getAddress() + " low", ex);
+            }
+        }
+        locks.release(reserved);
+        reserved = 0;
+    }
+
+    /**
+     * Sets a pin low, holding its lock, and records it in the cache.
+     */
+    private void setLow(final GpioPinDigitalOutput p) {
+        int a = p.getPin().getAddress();
+        locks.lock(a);
+        try {
+            p.low();
+            cache.update(p, PinState.LOW);
+        } finally {
+            locks.unlock(a);
+        }
+    }
+
+    /**
+     * Takes the locks of pins in ascending order, as PinLocks.lock(int...) does, without allocating.
+     */
+    private void lock(final int[] addresses) {
+        int locked = 0;
+        try {
+            for (; locked < addresses.length; locked++) {
+                locks.lock(addresses[locked]);
+            }
+        } catch (RuntimeException e) {
+            while (locked > 0) {
+                locks.unlock(addresses[--locked]);
+            }
+            throw e;
+        }
+    }
+
+    private void unlock(final int[] addresses) {
+        for (int i = addresses.length - 1; i >= 0; i--) {
+            locks.unlock(addresses[i]);
+        }
+    }
+
+    private static ResponseEntity<byte[]> json(final String s) {
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8)
+                .body(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * PWM settings of a pin.
+     */
+    private static class Channel {
+        private final GpioPinDigitalOutput pin;
+        private final int frequency;
+        private final double duty;
+
+        Channel(final GpioPinDigitalOutput pin, final int frequency, final double duty) {
+            this.pin = pin;
+            this.frequency = frequency;
+            this.duty = duty;
+        }
+
+        void append(final StringBuilder sb) {
+            sb.append("{\"address\":").append(pin.getPin().getAddress());
+            sb.append(",\"frequency\":").append(frequency);
+            sb.append(",\"duty\":").append(duty).append('}');
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(64);
+            append(sb);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Immutable schedule of a frame: the offsets from the start of the frame at which pins are set high and low, in
+     * order, and the pins held high or low throughout.
+     */
+    private static class Schedule {
+        private final long[] offsets;
+        private final GpioPinDigitalOutput[][] highs;
+        private final GpioPinDigitalOutput[][] lows;
+        private final int[][] addresses; // of the pins of each entry, ascending
+        private GpioPinDigitalOutput[] steadyHigh;
+        private GpioPinDigitalOutput[] steadyLow;
+        private int[] steady; // addresses of steadyHigh and steadyLow, ascending
+        private GpioPinDigitalOutput[] released; // pins no longer driven, set low when the schedule starts
+
+        Schedule(final int size) {
+            offsets = new long[size];
+            highs = new GpioPinDigitalOutput[size][];
+            lows = new GpioPinDigitalOutput[size][];
+            addresses = new int[size][];
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * SsdpEncoder.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the SSDP messages sent by the SsdpHandler: search responses, and ssdp:alive and ssdp:byebye NOTIFY
+ * messages. The static methods encode one message. An instance holds the search responses advertised from one host
+ * address, encoded once and re-encoded only when the server port or CONFIGID changes, so that answering an M-SEARCH
+ * costs no formatting or allocation. Instances are thread-safe; the buffers they return are shared, and must be
+ * rewound before sending.
+ *
+ * @author Greg Steckman
+ *
+ */
+public class SsdpEncoder {
+    static final int MAX_AGE = 1800; // UPnP cache-control max age in seconds
+    static final long BOOTID = System.currentTimeMillis();
+    static final int MULTICAST_PORT = 1900;
+    static final String MULTICAST_ADDRESS = "239.255.255.250";
+    private static final String SERVER = System.getProperty("os.name") + "/" + System.getProperty("os.version")
+            + ", UPnP/1.1, rpi-rest/0.1";
+    private final String host;
+    private String location; // guarded by this
+    private int locationPort;
+    private ByteBuffer[] searchResponses; // one per search target, guarded by this
+    private int responsePort; // server port and CONFIGID for which searchResponses were encoded
+    private long responseConfigId;
+
+    /**
+     * Creates an encoder for the messages advertised from a host address.
+     *
+     * @param hostAddress
+     *            The address advertised in the LOCATION header.
+     */
+    public SsdpEncoder(final String hostAddress) {
+        host = hostAddress;
+    }
+
+    /**
+     * @param port
+     *            The server port.
+     * @return The LOCATION advertised for the server port, built once per port.
+     */
+    public synchronized String getLocation(final int port) {
+        if (location == null || port != locationPort) {
+            location = "http://" + host + ":" + port;
+            locationPort = port;
+        }
+        return location;
+    }
+
+    /**
+     * Returns the encoded search responses, one for each search target, encoding them if the server port or CONFIGID
+     * has changed since they were last encoded.
+     *
+     * @param port
+     *            The server port, advertised in the LOCATION.
+     * @param configId
+     *            The CONFIGID.
+     * @param targets
+     *            The search targets.
+     * @param usns
+     *            The USN sent with each search target.
+     * @return Direct buffers holding the responses, in the order of targets.
+     */
+    public synchronized ByteBuffer[] getSearchResponses(final int port, final long configId, final String[] targets,
+            final String[] usns) {
+        if (searchResponses == null || configId != responseConfigId || port != responsePort) {
+            String loc = getLocation(port);
+            ByteBuffer[] responses = new ByteBuffer[targets.length];
+            for (int n = 0; n < targets.length; n++) {
+                byte[] ba = encodeSearchResponse(loc, targets[n], usns[n], configId);
+                responses[n] = ByteBuffer.allocateDirect(ba.length);
+                responses[n].put(ba).flip();
+            }
+            searchResponses = responses;
+            responsePort = port;
+            responseConfigId = configId;
+        }
+        return searchResponses;
+    }
+
+    /**
+     * Encodes a response to an M-SEARCH.
+     *
+     * @param location
+     *            The LOCATION of the device description.
+     * @param st
+     *            The search target.
+     * @param usn
+     *            The USN.
+     * @param configId
+     *            The CONFIGID.
+     * @return The message.
+     */
+    public static byte[] encodeSearchResponse(final String location, final String st, final String usn,
+            final long configId) {
+        StringBuilder sb = new StringBuilder(384);
+        sb.append("HTTP/1.1 200 OK\r\n");
+        sb.append("CACHE-CONTROL: max-age=").append(MAX_AGE).append("\r\n");
+        sb.append("EXT:\r\n");
+        sb.append("LOCATION: ").append(location).append("\r\n");
+        sb.append("SERVER: ").append(SERVER).append("\r\n");
+        sb.append("ST: ").append(st).append("\r\n");
+        sb.append("USN: ").append(usn).append("\r\n");
+        sb.append("BOOTID.UPNP.ORG: ").append(BOOTID).append("\r\n");
+        sb.append("CONFIGID.UPNP.ORG: ").append(configId).append("\r\n");
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Encodes an ssdp:alive NOTIFY message.
+     *
+     * @param location
+     *            The LOCATION of the device description.
+     * @param nt
+     *            The notification type.
+     * @param usn
+     *            The USN.
+     * @param configId
+     *            The CONFIGID.
+     * @return The message.
+     */
+    public static byte[] encodeNotify(final String location, final String nt, final String usn, final long configId) {
+        StringBuilder sb = new StringBuilder(384);
+        sb.append("NOTIFY * HTTP/1.1\r\n");
+        sb.append("HOST: ").append(MULTICAST_ADDRESS).append(':').append(MULTICAST_PORT).append("\r\n");
+        sb.append("CACHE-CONTROL: max-age=").append(MAX_AGE).append("\r\n");
+        sb.append("LOCATION: ").append(location).append("\r\n");
+        sb.append("NT: ").append(nt).append("\r\n");
+        sb.append("NTS: ssdp:alive\r\n");
+        sb.append("SERVER: ").append(SERVER).append("\r\n");
+        sb.append("USN: ").append(usn).append("\r\n");
+        sb.append("BOOTID.UPNP.ORG: ").append(BOOTID).append("\r\n");
+        sb.append("CONFIGID.UPNP.ORG: ").append(configId).append("\r\n");
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Encodes an ssdp:byebye NOTIFY message.
+     *
+     * @param nt
+     *            The notification type.
+     * @param usn
+     *            The USN.
+     * @param configId
+     *            The CONFIGID.
+     * @return The message.
+     */
+    public static byte[] encodeByebye(final String nt, final String usn, final long configId) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("NOTIFY * HTTP/1.1\r\n");
+        sb.append("HOST: ").append(MULTICAST_ADDRESS).append(':').append(MULTICAST_PORT).append("\r\n");
+        sb.append("NT: ").append(nt).append("\r\n");
+        sb.append("NTS: ssdp:byebye\r\n");
+        sb.append("USN: ").append(usn).append("\r\n");
+        sb.append("BOOTID.UPNP.ORG: ").append(BOOTID).append("\r\n");
+        sb.append("CONFIGID.UPNP.ORG: ").append(configId).append("\r\n");
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
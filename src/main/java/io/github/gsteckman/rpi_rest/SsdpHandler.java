@@ -15,26 +15,34 @@ package io.github.gsteckman.rpi_rest;
  */
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
 import java.net.MulticastSocket;
 import java.net.NetworkInterface;
 import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.prefs.Preferences;
 
 import javax.annotation.PreDestroy;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerInitializedEvent;
+import org.springframework.context.ApplicationListener;
 
 import com.eaio.uuid.UUID;
 import com.nls.net.ssdp.SsdpPacket;
@@ -44,34 +52,68 @@ import com.nls.net.ssdp.SsdpService;
 /**
  * This class implements an SSDP endpoint that responds to M-SEARCH broadcast messages
  * and periodically transmits NOTIFY messages as defined in the UPnP Device Architecture 1.1.
+ * 
+ * M-SEARCH requests for ssdp:all, upnp:rootdevice, the device's UUID or its device type are answered after a random
+ * delay within the request's MX, and repeated requests are answered once, by a SearchReplyScheduler. The search
+ * responses of each interface, including their LOCATION, are encoded once into direct buffers, and re-encoded only when
+ * the server port or CONFIGID changes. Responses are sent through a single non-blocking DatagramChannel, so sending the
+ * replies to an M-SEARCH costs one send per response and no allocation.
+ * 
+ * On a multi-homed host the device is advertised on each multicast capable IPv4 interface, with a LOCATION holding
+ * that interface's address, and a search is answered with the LOCATION of the interface whose subnet contains the
+ * requester. The port in the LOCATION is the one the servlet container actually listens on. Java provides no
+ * notification of network changes, so the set of interfaces is checked every INTERFACE_CHECK_PERIOD ms and the
+ * advertisements follow any interface or address that appears or disappears.
+ * 
+ * The device is announced with ssdp:alive when the handler starts and whenever the interfaces change, and again
+ * every MAX_AGE / 2 seconds. Each announcement is sent ADVERTISEMENT_REPEATS times, REPEAT_INTERVAL ms apart, every
+ * repeat being a separate task on the SSDP scheduler so that no thread waits between them. When the handler is
+ * closed the device is withdrawn with ssdp:byebye. Announcements and withdrawals, like search responses, are sent
+ * once for each of upnp:rootdevice, the device UUID and the device type, each with its own USN.
  *  
  * @see http://www.upnp.org/specs/arch/UPnP-arch-DeviceArchitecture-v1.1.pdf 
  * 
  * @author Greg Steckman
  *
  */
-public class SsdpHandler implements SsdpPacketListener {
+public class SsdpHandler
+        implements SsdpPacketListener, ApplicationListener<EmbeddedServletContainerInitializedEvent> {
     private static final Log LOG = LogFactory.getLog(SsdpHandler.class);
     private static final String ST = "urn:gsteckman-github-io:device:rpi:1"; // search target
-    private static final int MAX_AGE = 1800; // UPnP cache-control max age in seconds
-    private static final long BOOTID = System.currentTimeMillis();
-    private static final long CONFIGID = 1;
+    private static final String SSDP_ALL = "ssdp:all";
+    private static final String ROOT_DEVICE = "upnp:rootdevice";
+    private static final long DEFAULT_CONFIGID = 1;
     private static final String UUID_KEY = "UUID";
-    private static final int MULTICAST_PORT = 1900;
-    private static final String MULTICAST_ADDRESS = "239.255.255.250";
     private static final Preferences PREFERENCES = Preferences.userNodeForPackage(SsdpHandler.class);
-    private static final SsdpHandler INSTANCE = new SsdpHandler();
     private static final int TTL = 2;
-    private SsdpService svc;
-    private InetAddress serverAddress = null;
-    private MulticastSocket notifySocket;
-    private Timer notifyTimer;
+    private static final int DEFAULT_PORT = 8080;
+    private static final long INTERFACE_CHECK_PERIOD = 10000; // ms
+    private static final int ADVERTISEMENT_REPEATS = 3; // times each advertisement is sent, for UDP's unreliability
+    private static final long REPEAT_INTERVAL = 1000; // ms between repeats of an advertisement
+    private volatile SsdpService svc;
+    private volatile List<Interface> interfaces = Collections.emptyList(); // replaced, never modified
+    private final UUID uuid = getUuid();
+    // the notification types (search targets) advertised, and the USN sent with each
+    private final String[] targets = {ROOT_DEVICE, "uuid:" + uuid, ST};
+    private final String[] usns = {"uuid:" + uuid + "::" + ROOT_DEVICE, "uuid:" + uuid, "uuid:" + uuid + "::" + ST};
+    private volatile long configId = DEFAULT_CONFIGID;
+    private volatile int serverPort = DEFAULT_PORT;
+    private DatagramChannel responseChannel;
+    private ScheduledExecutorService scheduler;
+    private SearchReplyScheduler replies;
 
     /** 
      * @return The instance of this class.
      */
     public static SsdpHandler getInstance() {
-        return INSTANCE;
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Holds the instance, so that it's created on first use rather than when the class is initialized.
+     */
+    private static final class Holder {
+        private static final SsdpHandler INSTANCE = new SsdpHandler();
     }
 
     /**
@@ -81,34 +123,43 @@ public class SsdpHandler implements SsdpPacketListener {
         LOG.info("Instantiating SsdpHandler");
 
         try {
-            // Use first IPv4 address that isn't loopback, any, or link local as the server address
-            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces.hasMoreElements() && serverAddress == null) {
-                NetworkInterface i = interfaces.nextElement();
-                Enumeration<InetAddress> addresses = i.getInetAddresses();
-                while (addresses.hasMoreElements() && serverAddress == null) {
-                    InetAddress address = addresses.nextElement();
-                    if (address instanceof Inet4Address) {
-                        if (!address.isAnyLocalAddress() && !address.isLinkLocalAddress()
-                                && !address.isLoopbackAddress() && !address.isMulticastAddress()) {
-                            serverAddress = address;
-                        }
-                    }
-                }
+            refreshInterfaces();
+            if (interfaces.isEmpty()) {
+                LOG.warn("No network interface to advertise on");
             }
 
-            if (serverAddress == null) {
-                LOG.warn("Server address unknown");
-            }
+            responseChannel = DatagramChannel.open();
+            responseChannel.configureBlocking(false);
+            responseChannel.bind(null);
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "SSDP Scheduler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            replies = new SearchReplyScheduler(scheduler, new SearchReplyScheduler.Sender() {
+                public void send(final SocketAddress to, final String st) {
+                    sendResponse(to, st);
+                }
+            });
 
             svc = SsdpService.forAllMulticastAvailableNetworkInterfaces(this);
             svc.listen();
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    checkInterfaces();
+                }
+            }, INTERFACE_CHECK_PERIOD, INTERFACE_CHECK_PERIOD, TimeUnit.MILLISECONDS);
 
-            // setup Multicast for Notify messages
-            notifySocket = new MulticastSocket();
-            notifySocket.setTimeToLive(TTL);
-            notifyTimer = new Timer("UPnP Notify Timer", true);
-            notifyTimer.scheduleAtFixedRate(new NotifySender(), 5000, MAX_AGE * 1000 / 2);
+            // announce immediately, then re-advertise within half of MAX_AGE
+            for (int n = 0; n < ADVERTISEMENT_REPEATS; n++) {
+                scheduler.scheduleAtFixedRate(new Runnable() {
+                    public void run() {
+                        sendAlive();
+                    }
+                }, n * REPEAT_INTERVAL, SsdpEncoder.MAX_AGE * 1000 / 2, TimeUnit.MILLISECONDS);
+            }
         } catch (Exception e) {
             LOG.error("SsdpHandler in unknown state due to exception in constructor.", e);
         }
@@ -122,11 +173,44 @@ public class SsdpHandler implements SsdpPacketListener {
         LOG.debug(pkt.getMessage());
         Map<String, String> headers = pkt.getMessage().getHeaders();
         String st = headers.get("ST");
-        if (ST.equals(st)) {
-            sendResponse(pkt.getSocketAddress());
+        if (SSDP_ALL.equals(st) || ROOT_DEVICE.equals(st) || ST.equals(st) || targets[1].equals(st)) {
+            int mx = 1;
+            try {
+                mx = Integer.parseInt(headers.get("MX").trim());
+            } catch (NullPointerException | NumberFormatException e) {
+                LOG.debug("Invalid MX in M-SEARCH", e);
+            }
+            replies.schedule(pkt.getSocketAddress(), st, mx);
         }
     }
 
+    /**
+     * Implements the ApplicationListener interface to learn the port of the servlet container, which is advertised in
+     * the LOCATION header.
+     */
+    public void onApplicationEvent(final EmbeddedServletContainerInitializedEvent event) {
+        if (!"management".equals(event.getApplicationContext().getNamespace())) {
+            setServerPort(event.getEmbeddedServletContainer().getPort());
+        }
+    }
+
+    /**
+     * Sets the port advertised in the LOCATION header. Defaults to 8080, and is set when the servlet container starts.
+     * 
+     * @param port
+     *            The port of the HTTP server.
+     */
+    public void setServerPort(final int port) {
+        serverPort = port;
+    }
+
+    /**
+     * @return The port advertised in the LOCATION header.
+     */
+    public int getServerPort() {
+        return serverPort;
+    }
+
     /**
      * Retrieves a previously generated UUID from the Preferences store, and if none exists creates a new UUID and saves it in the Preferences store.
      * 
@@ -145,103 +229,355 @@ public class SsdpHandler implements SsdpPacketListener {
         return id;
     }
 
-    private void sendResponse(final SocketAddress addr) {
+    /**
+     * Sets the CONFIGID.UPNP.ORG value advertised, which must be changed whenever the device description changes.
+     * 
+     * @param id
+     *            The configuration number.
+     */
+    public void setConfigId(final long id) {
+        configId = id;
+    }
+
+    /**
+     * @return The CONFIGID.UPNP.ORG value advertised.
+     */
+    public long getConfigId() {
+        return configId;
+    }
+
+    /**
+     * Sends the response or responses to a search. A search for ssdp:all is answered with one response for each of
+     * upnp:rootdevice, the device UUID and the device type.
+     */
+    private synchronized void sendResponse(final SocketAddress addr, final String st) {
         if (!(addr instanceof InetSocketAddress)) {
             LOG.warn("Don't know how to handle non Internet addresses");
             return;
         }
-        DatagramSocket sock = null;
-        LOG.debug("Responding to " + addr.toString());
+        Interface i = getInterface(interfaces, ((InetSocketAddress) addr).getAddress());
+        if (i == null) {
+            LOG.debug("No interface to respond to " + addr + " from");
+            return;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Responding to " + addr.toString() + " for " + i);
+        }
 
         try {
-            sock = new DatagramSocket();
-            sock.connect(addr);
-            byte[] ba = generateSearchResponse().getBytes();
-            sock.send(new DatagramPacket(ba, ba.length));
+            ByteBuffer[] responses = i.getSearchResponses(serverPort, configId, targets, usns);
+            for (int n = 0; n < targets.length; n++) {
+                if (SSDP_ALL.equals(st) || targets[n].equals(st)) {
+                    send(responses[n], addr);
+                }
+            }
         } catch (IOException e) {
             LOG.error(e.getMessage());
-        } finally {
-            if (sock != null) {
-                sock.close();
-            }
         }
     }
 
-    private String getServerAddress() {
-        if (serverAddress == null) {
-            return "127.0.0.1";
-        } else {
-            return serverAddress.getHostAddress();
+    private void send(final ByteBuffer response, final SocketAddress addr) throws IOException {
+        response.rewind();
+        if (responseChannel.send(response, addr) == 0) {
+            LOG.debug("Send buffer full, response to " + addr + " dropped");
         }
     }
 
-    private String generateSearchResponse() throws IOException {
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw);
-        pw.print("HTTP/1.1 200 OK\r\n");
-        pw.printf("CACHE-CONTROL: max-age=%d\r\n", MAX_AGE);
-        pw.print("EXT:\r\n");
-        pw.printf("LOCATION: http://%s:8080\r\n", getServerAddress());
-        pw.print("SERVER: " + System.getProperty("os.name") + "/" + System.getProperty("os.version")
-                + ", UPnP/1.1, rpi-rest/0.1\r\n");
-        pw.printf("ST: %s\r\n", ST);
-        pw.printf("USN: uuid:%s\r\n", getUuid().toString());
-        pw.printf("BOOTID.UPNP.ORG: %d\r\n", BOOTID);
-        pw.printf("CONFIGID.UPNP.ORG: %d\r\n", CONFIGID);
-        pw.printf("\r\n");
-        pw.flush();
-        String resp = sw.toString();
-        pw.close();
-        sw.close();
-        return resp;
+    /**
+     * Returns the interface from which to answer a requester: the first whose subnet contains the requester's address,
+     * or if none does, the first interface.
+     * 
+     * @param candidates
+     *            The interfaces advertised on.
+     * @param requester
+     *            Address of the requester.
+     * @return The interface, or null if there are none.
+     */
+    static Interface getInterface(final List<Interface> candidates, final InetAddress requester) {
+        for (Interface i : candidates) {
+            if (i.contains(requester)) {
+                return i;
+            }
+        }
+        return candidates.isEmpty() ? null : candidates.get(0);
     }
 
-    private String generateNotify() throws IOException {
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw);
-        pw.printf("NOTIFY * HTTP/1.1\r\n");
-        pw.printf("HOST: %s:%d\r\n", MULTICAST_ADDRESS, MULTICAST_PORT);
-        pw.printf("CACHE-CONTROL: max-age=%d\r\n", MAX_AGE);
-        pw.printf("LOCATION: http://%s:8080\r\n", getServerAddress());
-        pw.printf("NT: %s\r\n", ST);
-        pw.printf("NTS: ssdp:alive\r\n");
-        pw.print("SERVER: " + System.getProperty("os.name") + "/" + System.getProperty("os.version")
-                + ", UPnP/1.1, rpi-rest/0.1\r\n");
-        pw.printf("USN: uuid:%s\r\n", getUuid().toString());
-        pw.printf("BOOTID.UPNP.ORG: %d\r\n", BOOTID);
-        pw.printf("CONFIGID.UPNP.ORG: %d\r\n", CONFIGID);
-        pw.printf("\r\n");
-        pw.flush();
-        String resp = sw.toString();
-        pw.close();
-        sw.close();
-        return resp;
+    /**
+     * Sends the ssdp:alive messages on each interface. A failure on one interface doesn't prevent sending on the
+     * others, or the next repeat.
+     */
+    private void sendAlive() {
+        for (Interface i : interfaces) {
+            try {
+                for (DatagramPacket p : i.getNotifies(serverPort, configId, targets, usns)) {
+                    i.socket.send(p);
+                }
+            } catch (IOException e) {
+                LOG.warn("Exception sending ssdp:alive on " + i, e);
+            }
+        }
+    }
+
+    /**
+     * Sends the ssdp:byebye messages on each interface.
+     */
+    private void sendByebye() {
+        long id = configId;
+        byte[][] messages = new byte[targets.length][];
+        for (int n = 0; n < targets.length; n++) {
+            messages[n] = SsdpEncoder.encodeByebye(targets[n], usns[n], id);
+        }
+        for (Interface i : interfaces) {
+            try {
+                InetAddress group = InetAddress.getByName(SsdpEncoder.MULTICAST_ADDRESS);
+                for (byte[] ba : messages) {
+                    i.socket.send(new DatagramPacket(ba, ba.length, group, SsdpEncoder.MULTICAST_PORT));
+                }
+            } catch (IOException e) {
+                LOG.warn("Exception sending ssdp:byebye on " + i, e);
+            }
+        }
     }
 
-    private class NotifySender extends TimerTask {
-        private byte[] ba;
-        DatagramPacket pkt;
+    /**
+     * Schedules a one-time announcement, sent ADVERTISEMENT_REPEATS times.
+     */
+    private void announce() {
+        for (int n = 0; n < ADVERTISEMENT_REPEATS; n++) {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    sendAlive();
+                }
+            }, n * REPEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
 
-        public NotifySender() throws IOException {
-            ba = generateNotify().getBytes();
-            pkt = new DatagramPacket(ba, ba.length, InetAddress.getByName(MULTICAST_ADDRESS), MULTICAST_PORT);
+    /**
+     * Enumerates the interfaces to advertise on: one for each IPv4 address that isn't loopback, any, or link local of
+     * each network interface that is up and supports multicast.
+     */
+    private static List<Interface> findInterfaces() throws SocketException {
+        List<Interface> found = new ArrayList<Interface>();
+        Enumeration<NetworkInterface> nis = NetworkInterface.getNetworkInterfaces();
+        while (nis != null && nis.hasMoreElements()) {
+            NetworkInterface ni = nis.nextElement();
+            if (!ni.isUp() || ni.isLoopback() || !ni.supportsMulticast()) {
+                continue;
+            }
+            for (InterfaceAddress ia : ni.getInterfaceAddresses()) {
+                InetAddress address = ia.getAddress();
+                if (address instanceof Inet4Address && !address.isAnyLocalAddress() && !address.isLinkLocalAddress()
+                        && !address.isLoopbackAddress() && !address.isMulticastAddress()) {
+                    found.add(new Interface(ni, (Inet4Address) address, ia.getNetworkPrefixLength()));
+                }
+            }
         }
+        return found;
+    }
 
-        public void run() {
+    /**
+     * Updates the interfaces advertised on to those currently present.
+     * 
+     * @return true if the set of interfaces changed.
+     */
+    private synchronized boolean refreshInterfaces() throws SocketException {
+        List<Interface> current = interfaces;
+        interfaces = update(current, findInterfaces());
+        return !interfaces.equals(current);
+    }
+
+    /**
+     * Works out the interfaces to advertise on from those found: an interface equal to a current one is kept, with its
+     * socket and encoded messages, and a new one has its multicast socket opened, or is left out if that fails. The
+     * current interfaces that weren't found are closed.
+     * 
+     * @param current
+     *            The interfaces advertised on.
+     * @param found
+     *            The interfaces now present.
+     * @return An unmodifiable list of the interfaces to advertise on, in the order found.
+     */
+    static List<Interface> update(final List<Interface> current, final List<Interface> found) {
+        List<Interface> updated = new ArrayList<Interface>(found.size());
+        for (Interface f : found) {
+            int k = current.indexOf(f);
+            if (k >= 0) {
+                updated.add(current.get(k));
+                continue;
+            }
             try {
-                for(int i = 0; i< 3; i++){
-                    notifySocket.send(pkt);
-                    try{
-                        Thread.sleep(1000);
-                    }catch(InterruptedException e){
-                        return;
-                    }
-                }
+                f.open();
+                LOG.info("Advertising on " + f);
+                updated.add(f);
             } catch (IOException e) {
-                LOG.warn("Exception in sendNotify", e);
+                LOG.warn("Unable to advertise on " + f, e);
+            }
+        }
+        for (Interface c : current) {
+            if (!updated.contains(c)) {
+                LOG.info("No longer advertising on " + c);
+                c.close();
+            }
+        }
+        return Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * Refreshes the interfaces, and if they changed restarts the SSDP service so that it listens on the new set and
+     * announces the device.
+     */
+    private void checkInterfaces() {
+        try {
+            if (refreshInterfaces()) {
+                SsdpService old = svc;
+                svc = SsdpService.forAllMulticastAvailableNetworkInterfaces(this);
+                svc.listen();
+                if (old != null) {
+                    old.close();
+                }
+                announce();
+            }
+        } catch (IOException e) {
+            LOG.warn("Exception checking network interfaces", e);
+        }
+    }
+
+    /**
+     * An IPv4 address of a network interface on which the device is advertised, with the multicast socket used to send
+     * NOTIFY messages from it and the messages advertised on it. Two instances are equal if they have the same
+     * interface, address and prefix length.
+     */
+    static final class Interface {
+        private final NetworkInterface ni;
+        private final Inet4Address address;
+        private final int prefixLength;
+        private final SsdpEncoder encoder;
+        private MulticastSocket socket;
+        private DatagramPacket[] notifies; // one per notification type, guarded by this
+        private int notifyPort; // server port and CONFIGID for which notifies were generated
+        private long notifyConfigId;
+
+        Interface(final NetworkInterface ni, final Inet4Address address, final int prefixLength) {
+            this.ni = ni;
+            this.address = address;
+            this.prefixLength = prefixLength;
+            encoder = new SsdpEncoder(address.getHostAddress());
+        }
+
+        /**
+         * @return The LOCATION advertised on this interface for the server port.
+         */
+        String getLocation(final int port) {
+            return encoder.getLocation(port);
+        }
+
+        /**
+         * Returns the encoded search responses, one for each search target, as cached by this interface's
+         * SsdpEncoder. The buffers are shared, and must be rewound before sending.
+         *
+         * @param port
+         *            The server port, advertised in the LOCATION.
+         * @param id
+         *            The CONFIGID.
+         * @param targets
+         *            The search targets.
+         * @param usns
+         *            The USN sent with each search target.
+         * @return The responses, in the order of targets.
+         */
+        ByteBuffer[] getSearchResponses(final int port, final long id, final String[] targets, final String[] usns) {
+            return encoder.getSearchResponses(port, id, targets, usns);
+        }
+
+        /**
+         * Returns the NOTIFY packets advertising the device, one per notification type, generating them if the server
+         * port or CONFIGID has changed since they were last generated.
+         *
+         * @param port
+         *            The server port, advertised in the LOCATION.
+         * @param id
+         *            The CONFIGID.
+         * @param targets
+         *            The notification types.
+         * @param usns
+         *            The USN sent with each notification type.
+         * @return The packets, in the order of targets.
+         * @throws IOException
+         *             If the multicast group can't be resolved.
+         */
+        synchronized DatagramPacket[] getNotifies(final int port, final long id, final String[] targets,
+                final String[] usns) throws IOException {
+            if (notifies == null || id != notifyConfigId || port != notifyPort) {
+                String loc = getLocation(port);
+                InetAddress group = InetAddress.getByName(SsdpEncoder.MULTICAST_ADDRESS);
+                DatagramPacket[] packets = new DatagramPacket[targets.length];
+                for (int n = 0; n < targets.length; n++) {
+                    byte[] ba = SsdpEncoder.encodeNotify(loc, targets[n], usns[n], id);
+                    packets[n] = new DatagramPacket(ba, ba.length, group, SsdpEncoder.MULTICAST_PORT);
+                }
+                notifies = packets;
+                notifyPort = port;
+                notifyConfigId = id;
+            }
+            return notifies;
+        }
+
+        void open() throws IOException {
+            socket = new MulticastSocket(new InetSocketAddress(address, 0));
+            socket.setTimeToLive(TTL);
+            socket.setNetworkInterface(ni);
+        }
+
+        void close() {
+            if (socket != null) {
+                socket.close();
             }
         }
 
+        /**
+         * @return true if the multicast socket is open.
+         */
+        boolean isOpen() {
+            return socket != null && !socket.isClosed();
+        }
+
+        /**
+         * @param a
+         *            An address.
+         * @return true if the address is an IPv4 address on this interface's subnet. A prefix length of 0 is a subnet
+         *         holding every address; one out of range, as some platforms report, holds none.
+         */
+        boolean contains(final InetAddress a) {
+            if (!(a instanceof Inet4Address) || prefixLength < 0 || prefixLength > 32) {
+                return false;
+            }
+            int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength); // a shift by 32 would shift by 0
+            return (toInt(a) & mask) == (toInt(address) & mask);
+        }
+
+        private static int toInt(final InetAddress a) {
+            byte[] b = a.getAddress();
+            return (b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Interface)) {
+                return false;
+            }
+            Interface i = (Interface) o;
+            return ni.getName().equals(i.ni.getName()) && address.equals(i.address) && prefixLength == i.prefixLength;
+        }
+
+        @Override
+        public int hashCode() {
+            return ni.getName().hashCode() * 31 + address.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return ni.getName() + " " + address.getHostAddress() + "/" + prefixLength;
+        }
     }
 
     /**
@@ -251,7 +587,15 @@ public class SsdpHandler implements SsdpPacketListener {
     public void close() {
         LOG.info("closing SsdpHandler");
         svc.close();
-        notifyTimer.cancel();
-        notifySocket.close();
+        scheduler.shutdownNow();
+        sendByebye();
+        for (Interface i : interfaces) {
+            i.close();
+        }
+        try {
+            responseChannel.close();
+        } catch (IOException e) {
+            LOG.warn("Exception closing response channel", e);
+        }
     }
 }
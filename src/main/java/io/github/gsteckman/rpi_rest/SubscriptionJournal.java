@@ -0,0 +1,424 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * SubscriptionJournal.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only journal of GENA subscriptions, allowing a SubscriptionManager to restore its subscriptions after a
+ * restart. The journal is a memory-mapped file holding a sequence of records, each of which adds or replaces a
+ * subscription (SUBSCRIBE and RENEW records) or removes one (UNSUBSCRIBE records). Replaying the records in order gives
+ * the live subscriptions, with their expiration and event key as of the last record written for each.
+ *
+ * Records are queued by the calling thread and written in batches by a background thread, which forces the mapped file
+ * to storage once per batch, so journaling adds no I/O latency to SUBSCRIBE and UNSUBSCRIBE requests. A crash loses at
+ * most the last FLUSH_INTERVAL ms of changes. Each record carries a CRC, so a record torn by a crash ends the replay.
+ *
+ * When the file is full, or holds many more records than there are live subscriptions, it is compacted by writing one
+ * record per live subscription to a new file which then replaces the journal. An existing file that doesn't start with
+ * the journal header is not overwritten but renamed with a ".bad" suffix, and a new journal is started.
+ *
+ * Record layout, in network byte order:
+ *
+ * <pre>
+ * byte    type: 1 = SUBSCRIBE, 2 = RENEW, 3 = UNSUBSCRIBE; 0 marks the end of the journal
+ * int     payload length
+ * int     CRC-32 of the payload
+ * byte[]  payload: key, SID, and for SUBSCRIBE and RENEW the expiration, event key and callback URLs
+ * </pre>
+ *
+ * @author Greg Steckman
+ *
+ */
+public class SubscriptionJournal {
+    private static final Log LOG = LogFactory.getLog(SubscriptionJournal.class);
+    private static final int MAGIC = 0x47454e41; // "GENA"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final int MIN_SIZE = 1 << 20; // bytes
+    private static final long FLUSH_INTERVAL = 100; // ms
+    private static final byte SUBSCRIBE = 1;
+    private static final byte RENEW = 2;
+    private static final byte UNSUBSCRIBE = 3;
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(); // by SID, guarded by this
+    private final Queue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();
+    private final ScheduledExecutorService flusher;
+    private FileChannel channel; // accessed by the flusher thread, or under the lock on this when closing
+    private MappedByteBuffer map;
+    private int records;
+    private boolean closed;
+
+    /**
+     * Opens the journal, replaying any existing records, and starts the background writer.
+     *
+     * @param file
+     *            The journal file, which is created if it doesn't exist.
+     * @throws IOException
+     *             If the file can't be opened or mapped.
+     */
+    public SubscriptionJournal(final File file) throws IOException {
+        this.file = file;
+        if (file.exists() && file.length() > 0 && !replay()) {
+            File bad = new File(file.getPath() + ".bad");
+            Files.move(file.toPath(), bad.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            LOG.warn("Unrecognized subscription journal " + file + " moved to " + bad);
+        }
+        // rewrite the replayed subscriptions into a fresh file, which also discards any torn record
+        compact();
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "Subscription Journal");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The subscriptions recorded in the journal.
+     */
+    public synchronized Collection<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries.values()));
+    }
+
+    /**
+     * Records a new subscription.
+     *
+     * @param e
+     *            The subscription.
+     */
+    public synchronized void subscribed(final Entry e) {
+        entries.put(e.sid, e);
+        queue.add(encode(SUBSCRIBE, e));
+    }
+
+    /**
+     * Records the renewal of a subscription, or its latest event key.
+     *
+     * @param sid
+     *            The subscription ID.
+     * @param expiration
+     *            The new expiration, in ms from the time epoch.
+     * @param eventKey
+     *            The event key to be used for the next event sent.
+     */
+    public synchronized void renewed(final String sid, final long expiration, final long eventKey) {
+        Entry old = entries.get(sid);
+        if (old != null) {
+            Entry e = new Entry(old.key, sid, expiration, eventKey, old.callbacks);
+            entries.put(sid, e);
+            queue.add(encode(RENEW, e));
+        }
+    }
+
+    /**
+     * Records the removal of a subscription.
+     *
+     * @param sid
+     *            The subscription ID.
+     */
+    public synchronized void unsubscribed(final String sid) {
+        Entry e = entries.remove(sid);
+        if (e != null) {
+            queue.add(encode(UNSUBSCRIBE, e));
+        }
+    }
+
+    /**
+     * Writes any queued records, compacts the journal and closes it.
+     */
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.clear();
+            try {
+                compact();
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Exception closing subscription journal", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the queued records to the mapped file and forces them to storage. Runs on the flusher thread.
+     */
+    private void flush() {
+        if (queue.isEmpty()) {
+            return;
+        }
+        int live;
+        synchronized (this) {
+            live = entries.size();
+        }
+        try {
+            byte[] r;
+            while ((r = queue.peek()) != null) {
+                if (map.remaining() < r.length + 1 || records > 4 * live + 1024) {
+                    synchronized (this) {
+                        // the compacted file reflects every queued record
+                        queue.clear();
+                        compact();
+                    }
+                    return;
+                }
+                map.put(r);
+                records++;
+                queue.poll();
+            }
+            map.force();
+        } catch (IOException e) {
+            LOG.warn("Exception writing subscription journal", e);
+        }
+    }
+
+    /**
+     * Writes one SUBSCRIBE record per unexpired subscription to a new file, replaces the journal with it and maps it.
+     */
+    private synchronized void compact() throws IOException {
+        List<byte[]> recs = new ArrayList<byte[]>(entries.size());
+        long size = HEADER_SIZE + 1;
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            Entry e = it.next();
+            if (e.expiration <= now) {
+                it.remove();
+                continue;
+            }
+            byte[] r = encode(SUBSCRIBE, e);
+            recs.add(r);
+            size += r.length;
+        }
+        size = Math.max(MIN_SIZE, Long.highestOneBit(size) << 2);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        m.putInt(MAGIC).putInt(VERSION);
+        for (byte[] r : recs) {
+            m.put(r);
+        }
+        m.force();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (channel != null) {
+            channel.close();
+        }
+        channel = ch;
+        map = m;
+        records = recs.size();
+    }
+
+    /**
+     * Reads the journal file, applying each record to the set of live subscriptions.
+     *
+     * @return false if the file doesn't start with the journal header, in which case nothing is read.
+     */
+    private boolean replay() throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (m.remaining() < HEADER_SIZE || m.getInt() != MAGIC || m.getInt() != VERSION) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            while (m.remaining() >= RECORD_HEADER_SIZE) {
+                byte type = m.get();
+                int len = m.getInt();
+                int sum = m.getInt();
+                if (type == 0 || len < 0 || len > m.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[len];
+                m.get(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != sum) {
+                    LOG.warn("Subscription journal " + file + " ends with a damaged record");
+                    break;
+                }
+                apply(type, payload);
+            }
+        } catch (BufferUnderflowException e) {
+            LOG.warn("Subscription journal " + file + " is truncated", e);
+        } finally {
+            ch.close();
+        }
+        return true;
+    }
+
+    private void apply(final byte type, final byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String key = in.readUTF();
+        String sid = in.readUTF();
+        if (type == UNSUBSCRIBE) {
+            entries.remove(sid);
+            return;
+        }
+        long expiration = in.readLong();
+        long eventKey = in.readLong();
+        int n = in.readUnsignedShort();
+        List<String> callbacks = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+            callbacks.add(in.readUTF());
+        }
+        entries.put(sid, new Entry(key, sid, expiration, eventKey, callbacks));
+    }
+
+    private static byte[] encode(final byte type, final Entry e) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeUTF(e.key);
+            out.writeUTF(e.sid);
+            if (type != UNSUBSCRIBE) {
+                out.writeLong(e.expiration);
+                out.writeLong(e.eventKey);
+                out.writeShort(e.callbacks.size());
+                for (String cb : e.callbacks) {
+                    out.writeUTF(cb);
+                }
+            }
+            byte[] payload = bos.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            bos.reset();
+            out.writeByte(type);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+            return bos.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // not thrown by ByteArrayOutputStream
+        }
+    }
+
+    /**
+     * A subscription recorded in the journal.
+     */
+    public static class Entry {
+        private final String key;
+        private final String sid;
+        private final long expiration;
+        private final long eventKey;
+        private final List<String> callbacks;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param key
+         *            Key identifying the subscribed resource.
+         * @param sid
+         *            The subscription ID.
+         * @param expiration
+         *            The time the subscription expires, in ms from the time epoch.
+         * @param eventKey
+         *            The event key to be used for the next event sent.
+         * @param callbacks
+         *            The callback URLs.
+         */
+        public Entry(final String key, final String sid, final long expiration, final long eventKey,
+                final List<String> callbacks) {
+            this.key = key;
+            this.sid = sid;
+            this.expiration = expiration;
+            this.eventKey = eventKey;
+            this.callbacks = callbacks;
+        }
+
+        /**
+         * @return The key identifying the subscribed resource.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return The subscription ID.
+         */
+        public String getSid() {
+            return sid;
+        }
+
+        /**
+         * @return The time the subscription expires, in ms from the time epoch.
+         */
+        public long getExpiration() {
+            return expiration;
+        }
+
+        /**
+         * @return The event key to be used for the next event sent.
+         */
+        public long getEventKey() {
+            return eventKey;
+        }
+
+        /**
+         * @return The callback URLs.
+         */
+        public List<String> getCallbacks() {
+            return Collections.unmodifiableList(callbacks);
+        }
+    }
+}
@@ -17,21 +17,32 @@ package io.github.gsteckman.rpi_rest;
  */
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.channels.ClosedByInterruptException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -41,21 +52,161 @@ import org.apache.commons.logging.LogFactory;
 
 import com.eaio.uuid.UUID;
 
+import io.github.gsteckman.rpi_rest.NotifyEncoder.Event;
+
 /**
  * This class processes and manages UPnP subscriptions. It is to be used in conjunction with one or more HTTP Servlets.
  * Subscription to more than one resource is managed through use of a key that identifies the resource.
+ * 
+ * Events are delivered asynchronously by a bounded pool of dispatcher threads. Each subscription has its own queue of
+ * pending events which is drained by at most one thread at a time, so events are delivered to each subscriber in the
+ * order fired and with consecutive SEQ values. A dispatcher thread delivers one event and then resubmits the
+ * subscription behind any others waiting, and an attempt to deliver an event gives up after MAX_DELIVERY_TIME, so a
+ * slow or unreachable subscriber delays only its own events. A subscription whose events can't be delivered to any of
+ * its callback URLs is retried after a delay that doubles with each consecutive failure, up to MAX_RETRY_DELAY, and
+ * holds no thread while it waits.
+ * 
+ * The rate of events may be limited in two ways. A minimum interval between NOTIFYs may be set for all subscriptions,
+ * or for individual subscriptions, and a minimum interval between events may be set per key; events fired for the key
+ * within its interval are deferred, with only the most recent deferred event being fired once the interval has passed.
+ * In coalescing mode each subscription holds at most one pending event, so an event that hasn't yet been sent because
+ * a previous send is still in progress or the subscription's minimum interval hasn't passed is replaced by a newer
+ * one. Coalescing is suitable when each event carries the complete current state of the resource.
+ * 
+ * The registry of subscriptions is a ConcurrentHashMap of keys to ConcurrentHashMaps of subscriptions, so
+ * subscriptions may be added, removed and iterated by fireEvent concurrently without locking or copying.
+ * 
+ * Each subscription has a task scheduled on the dispatcher at its expiration which removes it unless it has been
+ * renewed, in which case the task is rescheduled for the new expiration.
+ * 
+ * Subscriptions may optionally be recorded in a SubscriptionJournal, from which they are restored when a new
+ * SubscriptionManager is created, so that subscribers continue to receive events across a restart. The event key of
+ * each subscription is recorded on renewal and at shutdown; after a crash a subscription resumes from the event key
+ * recorded at its last renewal.
+ * 
+ * NOTIFY requests are sent over persistent connections from a NotifyConnectionPool, and a NOTIFY is considered
+ * delivered only when the subscriber answers with a 2xx status. The host of each callback URL is resolved once, when
+ * the subscription is created, rather than for each event.
  *
  */
 public class SubscriptionManager {
     private static final Log LOG = LogFactory.getLog(SubscriptionManager.class);
     private static final long DEFAULT_TIMEOUT = 3600000; // ms
-    private Map<String, Map<UUID, SubscriptionInfo>> subscriptions = Collections
-            .synchronizedMap(new HashMap<String, Map<UUID, SubscriptionInfo>>());
+    private static final int DEFAULT_THREADS = 4;
+    private static final int CONNECT_TIMEOUT = 5000; // ms
+    private static final int SO_TIMEOUT = 5000; // ms
+    private static final long IDLE_TIMEOUT = 15000; // ms, idle pooled connections are closed after this time
+    private static final int MAX_PENDING = 64; // events queued per subscription
+    private static final long INITIAL_EVENT_DELAY = 50; // ms, for the SUBSCRIBE response to reach the subscriber
+    private static final long MAX_DELIVERY_TIME = 10000; // ms, spent trying the callback URLs for one event
+    private static final long RETRY_DELAY = 1000; // ms, after the first failed delivery to a subscription
+    private static final long MAX_RETRY_DELAY = 60000; // ms
+    static final int MAX_CALLBACKS = 8; // callback URLs accepted per subscription
+    static final int MAX_CALLBACK_LENGTH = 256; // characters per callback URL
+    private static final String HTTP = "http://";
+    private static final URL HTTP_CONTEXT = httpContext();
+    private final ConcurrentMap<String, Map<UUID, SubscriptionInfo>> subscriptions =
+            new ConcurrentHashMap<String, Map<UUID, SubscriptionInfo>>();
+    private static final Function<String, Map<UUID, SubscriptionInfo>> NEW_KEY =
+            new Function<String, Map<UUID, SubscriptionInfo>>() {
+                public Map<UUID, SubscriptionInfo> apply(final String key) {
+                    return new ConcurrentHashMap<UUID, SubscriptionInfo>();
+                }
+            };
+    private final ScheduledExecutorService dispatcher;
+    private final Map<String, KeyLimiter> keyLimiters = new ConcurrentHashMap<String, KeyLimiter>();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private volatile boolean coalescing;
+    private volatile long minInterval;
+    private final SubscriptionJournal journal;
+    private final NotifyConnectionPool connections = new NotifyConnectionPool(CONNECT_TIMEOUT, SO_TIMEOUT,
+            IDLE_TIMEOUT);
 
     /**
-     * Creates a new SubscriptionManager.
+     * Creates a new SubscriptionManager with the default number of dispatcher threads.
      */
     public SubscriptionManager() {
+        this(DEFAULT_THREADS);
+    }
+
+    /**
+     * Creates a new SubscriptionManager.
+     * 
+     * @param threads
+     *            Maximum number of threads delivering events concurrently.
+     */
+    public SubscriptionManager(final int threads) {
+        this(threads, null);
+    }
+
+    /**
+     * Creates a new SubscriptionManager with the default number of dispatcher threads which records subscriptions in a
+     * journal, and restores the unexpired subscriptions already recorded there.
+     * 
+     * @param journal
+     *            Journal in which subscriptions are recorded, or null if subscriptions aren't to be persisted.
+     */
+    public SubscriptionManager(final SubscriptionJournal journal) {
+        this(DEFAULT_THREADS, journal);
+    }
+
+    /**
+     * Creates a new SubscriptionManager which records subscriptions in a journal, and restores the unexpired
+     * subscriptions already recorded there.
+     * 
+     * @param threads
+     *            Maximum number of threads delivering events concurrently.
+     * @param journal
+     *            Journal in which subscriptions are recorded, or null if subscriptions aren't to be persisted.
+     */
+    public SubscriptionManager(final int threads, final SubscriptionJournal journal) {
+        this.journal = journal;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "UPnP Event Dispatcher " + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // expiry tasks of unsubscribed subscriptions are cancelled, so remove them from the queue straight away
+        executor.setRemoveOnCancelPolicy(true);
+        dispatcher = executor;
+        if (journal != null) {
+            restore();
+        }
+    }
+
+    /**
+     * Recreates the subscriptions recorded in the journal.
+     */
+    private void restore() {
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        for (SubscriptionJournal.Entry e : journal.getEntries()) {
+            if (e.getExpiration() <= now) {
+                journal.unsubscribed(e.getSid());
+                continue;
+            }
+            List<URL> urls = new LinkedList<URL>();
+            for (String cb : e.getCallbacks()) {
+                try {
+                    urls.add(new URL(cb));
+                } catch (MalformedURLException ex) {
+                    LOG.warn("Ignoring malformed URL", ex);
+                }
+            }
+            SubscriptionInfo si = new SubscriptionInfo(e.getKey(), new UUID(e.getSid()), 0, urls);
+            si.expiration = e.getExpiration();
+            si.eventKey = e.getEventKey();
+            addSubscription(e.getKey(), si.sid, si);
+            si.scheduleExpiry();
+            restored++;
+        }
+        LOG.info("Restored " + restored + " subscriptions");
     }
 
     /**
@@ -71,6 +222,29 @@ public class SubscriptionManager {
      *             Thrown by HttpServletResponse.sendError if an error occurs writing the response.
      */
     public void processSubscribe(String key, HttpServletRequest req, HttpServletResponse res) throws IOException {
+        processSubscribe(key, req, res, null, null);
+    }
+
+    /**
+     * Processes a UPnP SUBSCRIBE request and creates or renews a subscription. A new subscription is sent the provided
+     * initial event, with SEQ 0, before any event fired after it is created. The initial event is delayed by
+     * INITIAL_EVENT_DELAY ms so that the subscriber receives the SID in the SUBSCRIBE response first.
+     * 
+     * @param key
+     *            The key identifies the resource to which this subscription applies.
+     * @param req
+     *            Subscription request
+     * @param res
+     *            Response to the subscription request
+     * @param contentType
+     *            The content type of the initial event's body.
+     * @param initialBody
+     *            The body of the initial event, describing the current state of the resource, or null to send none.
+     * @throws IOException
+     *             Thrown by HttpServletResponse.sendError if an error occurs writing the response.
+     */
+    public void processSubscribe(String key, HttpServletRequest req, HttpServletResponse res, String contentType,
+            String initialBody) throws IOException {
         String timeoutHdr = req.getHeader("TIMEOUT");
         String callbackHdr = req.getHeader("CALLBACK");
         String sidHdr = req.getHeader("SID");
@@ -89,10 +263,12 @@ public class SubscriptionManager {
             return;
         }
 
-        if (sidHdr != null && (timeoutHdr != null || callbackHdr != null)) {
-            res.sendError(HttpServletResponse.SC_BAD_REQUEST,
-                    "An SID header field and one of NT or CALLBACK header fields are present.");
-            return;
+        if (sidHdr != null) {
+            if (req.getHeader("NT") != null || callbackHdr != null) {
+                res.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "An SID header field and one of NT or CALLBACK header fields are present.");
+                return;
+            }
         } else {
             if (callbackHdr == null) {
                 // CALLBACK is a required header. Return status 412
@@ -118,7 +294,9 @@ public class SubscriptionManager {
         // parse timeout header
         long timeout = DEFAULT_TIMEOUT;
         try {
-            timeout = Long.parseLong(timeoutHdr.substring(7)) * 1000;
+            if (timeoutHdr != null && timeoutHdr.startsWith("Second-")) {
+                timeout = Long.parseLong(timeoutHdr.substring(7)) * 1000;
+            }
         } catch (NumberFormatException e) {
             // ignore, use default
             LOG.info("Using default timeout", e);
@@ -145,22 +323,42 @@ public class SubscriptionManager {
             }
 
             si.renew(timeout);
+            if (journal != null) {
+                journal.renewed(si.sid.toString(), si.expiration, si.eventKey);
+            }
+            writeSubscribeResponse(res, sid, timeout);
         } else { // new subscription
 
             // create subscription identifier
             UUID sid = new UUID();
 
-            addSubscription(key, sid, new SubscriptionInfo(sid, timeout, callbackUrls));
-
-            // Create response
-            res.setStatus(HttpServletResponse.SC_OK);
-            res.addHeader("SERVER", System.getProperty("os.name") + "/" + System.getProperty("os.version")
-                    + ", UPnP/1.1, rpi-rest/0.1");
-            res.addHeader("SID", "uuid:" + sid.toString());
-            res.addHeader("TIMEOUT", "Second-" + (timeout / 1000));
+            SubscriptionInfo si = new SubscriptionInfo(key, sid, timeout, callbackUrls);
+            if (initialBody != null) {
+                si.nextSend = System.currentTimeMillis() + INITIAL_EVENT_DELAY;
+                si.enqueue(new Event(contentType, initialBody)); // queued ahead of events fired once added
+            }
+            addSubscription(key, sid, si);
+            si.scheduleExpiry();
+            if (journal != null) {
+                List<String> callbacks = new ArrayList<String>(callbackUrls.size());
+                for (URL url : callbackUrls) {
+                    callbacks.add(url.toString());
+                }
+                journal.subscribed(
+                        new SubscriptionJournal.Entry(key, sid.toString(), si.expiration, si.eventKey, callbacks));
+            }
+            writeSubscribeResponse(res, sid, timeout);
         }
     }
 
+    private static void writeSubscribeResponse(final HttpServletResponse res, final UUID sid, final long timeout) {
+        res.setStatus(HttpServletResponse.SC_OK);
+        res.addHeader("SERVER",
+                System.getProperty("os.name") + "/" + System.getProperty("os.version") + ", UPnP/1.1, rpi-rest/0.1");
+        res.addHeader("SID", "uuid:" + sid.toString());
+        res.addHeader("TIMEOUT", "Second-" + (timeout / 1000));
+    }
+
     /**
      * Processes a UPnP UNSUBSCRIBE request and removes a subscription.
      * 
@@ -191,6 +389,7 @@ public class SubscriptionManager {
 
         if (sidHdr == null || sidHdr.length() == 0) {
             res.sendError(HttpServletResponse.SC_PRECONDITION_FAILED, "SID header field is missing or empty.");
+            return;
         }
 
         if (timeoutHdr != null || callbackHdr != null) {
@@ -209,11 +408,16 @@ public class SubscriptionManager {
         // parse SID & remove subscription
         String ss = sidHdr.substring(5).trim();
         UUID sid = new UUID(ss);
-        if (m.remove(sid) == null) {
+        SubscriptionInfo si = m.remove(sid);
+        if (si == null) {
             res.sendError(HttpServletResponse.SC_PRECONDITION_FAILED,
                     "SID doesn't correspond to a known subscription.");
             return;
         }
+        si.cancelExpiry();
+        if (journal != null) {
+            journal.unsubscribed(si.sid.toString());
+        }
     }
 
     /**
@@ -224,34 +428,89 @@ public class SubscriptionManager {
      * @return A collection of the subscription information.
      */
     public Collection<SubscriptionInfo> getSubscriptions(final String key) {
-        if (subscriptions.get(key) != null) {
-            return Collections.unmodifiableCollection(subscriptions.get(key).values());
+        Map<UUID, SubscriptionInfo> m = subscriptions.get(key);
+        if (m != null) {
+            return Collections.unmodifiableCollection(m.values());
         }
         return new ArrayList<SubscriptionInfo>();
     }
 
     /**
-     * Parses the CALLBACK header which is a <> delimited list of URLs. Does no error checking beyond that of the URL
-     * constructor, and will ignore malformed URLs.
+     * Parses the CALLBACK header which is a <> delimited list of URLs, in a single pass over its characters. Only
+     * http:// URLs with a host, of at most MAX_CALLBACK_LENGTH printable ASCII characters, are accepted; other URLs,
+     * and text outside the angle brackets, are ignored. At most MAX_CALLBACKS URLs are returned.
      * 
      * @param header
      *            Header string value
-     * @return List of <> delimited strings from the header
+     * @return List of the valid URLs in the header, in order
      */
     protected List<URL> parseCallbackHeader(String header) {
-        Pattern p = Pattern.compile("[^<>]+");
-        Matcher m = p.matcher(header);
-        List<URL> callbackUrls = new LinkedList<URL>();
-        while (m.find()) {
-            try {
-                callbackUrls.add(new URL(m.group()));
-            } catch (MalformedURLException e) {
-                LOG.warn("Ignoring malformed URL", e);
+        List<URL> callbackUrls = new ArrayList<URL>(2);
+        int start = -1;
+        for (int i = 0, n = header.length(); i < n && callbackUrls.size() < MAX_CALLBACKS; i++) {
+            char c = header.charAt(i);
+            if (c == '<') {
+                start = i + 1;
+            } else if (c == '>' && start >= 0) {
+                URL url = parseCallbackUrl(header, start, i);
+                if (url != null) {
+                    callbackUrls.add(url);
+                }
+                start = -1;
             }
         }
         return callbackUrls;
     }
 
+    /**
+     * Validates and creates one callback URL.
+     * 
+     * @return The URL, or null if invalid.
+     */
+    private static URL parseCallbackUrl(final String header, final int start, final int end) {
+        int length = end - start;
+        if (length <= HTTP.length() || length > MAX_CALLBACK_LENGTH
+                || !header.regionMatches(true, start, HTTP, 0, HTTP.length())) {
+            LOG.warn("Ignoring callback URL that isn't a valid http URL");
+            return null;
+        }
+        char first = header.charAt(start + HTTP.length());
+        if (first == '/' || first == ':' || first == '?' || first == '#') {
+            LOG.warn("Ignoring callback URL without a host");
+            return null;
+        }
+        for (int i = start + HTTP.length(); i < end; i++) {
+            char c = header.charAt(i);
+            if (c <= ' ' || c >= 0x7f) {
+                LOG.warn("Ignoring callback URL containing whitespace, control or non-ASCII characters");
+                return null;
+            }
+        }
+        try {
+            // the protocol matches the context's, so the context's handler is used rather than looked up
+            return new URL(HTTP_CONTEXT, header.substring(start, end));
+        } catch (MalformedURLException e) {
+            LOG.warn("Ignoring malformed URL", e);
+            return null;
+        }
+    }
+
+    private static URL httpContext() {
+        try {
+            return new URL("http://localhost/");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Resolves the address to which NOTIFY requests for a callback URL are sent. If the host can't be resolved the
+     * address is returned unresolved, and resolution is tried again when an event is sent.
+     */
+    private static InetSocketAddress resolve(final URL url) {
+        return new InetSocketAddress(url.getHost(), url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+    }
+
     /**
      * Adds a subscription to the map, creating a new one if necessary for the provided key.
      * 
@@ -263,17 +522,12 @@ public class SubscriptionManager {
      *            The SubscriptionInfo to be added.
      */
     private void addSubscription(final String key, final UUID sid, final SubscriptionInfo si) {
-        Map<UUID, SubscriptionInfo> m = subscriptions.get(key);
-        if (m == null) {
-            m = new HashMap<UUID, SubscriptionInfo>();
-            subscriptions.put(key, m);
-        }
-        m.put(sid, si);
+        subscriptions.computeIfAbsent(key, NEW_KEY).put(sid, si);
     }
 
     /**
-     * Sends a UPnP NOTIFY message to all subscribers of the resource identified by the key, using the provided content
-     * type and body content.
+     * Queues a UPnP NOTIFY message for delivery to all subscribers of the resource identified by the key, using the
+     * provided content type and body content. Returns without waiting for delivery.
      *
      * @param key
      *            The key identifying the resource for which the event applies.
@@ -283,107 +537,415 @@ public class SubscriptionManager {
      *            The content for the message body.
      */
     public void fireEvent(final String key, final String contentType, final String body) {
+        Event event = new Event(contentType, body);
+        KeyLimiter kl = keyLimiters.get(key);
+        if (kl != null && !kl.admit(event)) {
+            return;
+        }
+        fanOut(key, event);
+    }
+
+    private void fanOut(final String key, final Event event) {
         Map<UUID, SubscriptionInfo> m = subscriptions.get(key);
 
         if (m == null) {
             return;
         }
 
-        List<UUID> keys = new ArrayList<UUID>(m.keySet());
-        for (UUID uuid : keys) {
-            SubscriptionInfo si = m.get(uuid);
-
-            // check that it isn't expired
-            if (si.expiration > System.currentTimeMillis()) {
-                // try sending to callback URLs until one is successful
-                for (URL url : si.callbackUrls) {
-                    try {
-                        String message = generateNotify(url, contentType, body, uuid, si);
-                        sendNotify(url, message);
-                        si.incrementEventKey();
-                        break;
-                    } catch (IOException e) {
-                        LOG.warn(e);
-                    }
+        long now = System.currentTimeMillis();
+        for (SubscriptionInfo si : m.values()) {
+            // skip subscriptions that have expired but not yet been removed
+            if (si.expiration > now) {
+                si.enqueue(event);
+            }
+        }
+    }
+
+    /**
+     * Removes an expired subscription. Called on a dispatcher thread when the subscription's expiry task runs.
+     */
+    private void expire(final SubscriptionInfo si) {
+        Map<UUID, SubscriptionInfo> m = subscriptions.get(si.key);
+        if (m != null && m.remove(si.sid, si)) {
+            expired.incrementAndGet();
+            if (journal != null) {
+                journal.unsubscribed(si.sid.toString());
+            }
+            LOG.debug("Subscription " + si.sid + " expired");
+        }
+    }
+
+    /**
+     * Enables or disables coalescing of pending events. When enabled, each subscription holds at most one pending
+     * event, the most recently fired.
+     * 
+     * @param coalesce
+     *            true to enable coalescing.
+     */
+    public void setCoalescing(final boolean coalesce) {
+        coalescing = coalesce;
+    }
+
+    /**
+     * @return true if pending events are coalesced.
+     */
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Sets the minimum interval between NOTIFYs sent to a subscription, for subscriptions without their own minimum
+     * interval. Defaults to 0, no limit.
+     * 
+     * @param interval
+     *            Minimum interval in ms.
+     */
+    public void setMinInterval(final long interval) {
+        minInterval = interval;
+    }
+
+    /**
+     * @return The default minimum interval between NOTIFYs sent to a subscription, in ms.
+     */
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    /**
+     * Sets the minimum interval between events fired for a key. An event fired within the interval is deferred until
+     * the interval has passed, and is replaced by any later event fired in the meantime.
+     * 
+     * @param key
+     *            The key identifying the resource.
+     * @param interval
+     *            Minimum interval in ms, or 0 to remove the limit.
+     */
+    public void setKeyMinInterval(final String key, final long interval) {
+        if (interval <= 0) {
+            keyLimiters.remove(key);
+        } else {
+            KeyLimiter kl = keyLimiters.putIfAbsent(key, new KeyLimiter(key, interval));
+            if (kl != null) {
+                kl.interval = interval;
+            }
+        }
+    }
+
+    /**
+     * @return The number of events replaced by a later event before being sent.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return The number of events discarded because a subscription's queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of subscriptions removed because they expired.
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /**
+     * Stops the dispatcher threads and closes pooled connections. Events not yet delivered are discarded. If there is a
+     * journal, the current event key of each subscription is recorded and the journal is closed.
+     */
+    public void shutdown() {
+        dispatcher.shutdownNow();
+        connections.close();
+        if (journal != null) {
+            for (Map<UUID, SubscriptionInfo> m : subscriptions.values()) {
+                for (SubscriptionInfo si : m.values()) {
+                    journal.renewed(si.sid.toString(), si.expiration, si.eventKey);
                 }
-            } else {
-                // remove expired subscription
-                m.remove(uuid);
             }
+            journal.close();
         }
     }
 
     /**
-     * Sends the provided message to the host and port specified in the URL object.
+     * @return The pool of connections to subscribers, which provides connection reuse and connect time metrics.
+     */
+    public NotifyConnectionPool getConnectionPool() {
+        return connections;
+    }
+
+    /**
+     * Sends a NOTIFY request to a callback address and reads the response. If a pooled connection turns out to have
+     * been closed by the subscriber the request is resent once on a new connection.
      * 
      * @param url
-     *            Provides the host and port to which the message is sent via TCP.
-     * @param message
-     *            The message to send, including all headers and message body.
+     *            The callback URL, used in log messages.
+     * @param address
+     *            The resolved address of the URL's host and port, to which the message is sent via TCP.
+     * @param encoder
+     *            Encoder for requests to the URL.
+     * @param e
+     *            The event to send.
+     * @param eventKey
+     *            The SEQ value.
      * @throws IOException
-     *             If an exception occured writing to the socket.
+     *             If an exception occured writing to or reading from the socket, or the subscriber responded with a
+     *             status other than 2xx.
      */
-    private void sendNotify(final URL url, final String message) throws IOException {
-        Socket sock = new Socket(url.getHost(), url.getPort());
-        OutputStreamWriter out = new OutputStreamWriter(sock.getOutputStream());
-        out.write(message);
-        out.close();
-        sock.close();
+    private void sendNotify(final URL url, final InetSocketAddress address, final NotifyEncoder encoder,
+            final Event e, final long eventKey) throws IOException {
+        NotifyConnectionPool.Response resp;
+        while (true) {
+            NotifyConnectionPool.Connection c = connections.acquire(address);
+            boolean reusable = false;
+            try {
+                c.write(encoder.encode(e, eventKey));
+                resp = c.readResponse();
+                reusable = resp.isKeepAlive();
+                break;
+            } catch (IOException ex) {
+                if (!c.isReused() || ex instanceof SocketTimeoutException || ex instanceof ClosedByInterruptException) {
+                    throw ex; // after a timeout the subscriber may have received the message, so don't resend
+                }
+                LOG.debug("Pooled connection to " + url + " failed, retrying on a new connection", ex);
+            } finally {
+                connections.release(c, reusable);
+            }
+        }
+        if (resp.getStatus() / 100 != 2) {
+            throw new IOException("Subscriber " + url + " responded to NOTIFY with status " + resp.getStatus());
+        }
     }
 
     /**
-     * Generates the UPnP NOTIFY message string.
-     * 
-     * @param url
-     *            URL for the subscriber.
-     * @param contentType
-     *            Content type header.
-     * @param body
-     *            message body content
-     * @param uuid
-     *            The universally unique subscription ID.
-     * @param si
-     *            Subscription info used to complete the message
-     * @return The String for the message that should be transmitted to the subscriber.
+     * Enforces the minimum interval between events fired for a key.
      */
-    private String generateNotify(final URL url, String contentType, String body, UUID uuid, SubscriptionInfo si) {
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw);
-        pw.printf("NOTIFY %s HTTP/1.1\r\n", url.getPath());
-        pw.printf("HOST: %s:%d\r\n", url.getHost(), url.getPort());
-        pw.printf("CONTENT-TYPE: %s\r\n", contentType);
-        pw.printf("NT: upnp:event\r\n");
-        pw.printf("NTS: upnp:propchange\r\n");
-        pw.printf("SID: uuid:%s\r\n", uuid.toString());
-        pw.printf("SEQ: %d\r\n", si.eventKey);
-        pw.printf("CONTENT-LENGTH: %d\r\n", body.length());
-        pw.printf("\r\n");
-        pw.print(body);
-        pw.flush();
-        String resp = sw.toString();
-        pw.close();
-        return resp;
+    private class KeyLimiter implements Runnable {
+        private final String key;
+        private volatile long interval;
+        private long lastFired;
+        private Event deferred;
+
+        KeyLimiter(final String key, final long interval) {
+            this.key = key;
+            this.interval = interval;
+        }
+
+        /**
+         * Returns true if the event may be fired now, otherwise defers it until the interval has passed.
+         */
+        synchronized boolean admit(final Event e) {
+            long now = System.currentTimeMillis();
+            long delay = lastFired + interval - now;
+            if (deferred == null && delay <= 0) {
+                lastFired = now;
+                return true;
+            }
+            if (deferred != null) {
+                coalesced.incrementAndGet();
+            } else {
+                try {
+                    dispatcher.schedule(this, delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ex) {
+                    LOG.warn("Event dispatcher is shut down", ex);
+                    return false;
+                }
+            }
+            deferred = e;
+            return false;
+        }
+
+        /**
+         * Fires the deferred event.
+         */
+        public void run() {
+            Event e;
+            synchronized (this) {
+                e = deferred;
+                deferred = null;
+                lastFired = System.currentTimeMillis();
+            }
+            if (e != null) {
+                fanOut(key, e);
+            }
+        }
     }
 
     /**
      * Contains information about a single subscription.
      */
-    public class SubscriptionInfo {
+    public class SubscriptionInfo implements Runnable {
+        private final String key;
         private UUID sid;
-        private long expiration;
+        private volatile long expiration;
         private List<URL> callbackUrls;
-        private long eventKey = 0;
-
-        private SubscriptionInfo(final UUID sid, final long timeout, final List<URL> callbacks) {
+        private final NotifyEncoder[] encoders; // parallel to callbackUrls, used by the thread running this
+        private final InetSocketAddress[] addresses; // parallel to callbackUrls, used by the thread running this
+        private volatile long eventKey = 0;
+        private final Queue<Event> pending = new ConcurrentLinkedQueue<Event>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicReference<Event> latest = new AtomicReference<Event>(); // pending event when coalescing
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile long minInterval = -1;
+        private long nextSend; // set before first scheduled, then used only by the dispatcher thread running this
+        private int failures; // consecutive failed deliveries, used only by the dispatcher thread running this
+        private volatile ScheduledFuture<?> expiryTask;
+
+        private SubscriptionInfo(final String key, final UUID sid, final long timeout, final List<URL> callbacks) {
+            this.key = key;
             this.sid = sid;
             renew(timeout);
             callbackUrls = callbacks;
+            encoders = new NotifyEncoder[callbacks.size()];
+            addresses = new InetSocketAddress[callbacks.size()];
+            for (int i = 0; i < encoders.length; i++) {
+                encoders[i] = new NotifyEncoder(callbacks.get(i), sid.toString());
+                addresses[i] = resolve(callbacks.get(i));
+            }
         }
 
+        /**
+         * Extends the expiration. The expiry task isn't rescheduled here: when it runs it finds the later expiration
+         * and reschedules itself, so renewal costs no more than a field write.
+         */
         void renew(final long timeout) {
             expiration = System.currentTimeMillis() + timeout;
         }
 
+        /**
+         * Schedules removal of this subscription at its expiration.
+         */
+        void scheduleExpiry() {
+            try {
+                expiryTask = dispatcher.schedule(new Runnable() {
+                    public void run() {
+                        long remaining = expiration - System.currentTimeMillis();
+                        if (remaining > 0) {
+                            scheduleExpiry(); // renewed since scheduled
+                        } else {
+                            expire(SubscriptionInfo.this);
+                        }
+                    }
+                }, Math.max(0, expiration - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Event dispatcher is shut down", e);
+            }
+        }
+
+        void cancelExpiry() {
+            ScheduledFuture<?> f = expiryTask;
+            if (f != null) {
+                f.cancel(false);
+            }
+        }
+
+        /**
+         * Queues an event for delivery and schedules this subscription with the dispatcher if it isn't already
+         * scheduled. When coalescing, the event replaces any pending event; otherwise if MAX_PENDING events are
+         * already queued the oldest is discarded.
+         */
+        void enqueue(final Event e) {
+            if (coalescing) {
+                if (latest.getAndSet(e) != null) {
+                    coalesced.incrementAndGet();
+                }
+            } else {
+                pending.add(e);
+                if (pendingCount.incrementAndGet() > MAX_PENDING && pending.poll() != null) {
+                    pendingCount.decrementAndGet();
+                    dropped.incrementAndGet();
+                    LOG.warn("Discarding event for slow subscriber " + sid);
+                }
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                schedule(0);
+            }
+        }
+
+        private void schedule(final long delay) {
+            try {
+                if (delay > 0) {
+                    dispatcher.schedule(this, delay, TimeUnit.MILLISECONDS);
+                } else {
+                    dispatcher.execute(this);
+                }
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                LOG.warn("Event dispatcher is shut down", e);
+            }
+        }
+
+        /**
+         * Delivers the oldest pending event, then resubmits this subscription if more are pending, to run after the
+         * minimum interval or, if the delivery failed, the retry delay. Runs on a dispatcher thread.
+         */
+        public void run() {
+            long delay = nextSend - System.currentTimeMillis();
+            if (delay > 0) {
+                schedule(delay);
+                return;
+            }
+            Event e = pending.poll();
+            if (e != null) {
+                pendingCount.decrementAndGet();
+            } else {
+                e = latest.getAndSet(null);
+            }
+            if (e != null) {
+                if (deliver(e)) {
+                    failures = 0;
+                    nextSend = System.currentTimeMillis() + getMinInterval();
+                } else {
+                    failures++;
+                    long retry = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(failures - 1, 16));
+                    nextSend = System.currentTimeMillis() + Math.max(retry, getMinInterval());
+                    LOG.info("Delivery to subscriber " + sid + " failed " + failures + " times, retrying in " + retry
+                            + " ms");
+                }
+            }
+            scheduled.set(false);
+            if (hasPending() && scheduled.compareAndSet(false, true)) {
+                schedule(nextSend - System.currentTimeMillis());
+            }
+        }
+
+        private boolean hasPending() {
+            return !pending.isEmpty() || latest.get() != null;
+        }
+
+        /**
+         * Sends the event to the callback URLs in turn until one accepts it or MAX_DELIVERY_TIME has passed.
+         * 
+         * @return true if the event was delivered.
+         */
+        private boolean deliver(final Event e) {
+            long deadline = System.currentTimeMillis() + MAX_DELIVERY_TIME;
+            for (int i = 0; i < encoders.length; i++) {
+                if (i > 0 && System.currentTimeMillis() >= deadline) {
+                    LOG.warn("Giving up delivery to subscriber " + sid + " after " + MAX_DELIVERY_TIME + " ms");
+                    break;
+                }
+                URL url = callbackUrls.get(i);
+                if (addresses[i].isUnresolved()) {
+                    addresses[i] = resolve(url);
+                    if (addresses[i].isUnresolved()) {
+                        LOG.warn("Unable to resolve " + url.getHost());
+                        continue;
+                    }
+                }
+                try {
+                    sendNotify(url, addresses[i], encoders[i], e, eventKey);
+                    incrementEventKey();
+                    return true;
+                } catch (IOException ex) {
+                    LOG.warn(ex);
+                }
+            }
+            return false;
+        }
+
         void incrementEventKey() {
             if (eventKey == 4294967295L) {
                 eventKey = 1;
@@ -392,6 +954,25 @@ public class SubscriptionManager {
             }
         }
 
+        /**
+         * Sets the minimum interval between NOTIFYs sent to this subscription, overriding the SubscriptionManager's
+         * default.
+         * 
+         * @param interval
+         *            Minimum interval in ms, or -1 to use the default.
+         */
+        public void setMinInterval(final long interval) {
+            minInterval = interval;
+        }
+
+        /**
+         * @return The minimum interval between NOTIFYs sent to this subscription, in ms.
+         */
+        public long getMinInterval() {
+            long i = minInterval;
+            return i < 0 ? SubscriptionManager.this.minInterval : i;
+        }
+
         /**
          * @return The subscription ID.
          */
@@ -0,0 +1,199 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * TimerWheel.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A hashed timer wheel which runs many timeouts from a single thread. Time is divided into ticks, and each timeout is
+ * placed in the slot of the wheel for the tick in which it expires; a timeout further away than one turn of the wheel
+ * stays in its slot until the turn in which it's due. On each tick the thread visits only that tick's slot, so
+ * scheduling, cancelling and expiring a timeout take constant time and don't allocate.
+ *
+ * Timeouts expire at the end of the tick containing their deadline, so never early and at most one tick late while
+ * the thread keeps up. A Timeout is scheduled at most once at a time; scheduling it again moves it. The thread waits
+ * without ticking while no timeout is scheduled.
+ *
+ * @author Greg Steckman
+ *
+ */
+public class TimerWheel {
+    private static final Log LOG = LogFactory.getLog(TimerWheel.class);
+    private final long tickNanos;
+    private final Timeout[] slots; // heads of doubly linked lists, guarded by this
+    private final int mask;
+    private final long start = System.nanoTime();
+    private long tick; // last tick processed, guarded by this
+    private int count; // timeouts scheduled, guarded by this
+    private boolean closed; // guarded by this
+
+    /**
+     * Something to be run at a deadline.
+     */
+    public abstract static class Timeout {
+        private Timeout prev;
+        private Timeout next;
+        private Timeout nextExpired; // chains the timeouts expiring in a tick, outside of the lock
+        private long due = -1; // tick at which the timeout expires, -1 when not scheduled
+
+        /**
+         * Called by the wheel's thread when the deadline has passed. Must not block.
+         */
+        protected abstract void expire();
+    }
+
+    /**
+     * Creates a wheel and starts its thread.
+     *
+     * @param tick
+     *            Length of a tick in microseconds; the resolution of the timeouts.
+     * @param size
+     *            Number of slots, rounded up to a power of two.
+     * @param name
+     *            Name of the thread.
+     */
+    public TimerWheel(final long tick, final int size, final String name) {
+        tickNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(1, tick));
+        slots = new Timeout[Integer.highestOneBit(Math.max(2, size - 1)) << 1];
+        mask = slots.length - 1;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                TimerWheel.this.run();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules a timeout, moving it if already scheduled.
+     *
+     * @param t
+     *            The timeout.
+     * @param deadline
+     *            System.nanoTime() at or after which the timeout expires.
+     */
+    public synchronized void schedule(final Timeout t, final long deadline) {
+        if (closed) {
+            return;
+        }
+        if (t.due >= 0) {
+            unlink(t);
+        } else if (count == 0) {
+            // the thread stopped ticking when the wheel emptied; resume from the present
+            tick = Math.max(tick, (System.nanoTime() - start) / tickNanos - 1);
+            notifyAll();
+        }
+        long due = (deadline - start + tickNanos - 1) / tickNanos;
+        t.due = Math.max(due, tick + 1);
+        int slot = (int) (t.due & mask);
+        t.prev = null;
+        t.next = slots[slot];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        slots[slot] = t;
+        count++;
+    }
+
+    /**
+     * Cancels a timeout. Does nothing if it isn't scheduled.
+     *
+     * @param t
+     *            The timeout.
+     */
+    public synchronized void cancel(final Timeout t) {
+        if (t.due >= 0) {
+            unlink(t);
+        }
+    }
+
+    /**
+     * Stops the thread. Timeouts still scheduled never expire.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void unlink(final Timeout t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            slots[(int) (t.due & mask)] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = null;
+        t.next = null;
+        t.due = -1;
+        count--;
+    }
+
+    private void run() {
+        while (true) {
+            Timeout expired = null;
+            synchronized (this) {
+                long delay;
+                try {
+                    while (count == 0 && !closed) {
+                        wait();
+                    }
+                    delay = start + (tick + 1) * tickNanos - System.nanoTime();
+                    while (delay > 0 && count > 0 && !closed) {
+                        TimeUnit.NANOSECONDS.timedWait(this, delay);
+                        delay = start + (tick + 1) * tickNanos - System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+                if (delay > 0) {
+                    continue; // emptied while waiting
+                }
+                tick++;
+                // unlink the timeouts due in this tick, so they may be scheduled again while expiring
+                Timeout t = slots[(int) (tick & mask)];
+                while (t != null) {
+                    Timeout n = t.next;
+                    if (t.due <= tick) {
+                        unlink(t);
+                        t.nextExpired = expired;
+                        expired = t;
+                    }
+                    t = n;
+                }
+            }
+            while (expired != null) {
+                Timeout t = expired;
+                expired = t.nextExpired;
+                t.nextExpired = null;
+                try {
+                    t.expire();
+                } catch (RuntimeException e) {
+                    LOG.warn("Exception in timeout", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package io.github.gsteckman.rpi_rest;
+
+/*
+ * WebSocketConfig.java
+ *
+ * Copyright 2017 Greg Steckman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the License.
+ *
+ */
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+/**
+ * Spring Framework configuration registering the GpioWebSocketHandler at /gpios/ws. Imported by App.
+ *
+ * @author Greg Steckman
+ *
+ */
+@Configuration
+@EnableWebSocket
+public class WebSocketConfig implements WebSocketConfigurer {
+    private GpioWebSocketHandler handler;
+
+    /**
+     * Creates a new configuration for the provided handler.
+     *
+     * @param gwsh
+     *            The handler to be registered.
+     */
+    public WebSocketConfig(final GpioWebSocketHandler gwsh) {
+        handler = gwsh;
+    }
+
+    /**
+     * Implements WebSocketConfigurer to register the handler.
+     */
+    public void registerWebSocketHandlers(final WebSocketHandlerRegistry registry) {
+        registry.addHandler(handler, "/gpios/ws");
+    }
+}
@@ -0,0 +1,77 @@
+package io.github.gsteckman.rpi_rest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+
+public class EdgeCaptureTest {
+    private SimulatedGpio sim;
+
+    @Before
+    public void setUp() {
+        sim = new SimulatedGpio();
+    }
+
+    @After
+    public void tearDown() {
+        sim.shutdown();
+    }
+
+    @Test
+    public void testCapturesInputEdges() throws Exception {
+        sim.gpio.provisionDigitalInputPin(sim.provider, RaspiBcmPin.GPIO_27);
+        sim.provider.setInputState(RaspiBcmPin.GPIO_22, PinState.LOW);
+        EdgeCapture ec = new EdgeCapture(sim.gpio);
+        try {
+            sim.provider.setInputState(RaspiBcmPin.GPIO_22, PinState.HIGH);
+            sim.provider.setInputState(RaspiBcmPin.GPIO_27, PinState.HIGH);
+            sim.provider.setInputState(RaspiBcmPin.GPIO_22, PinState.LOW);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (ec.getLastSequence() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(3, ec.getLastSequence());
+
+            String json = ec.edgesJson(22, 0);
+            Assert.assertTrue(json, json.startsWith("{\"last\":3,\"overrun\":false,\"lost\":0,\"edges\":[{\"seq\":"));
+            Assert.assertTrue(json, json.contains("\"edge\":\"RISING\""));
+            Assert.assertTrue(json, json.contains("\"edge\":\"FALLING\""));
+            Assert.assertEquals(json, 2, json.split("\"seq\"").length - 1);
+            Assert.assertEquals("{\"last\":3,\"overrun\":false,\"lost\":0,\"edges\":[]}", ec.edgesJson(22, 3));
+        } finally {
+            ec.close();
+        }
+    }
+
+    @Test
+    public void testIncrementalReads() {
+        EdgeCapture ec = new EdgeCapture(sim.gpio, 8);
+        ec.record(22, true, 100);
+        ec.record(22, false, 200);
+        Assert.assertEquals("{\"last\":2,\"overrun\":false,\"lost\":0,\"edges\":[{\"seq\":1,\"edge\":\"RISING\","
+                + "\"nanos\":100},{\"seq\":2,\"edge\":\"FALLING\",\"nanos\":200}]}", ec.edgesJson(22, 0));
+        ec.record(5, true, 300);
+        ec.record(22, true, 400);
+        Assert.assertEquals("{\"last\":4,\"overrun\":false,\"lost\":0,\"edges\":[{\"seq\":4,\"edge\":\"RISING\","
+                + "\"nanos\":400}]}", ec.edgesJson(22, 2));
+        // a sequence number beyond the last edge is from before a restart
+        Assert.assertTrue(ec.edgesJson(22, 100).startsWith("{\"last\":4,\"overrun\":false,\"lost\":0"));
+    }
+
+    @Test
+    public void testOverrun() {
+        EdgeCapture ec = new EdgeCapture(sim.gpio, 8);
+        Assert.assertEquals(8, ec.getCapacity());
+        for (int k = 1; k <= 20; k++) {
+            ec.record(22, (k & 1) != 0, k);
+        }
+        String json = ec.edgesJson(22, 2);
+        Assert.assertTrue(json, json.startsWith("{\"last\":20,\"overrun\":true,\"lost\":11,\"edges\":[{\"seq\":14,"));
+        Assert.assertTrue(json, json.endsWith("{\"seq\":20,\"edge\":\"FALLING\",\"nanos\":20}]}"));
+        Assert.assertEquals("{\"last\":20,\"overrun\":false,\"lost\":0,\"edges\":[]}", ec.edgesJson(22, 20));
+    }
+}
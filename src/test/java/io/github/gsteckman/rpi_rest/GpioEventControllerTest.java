@@ -0,0 +1,107 @@
+package io.github.gsteckman.rpi_rest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+import com.pi4j.io.gpio.impl.GpioControllerImpl;
+
+public class GpioEventControllerTest {
+    private SimulatedGpioProvider provider;
+    private GpioController gpio;
+    private PinStateCache cache;
+    private SubscriptionManager sm;
+    private GpioEventController events;
+    private SubscriptionManagerTest.NotifyReceiver receiver;
+
+    @Before
+    public void setUp() throws Exception {
+        provider = new SimulatedGpioProvider();
+        provider.setEventLatency(0);
+        gpio = new GpioControllerImpl(provider);
+        gpio.provisionDigitalOutputPin(provider, RaspiBcmPin.GPIO_04, PinState.HIGH);
+        gpio.provisionDigitalInputPin(provider, RaspiBcmPin.GPIO_22);
+        provider.setInputState(RaspiBcmPin.GPIO_22, PinState.LOW);
+        cache = new PinStateCache(gpio);
+        sm = new SubscriptionManager(2);
+        events = new GpioEventController(sm, cache);
+        receiver = new SubscriptionManagerTest.NotifyReceiver();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        events.close();
+        sm.shutdown();
+        receiver.close();
+        provider.shutdown();
+    }
+
+    @Test
+    public void testPinSubscriptionReceivesInitialStateThenChanges() throws Exception {
+        MockHttpServletResponse res = request("SUBSCRIBE", 22, null);
+        Assert.assertEquals(200, res.getStatus());
+        String sid = res.getHeader("SID");
+
+        String initial = receiver.requests.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(initial);
+        Assert.assertTrue(initial.contains("SEQ: 0\r\n"));
+        Assert.assertTrue(initial, initial.contains("<e:property><state>LOW</state></e:property>"));
+
+        provider.setInputState(RaspiBcmPin.GPIO_22, PinState.HIGH);
+        String change = receiver.requests.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(change);
+        Assert.assertTrue(change.contains("SEQ: 1\r\n"));
+        Assert.assertTrue(change, change.contains("<state>HIGH</state>"));
+
+        Assert.assertEquals(200, request("UNSUBSCRIBE", 22, sid).getStatus());
+        Assert.assertEquals(0, sm.getSubscriptions("gpios/22").size());
+    }
+
+    @Test
+    public void testBoardSubscription() throws Exception {
+        Assert.assertEquals(200, request("SUBSCRIBE", -1, null).getStatus());
+        String initial = receiver.requests.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(initial);
+        Assert.assertTrue(initial, initial.contains("<gpio4>HIGH</gpio4>"));
+        Assert.assertTrue(initial, initial.contains("<gpio22>LOW</gpio22>"));
+
+        provider.setInputState(RaspiBcmPin.GPIO_22, PinState.HIGH);
+        String change = receiver.requests.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(change);
+        Assert.assertTrue(change, change.contains("<gpio22>HIGH</gpio22>"));
+        Assert.assertFalse(change, change.contains("gpio4"));
+    }
+
+    @Test
+    public void testUnknownPinAndMethod() throws Exception {
+        Assert.assertEquals(404, request("SUBSCRIBE", 5, null).getStatus());
+        Assert.assertEquals(405, request("GET", 22, null).getStatus());
+    }
+
+    private MockHttpServletResponse request(final String method, final int address, final String sid)
+            throws Exception {
+        String path = address < 0 ? "/gpios/events" : "/gpios/" + address + "/events";
+        MockHttpServletRequest req = new MockHttpServletRequest(method, path);
+        if (sid != null) {
+            req.addHeader("SID", sid);
+        } else {
+            req.addHeader("CALLBACK", "<http://127.0.0.1:" + receiver.getPort() + "/cb>");
+            req.addHeader("NT", "upnp:event");
+        }
+        MockHttpServletResponse res = new MockHttpServletResponse();
+        if (address < 0) {
+            events.boardEvents(req, res);
+        } else {
+            events.pinEvents(address, req, res);
+        }
+        return res;
+    }
+}
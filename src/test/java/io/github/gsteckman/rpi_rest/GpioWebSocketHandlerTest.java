@@ -0,0 +1,267 @@
+package io.github.gsteckman.rpi_rest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.pi4j.io.gpio.GpioPin;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+
+public class GpioWebSocketHandlerTest {
+    private SimulatedGpio sim;
+    private PinLocks locks;
+    private PinStateCache cache;
+    private GpioWebSocketHandler handler;
+    private GpioPin pin4;
+    private FakeSession session;
+    private final List<byte[]> sent = Collections.synchronizedList(new ArrayList<byte[]>());
+    private volatile CountDownLatch gate;
+    private volatile CountDownLatch entered = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        sim = new SimulatedGpio();
+        pin4 = sim.gpio.getProvisionedPin(RaspiBcmPin.GPIO_04);
+        cache = new PinStateCache(sim.gpio);
+        locks = new PinLocks();
+        handler = new GpioWebSocketHandler(sim.gpio, locks, cache);
+
+        session = new FakeSession();
+        handler.afterConnectionEstablished(session);
+    }
+
+    @After
+    public void tearDown() {
+        if (gate != null) {
+            gate.countDown();
+        }
+        handler.close();
+        sim.shutdown();
+    }
+
+    @Test
+    public void testPipelinedRequestsAcknowledgedInOneMessage() throws Exception {
+        ByteBuffer req = ByteBuffer.allocate(5 * GpioWebSocketHandler.RECORD_SIZE);
+        record(req, GpioWebSocketHandler.OP_WRITE, 4, 1, 1);
+        record(req, GpioWebSocketHandler.OP_READ, 4, 0, 2);
+        record(req, GpioWebSocketHandler.OP_WRITE, 22, 1, 3);
+        record(req, GpioWebSocketHandler.OP_READ, 5, 0, 4);
+        record(req, (byte) 9, 17, 0, 5);
+        req.flip();
+        handler.handleMessage(session, new BinaryMessage(req));
+
+        Assert.assertEquals(1, sent.size());
+        ByteBuffer res = ByteBuffer.wrap(sent.get(0));
+        Assert.assertEquals(5 * GpioWebSocketHandler.RECORD_SIZE, res.remaining());
+        assertRecord(res, GpioWebSocketHandler.OP_WRITE | GpioWebSocketHandler.ACK, 4, 1,
+                GpioWebSocketHandler.STATUS_OK, 1);
+        assertRecord(res, GpioWebSocketHandler.OP_READ | GpioWebSocketHandler.ACK, 4, 1,
+                GpioWebSocketHandler.STATUS_OK, 2);
+        assertRecord(res, GpioWebSocketHandler.OP_WRITE | GpioWebSocketHandler.ACK, 22, 0,
+                GpioWebSocketHandler.STATUS_NOT_OUTPUT, 3);
+        assertRecord(res, GpioWebSocketHandler.OP_READ | GpioWebSocketHandler.ACK, 5, 0,
+                GpioWebSocketHandler.STATUS_UNKNOWN_PIN, 4);
+        assertRecord(res, 9 | GpioWebSocketHandler.ACK, 17, 0, GpioWebSocketHandler.STATUS_BAD_OPCODE, 5);
+        Assert.assertEquals(PinState.HIGH, sim.provider.getState(RaspiBcmPin.GPIO_04));
+        Assert.assertEquals("HIGH", cache.getSnapshot().getPin(4).getState());
+    }
+
+    @Test
+    public void testSubscribedChangesPushedAsEvents() throws Exception {
+        subscribe(4);
+        cache.update(pin4, PinState.HIGH);
+        awaitSent(2);
+        ByteBuffer event = ByteBuffer.wrap(sent.get(1));
+        Assert.assertEquals(GpioWebSocketHandler.RECORD_SIZE, event.remaining());
+        assertRecord(event, GpioWebSocketHandler.OP_EVENT, 4, 1, GpioWebSocketHandler.STATUS_OK,
+                (int) cache.getSnapshot().getPin(4).getVersion());
+
+        // unsubscribed pins are not pushed
+        cache.update(sim.gpio.getProvisionedPin(RaspiBcmPin.GPIO_17), PinState.HIGH);
+        Thread.sleep(50);
+        Assert.assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void testSlowSessionDoesNotBlockCacheUpdates() throws Exception {
+        subscribe(4);
+        entered = new CountDownLatch(1);
+        gate = new CountDownLatch(1);
+        cache.update(pin4, PinState.HIGH);
+        Assert.assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        // the first event is stuck in sendMessage; further changes must neither block nor queue without bound
+        long start = System.nanoTime();
+        cache.update(pin4, PinState.LOW);
+        cache.update(pin4, PinState.HIGH);
+        cache.update(pin4, PinState.LOW);
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+        gate.countDown();
+        awaitSent(3);
+        Thread.sleep(50);
+        Assert.assertEquals(3, sent.size());
+        ByteBuffer event = ByteBuffer.wrap(sent.get(2));
+        assertRecord(event, GpioWebSocketHandler.OP_EVENT, 4, 0, GpioWebSocketHandler.STATUS_OK,
+                (int) cache.getSnapshot().getPin(4).getVersion());
+    }
+
+    @Test
+    public void testReservedPinNotWritten() throws Exception {
+        Assert.assertTrue(locks.reserve(1L << 4));
+        ByteBuffer req = ByteBuffer.allocate(GpioWebSocketHandler.RECORD_SIZE);
+        record(req, GpioWebSocketHandler.OP_WRITE, 4, 1, 1);
+        req.flip();
+        handler.handleMessage(session, new BinaryMessage(req));
+        assertRecord(ByteBuffer.wrap(sent.get(0)), GpioWebSocketHandler.OP_WRITE | GpioWebSocketHandler.ACK, 4, 0,
+                GpioWebSocketHandler.STATUS_RESERVED, 1);
+        Assert.assertEquals(PinState.LOW, sim.provider.getState(RaspiBcmPin.GPIO_04));
+    }
+
+    @Test
+    public void testPartialRecordClosesSession() throws Exception {
+        handler.handleMessage(session, new BinaryMessage(ByteBuffer.allocate(5)));
+        Assert.assertEquals(CloseStatus.BAD_DATA, session.closeStatus);
+        Assert.assertTrue(sent.isEmpty());
+    }
+
+    private void subscribe(final int address) throws Exception {
+        ByteBuffer req = ByteBuffer.allocate(GpioWebSocketHandler.RECORD_SIZE);
+        record(req, GpioWebSocketHandler.OP_SUBSCRIBE, address, 0, 7);
+        req.flip();
+        handler.handleMessage(session, new BinaryMessage(req));
+        Assert.assertEquals(1, sent.size());
+        assertRecord(ByteBuffer.wrap(sent.get(0)), GpioWebSocketHandler.OP_SUBSCRIBE | GpioWebSocketHandler.ACK,
+                address, 0, GpioWebSocketHandler.STATUS_OK, 7);
+    }
+
+    private void awaitSent(final int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sent.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(sent.size() + " messages", sent.size() >= count);
+    }
+
+    private static void record(final ByteBuffer b, final int op, final int address, final int value, final int seq) {
+        b.put((byte) op).put((byte) address).put((byte) value).put((byte) 0).putInt(seq);
+    }
+
+    private static void assertRecord(final ByteBuffer b, final int op, final int address, final int value,
+            final int status, final int seq) {
+        Assert.assertEquals((byte) op, b.get());
+        Assert.assertEquals(address, b.get() & 0xff);
+        Assert.assertEquals(value, b.get());
+        Assert.assertEquals(status, b.get());
+        Assert.assertEquals(seq, b.getInt());
+    }
+
+    /**
+     * Records the messages sent to it, optionally blocking each send until the gate opens.
+     */
+    private class FakeSession implements WebSocketSession {
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+        private volatile CloseStatus closeStatus;
+        private int binaryLimit;
+
+        public String getId() {
+            return "1";
+        }
+
+        public URI getUri() {
+            return URI.create("ws://localhost/gpios/ws");
+        }
+
+        public HttpHeaders getHandshakeHeaders() {
+            return new HttpHeaders();
+        }
+
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        public Principal getPrincipal() {
+            return null;
+        }
+
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        public String getAcceptedProtocol() {
+            return null;
+        }
+
+        public void setTextMessageSizeLimit(final int limit) {
+        }
+
+        public int getTextMessageSizeLimit() {
+            return 0;
+        }
+
+        public void setBinaryMessageSizeLimit(final int limit) {
+            binaryLimit = limit;
+        }
+
+        public int getBinaryMessageSizeLimit() {
+            return binaryLimit;
+        }
+
+        public List<WebSocketExtension> getExtensions() {
+            return Collections.emptyList();
+        }
+
+        public boolean isOpen() {
+            return closeStatus == null;
+        }
+
+        public void sendMessage(final WebSocketMessage<?> message) throws IOException {
+            entered.countDown();
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            ByteBuffer payload = ((BinaryMessage) message).getPayload();
+            byte[] b = new byte[payload.remaining()];
+            payload.get(b);
+            sent.add(b);
+        }
+
+        public void close() {
+            close(CloseStatus.NORMAL);
+        }
+
+        public void close(final CloseStatus status) {
+            closeStatus = status;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.gsteckman.rpi_rest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.ResponseEntity;
+
+import com.pi4j.io.gpio.GpioPin;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+
+public class InputFilterTest {
+    private SimulatedGpio sim;
+    private GpioPin pin;
+    private PinStateCache cache;
+    private InputFilter filter;
+
+    @Before
+    public void setUp() {
+        sim = new SimulatedGpio();
+        pin = sim.gpio.getProvisionedPin(RaspiBcmPin.GPIO_22);
+        sim.provider.setInputState(RaspiBcmPin.GPIO_22, PinState.LOW);
+        cache = new PinStateCache(sim.gpio);
+        filter = new InputFilter(sim.gpio, cache, 500);
+    }
+
+    @After
+    public void tearDown() {
+        filter.close();
+        sim.shutdown();
+    }
+
+    @Test
+    public void testUnfilteredPinPassesThrough() throws Exception {
+        Assert.assertFalse(filter.edge(pin, PinState.HIGH, System.nanoTime()));
+        Assert.assertEquals(404, filter.getConfig(4).getStatusCodeValue());
+        Assert.assertEquals("{\"address\":22,\"stableTime\":0,\"minPulseWidth\":0,\"rawEdges\":1,\"acceptedEdges\":1,"
+                + "\"collapsedEdges\":0}", body(filter.getConfig(22)));
+    }
+
+    @Test
+    public void testDebounceCollapsesBounce() throws Exception {
+        Assert.assertEquals(200, config("20000", null).getStatusCodeValue());
+        long version = cache.getSnapshot().getVersion();
+        long t = System.nanoTime();
+        // a press bouncing 11 times within 1 ms; the first edge is accepted at once
+        for (int k = 0; k < 11; k++) {
+            Assert.assertTrue(filter.edge(pin, k % 2 == 0 ? PinState.HIGH : PinState.LOW, t + k * 100000));
+        }
+        Assert.assertEquals("HIGH", cache.getSnapshot().getPin(22).getState());
+        Assert.assertEquals(version + 1, cache.getSnapshot().getVersion());
+
+        // a release whose bounce ends on HIGH is not accepted until the input settles LOW
+        t = System.nanoTime();
+        filter.edge(pin, PinState.LOW, t);
+        filter.edge(pin, PinState.HIGH, t + 100000);
+        Assert.assertEquals("HIGH", cache.getSnapshot().getPin(22).getState());
+        Thread.sleep(100);
+        Assert.assertEquals(version + 1, cache.getSnapshot().getVersion());
+        filter.edge(pin, PinState.LOW, System.nanoTime());
+        waitForState("LOW");
+        Assert.assertEquals(version + 2, cache.getSnapshot().getVersion());
+        Assert.assertTrue(body(filter.getConfig(22)), body(filter.getConfig(22))
+                .endsWith("\"rawEdges\":14,\"acceptedEdges\":2,\"collapsedEdges\":12}"));
+    }
+
+    @Test
+    public void testGlitchFilterDiscardsShortPulses() throws Exception {
+        Assert.assertEquals(200, config("0", "10000").getStatusCodeValue());
+        long version = cache.getSnapshot().getVersion();
+        long t = System.nanoTime();
+        filter.edge(pin, PinState.HIGH, t);
+        filter.edge(pin, PinState.LOW, t + 2000000);
+        Thread.sleep(50);
+        Assert.assertEquals(version, cache.getSnapshot().getVersion());
+
+        // a pulse held longer than the minimum width is accepted after it
+        t = System.nanoTime();
+        filter.edge(pin, PinState.HIGH, t);
+        Assert.assertEquals("LOW", cache.getSnapshot().getPin(22).getState());
+        waitForState("HIGH");
+        Assert.assertTrue(System.nanoTime() - t >= 10000000);
+        Assert.assertTrue(body(filter.getConfig(22)).endsWith("\"collapsedEdges\":2}"));
+    }
+
+    @Test
+    public void testFiltersSimulatedInput() throws Exception {
+        config("5000", null);
+        sim.provider.setInputState(RaspiBcmPin.GPIO_22, PinState.HIGH);
+        waitForState("HIGH");
+        Assert.assertEquals(400, config("-1", null).getStatusCodeValue());
+        Assert.assertEquals(400, config("x", null).getStatusCodeValue());
+    }
+
+    private ResponseEntity<byte[]> config(final String stableTime, final String minPulseWidth) {
+        Map<String, String> model = new HashMap<String, String>();
+        if (stableTime != null) {
+            model.put("stableTime", stableTime);
+        }
+        if (minPulseWidth != null) {
+            model.put("minPulseWidth", minPulseWidth);
+        }
+        return filter.setConfig(22, model);
+    }
+
+    private void waitForState(final String state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!state.equals(cache.getSnapshot().getPin(22).getState()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(state, cache.getSnapshot().getPin(22).getState());
+    }
+
+    private static String body(final ResponseEntity<byte[]> res) {
+        return new String(res.getBody());
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.gsteckman.rpi_rest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.ResponseEntity;
+
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+
+public class OutputSequencerTest {
+    private SimulatedGpio sim;
+    private PinStateCache cache;
+    private OutputSequencer sequencer;
+
+    @Before
+    public void setUp() {
+        sim = new SimulatedGpio();
+        cache = new PinStateCache(sim.gpio);
+        sequencer = new OutputSequencer(sim.gpio, new PinLocks(), cache);
+    }
+
+    @After
+    public void tearDown() {
+        sequencer.close();
+        sim.shutdown();
+    }
+
+    @Test
+    public void testPlaysPatternCoalescingBank() throws Exception {
+        // pins 4 and 17 high together, then 17 low, then both low
+        Map<String, Object> model = pattern(3, step("0x20010", "HIGH", 5000), step(1 << 17, "LOW", 5000),
+                step(1 << 4, "LOW", 5000));
+        ResponseEntity<byte[]> res = sequencer.startSequence(model);
+        Assert.assertEquals(201, res.getStatusCodeValue());
+        Assert.assertEquals("/gpios/sequences/1", res.getHeaders().getLocation().toString());
+
+        String json = waitForStatus(1, "COMPLETED");
+        Assert.assertTrue(json, json.contains("\"iteration\":3"));
+        Assert.assertTrue(json, json.contains("{\"mask\":131088,\"state\":\"HIGH\",\"delay\":5000}"));
+        Assert.assertEquals(PinState.LOW, sim.provider.getState(RaspiBcmPin.GPIO_04));
+        Assert.assertEquals(PinState.LOW, sim.provider.getState(RaspiBcmPin.GPIO_17));
+        Assert.assertEquals("LOW", cache.getSnapshot().getPin(4).getState());
+        // 3 iterations of 3 snapshots, the first step writing both pins in one
+        Assert.assertEquals(9, cache.getSnapshot().getPin(4).getVersion() - 1);
+    }
+
+    @Test
+    public void testCancelAndConflict() throws Exception {
+        Map<String, Object> model = pattern(0, step(1 << 4, "HIGH", 1000), step(1 << 4, "LOW", 1000));
+        Assert.assertEquals(201, sequencer.startSequence(model).getStatusCodeValue());
+        Assert.assertEquals(409, sequencer.startSequence(pattern(1, step(1 << 4, "HIGH", 0)))
+                .getStatusCodeValue());
+        Assert.assertEquals(201, sequencer.startSequence(pattern(1, step(1 << 17, "HIGH", 0)))
+                .getStatusCodeValue());
+        Thread.sleep(20);
+        String json = new String(sequencer.getSequence(1).getBody());
+        Assert.assertTrue(json, json.contains("\"status\":\"RUNNING\""));
+        Assert.assertFalse(json, json.contains("\"iteration\":0,"));
+
+        json = new String(sequencer.cancelSequence(1).getBody());
+        Assert.assertTrue(json, json.contains("\"status\":\"CANCELLED\""));
+        PinState state = sim.provider.getState(RaspiBcmPin.GPIO_04);
+        Thread.sleep(20);
+        Assert.assertEquals(state, sim.provider.getState(RaspiBcmPin.GPIO_04));
+        Assert.assertEquals(201, sequencer.startSequence(pattern(1, step(1 << 4, "HIGH", 0)))
+                .getStatusCodeValue());
+        json = new String(sequencer.getSequences().getBody());
+        Assert.assertTrue(json, json.startsWith("[{\"id\":1,") && json.contains("{\"id\":3,"));
+        Assert.assertEquals(404, sequencer.getSequence(9).getStatusCodeValue());
+    }
+
+    @Test
+    public void testInvalidPatterns() {
+        Assert.assertEquals(400, sequencer.startSequence(pattern(1)).getStatusCodeValue());
+        Assert.assertEquals(400, sequencer.startSequence(pattern(1, step(1L << 22, "HIGH", 0))).getStatusCodeValue());
+        Assert.assertEquals(400, sequencer.startSequence(pattern(1, step(1 << 4, "ON", 0))).getStatusCodeValue());
+        Assert.assertEquals(400, sequencer.startSequence(pattern(1, step(1 << 4, "HIGH", -1))).getStatusCodeValue());
+        Assert.assertEquals(400, sequencer.startSequence(pattern(0, step(1 << 4, "HIGH", 0))).getStatusCodeValue());
+        Assert.assertEquals(400,
+                sequencer.startSequence(pattern(1000, step(1 << 4, "HIGH", 10), step(1 << 4, "LOW", 10)))
+                        .getStatusCodeValue());
+        Assert.assertEquals(400, sequencer.startSequence(pattern(1, step("x", "HIGH", 0))).getStatusCodeValue());
+    }
+
+    private String waitForStatus(final long id, final String status) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        String json = new String(sequencer.getSequence(id).getBody());
+        while (!json.contains("\"status\":\"" + status + "\"") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            json = new String(sequencer.getSequence(id).getBody());
+        }
+        Assert.assertTrue(json, json.contains("\"status\":\"" + status + "\""));
+        return json;
+    }
+
+    private static Map<String, Object> pattern(final int repeat, final Map<?, ?>... steps) {
+        Map<String, Object> model = new HashMap<String, Object>();
+        List<Map<?, ?>> l = new ArrayList<Map<?, ?>>();
+        for (Map<?, ?> s : steps) {
+            l.add(s);
+        }
+        model.put("repeat", repeat);
+        model.put("steps", l);
+        return model;
+    }
+
+    private static Map<String, Object> step(final Object mask, final String state, final long delay) {
+        Map<String, Object> step = new HashMap<String, Object>();
+        step.put("mask", mask);
+        step.put("state", state);
+        step.put("delay", delay);
+        return step;
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.gsteckman.rpi_rest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioPin;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+import com.pi4j.io.gpio.impl.GpioControllerImpl;
+
+public class PinEventStreamTest {
+    private SimulatedGpioProvider provider;
+    private GpioController gpio;
+    private PinStateCache cache;
+    private PinEventStream stream;
+    private GpioPin pin4;
+    private final CountDownLatch gate = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        provider = new SimulatedGpioProvider();
+        provider.setEventLatency(0);
+        gpio = new GpioControllerImpl(provider);
+        pin4 = gpio.provisionDigitalOutputPin(provider, RaspiBcmPin.GPIO_04, PinState.LOW);
+        gpio.provisionDigitalOutputPin(provider, RaspiBcmPin.GPIO_17, PinState.LOW);
+        cache = new PinStateCache(gpio);
+    }
+
+    @After
+    public void tearDown() {
+        gate.countDown();
+        if (stream != null) {
+            stream.close();
+        }
+        provider.shutdown();
+    }
+
+    @Test
+    public void testChangesCoalescedWhileClientBusy() throws Exception {
+        stream = new PinEventStream(cache, 1, 10000);
+        RecordingEmitter client = new RecordingEmitter(gate);
+        stream.register(client);
+        Assert.assertTrue(client.entered.await(5, TimeUnit.SECONDS));
+
+        // the snapshot is still being written, so these replace one another in the client's buffer
+        cache.update(pin4, PinState.HIGH);
+        cache.update(pin4, PinState.LOW);
+        cache.update(pin4, PinState.HIGH);
+        Assert.assertEquals(2, stream.getCoalescedCount());
+
+        gate.countDown();
+        client.await(2);
+        Thread.sleep(50);
+        Assert.assertEquals(2, client.events.size());
+        Assert.assertTrue(client.events.get(0), client.events.get(0).contains("event:snapshot"));
+        String pin = client.events.get(1);
+        Assert.assertTrue(pin, pin.contains("event:pin") && pin.contains("\"address\":4,"));
+        Assert.assertTrue(pin, pin.contains("\"state\":\"HIGH\""));
+        Assert.assertEquals(0, stream.getDroppedCount());
+    }
+
+    @Test
+    public void testStalledClientDroppedWithoutBlockingOthers() throws Exception {
+        // a single delivery thread, which the stalled client occupies
+        stream = new PinEventStream(cache, 1, 200);
+        RecordingEmitter stalled = new RecordingEmitter(gate);
+        stream.register(stalled);
+        Assert.assertTrue(stalled.entered.await(5, TimeUnit.SECONDS));
+        RecordingEmitter healthy = new RecordingEmitter(null);
+        stream.register(healthy);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stream.getDroppedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, stream.getDroppedCount());
+        Assert.assertEquals(1, stream.getClientCount());
+
+        healthy.await(1);
+        cache.update(pin4, PinState.HIGH);
+        healthy.await(2);
+        Assert.assertTrue(healthy.events.get(1), healthy.events.get(1).contains("\"state\":\"HIGH\""));
+        Assert.assertTrue(stalled.events.isEmpty());
+        Assert.assertTrue(stalled.interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Records the events sent to it, optionally blocking each send until a gate opens.
+     */
+    private static class RecordingEmitter extends SseEmitter {
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+        private final CountDownLatch gate;
+
+        RecordingEmitter(final CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public void send(final SseEventBuilder builder) throws IOException {
+            entered.countDown();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw new IOException(e);
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            for (DataWithMediaType d : builder.build()) {
+                sb.append(d.getData());
+            }
+            events.add(sb.toString());
+        }
+
+        void await(final int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (events.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(events.toString(), events.size() >= count);
+        }
+    }
+}
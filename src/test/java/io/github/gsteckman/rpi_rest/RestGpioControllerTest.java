@@ -0,0 +1,193 @@
+package io.github.gsteckman.rpi_rest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioProviderBase;
+import com.pi4j.io.gpio.Pin;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+import com.pi4j.io.gpio.RaspiGpioProvider;
+import com.pi4j.io.gpio.impl.GpioControllerImpl;
+
+public class RestGpioControllerTest {
+    private BlockingProvider provider;
+    private GpioController gpio;
+    private PinStateCache cache;
+    private RestGpioController ctrl;
+
+    @Before
+    public void setUp() {
+        provider = new BlockingProvider();
+        gpio = new GpioControllerImpl(provider);
+        gpio.provisionDigitalOutputPin(provider, RaspiBcmPin.GPIO_04, PinState.LOW);
+        gpio.provisionDigitalOutputPin(provider, RaspiBcmPin.GPIO_17, PinState.LOW);
+        gpio.provisionDigitalInputPin(provider, RaspiBcmPin.GPIO_22);
+        cache = new PinStateCache(gpio);
+        ctrl = new RestGpioController(gpio, new PinLocks(), cache);
+    }
+
+    @After
+    public void tearDown() {
+        provider.release.countDown();
+    }
+
+    @Test
+    public void testReadNotBlockedByWriteOnOtherPin() throws Exception {
+        provider.blockedPin = RaspiBcmPin.GPIO_04;
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                Map<String, String> model = new HashMap<String, String>();
+                model.put("state", "HIGH");
+                ctrl.setGpio(4, model);
+            }
+        });
+        writer.start();
+        Assert.assertTrue(provider.entered.await(5, TimeUnit.SECONDS));
+
+        // pin 4's write is in progress and holding its lock; pin 17 must still be readable
+        final CountDownLatch read = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                ctrl.getGpio(17, null);
+                read.countDown();
+            }
+        });
+        reader.start();
+        Assert.assertTrue("read of pin 17 blocked by write of pin 4", read.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(writer.isAlive());
+
+        provider.release.countDown();
+        writer.join(5000);
+        Assert.assertEquals("HIGH", cache.getSnapshot().getPin(4).getState());
+    }
+
+    @Test
+    public void testSnapshotTracksWritesAndInputEvents() throws Exception {
+        long version = cache.getSnapshot().getVersion();
+        Assert.assertEquals(3, cache.getSnapshot().getPins().size());
+
+        Map<String, String> model = new HashMap<String, String>();
+        model.put("state", "high");
+        ctrl.setGpio(17, model);
+        Assert.assertEquals("HIGH", cache.getSnapshot().getPin(17).getState());
+        Assert.assertTrue(cache.getSnapshot().getVersion() > version);
+
+        provider.fire(RaspiBcmPin.GPIO_22, PinState.HIGH);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!"HIGH".equals(cache.getSnapshot().getPin(22).getState()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("HIGH", cache.getSnapshot().getPin(22).getState());
+        Assert.assertNull(cache.getSnapshot().getPin(5));
+    }
+
+    @Test
+    public void testPreEncodedJsonAndETag() {
+        Map<String, String> model = new HashMap<String, String>();
+        model.put("state", "HIGH");
+        ResponseEntity<byte[]> res = ctrl.setGpio(4, model);
+        Assert.assertEquals("{\"address\":4,\"mode\":\"OUTPUT\",\"state\":\"HIGH\"}",
+                new String(res.getBody(), StandardCharsets.UTF_8));
+
+        res = ctrl.getGpios(null);
+        Assert.assertEquals(HttpStatus.OK, res.getStatusCode());
+        String all = new String(res.getBody(), StandardCharsets.UTF_8);
+        Assert.assertTrue(all, all.startsWith("[{\"address\":4,") && all.endsWith("}]"));
+        String etag = res.getHeaders().getETag();
+
+        res = ctrl.getGpios(etag);
+        Assert.assertEquals(HttpStatus.NOT_MODIFIED, res.getStatusCode());
+        Assert.assertNull(res.getBody());
+
+        String pinTag = ctrl.getGpio(17, null).getHeaders().getETag();
+        model.put("state", "LOW");
+        ctrl.setGpio(4, model);
+        Assert.assertEquals(HttpStatus.OK, ctrl.getGpios(etag).getStatusCode());
+        Assert.assertEquals(HttpStatus.NOT_MODIFIED, ctrl.getGpio(17, pinTag).getStatusCode());
+    }
+
+    @Test
+    public void testSetPinProvisionedAfterCache() {
+        gpio.provisionDigitalInputPin(provider, RaspiBcmPin.GPIO_05);
+        Map<String, String> model = new HashMap<String, String>();
+        model.put("state", "HIGH");
+        ResponseEntity<byte[]> res = ctrl.setGpio(5, model);
+        Assert.assertEquals(HttpStatus.OK, res.getStatusCode());
+        String body = new String(res.getBody(), StandardCharsets.UTF_8);
+        Assert.assertTrue(body, body.startsWith("{\"address\":5,\"mode\":\"INPUT\""));
+    }
+
+    @Test
+    public void testBatchWrite() {
+        List<Map<String, String>> model = new ArrayList<Map<String, String>>();
+        model.add(write("4", "HIGH"));
+        model.add(write("17", "HIGH"));
+        long version = cache.getSnapshot().getVersion();
+        ResponseEntity<byte[]> res = ctrl.setGpios(model);
+        Assert.assertEquals(HttpStatus.OK, res.getStatusCode());
+        Assert.assertEquals(version + 1, cache.getSnapshot().getVersion());
+        Assert.assertEquals("HIGH", cache.getSnapshot().getPin(4).getState());
+        Assert.assertEquals("HIGH", cache.getSnapshot().getPin(17).getState());
+        Assert.assertEquals(PinState.HIGH, provider.getState(RaspiBcmPin.GPIO_17));
+
+        // an input pin in the batch rejects the whole batch
+        model.clear();
+        model.add(write("4", "LOW"));
+        model.add(write("22", "LOW"));
+        Assert.assertEquals(HttpStatus.BAD_REQUEST, ctrl.setGpios(model).getStatusCode());
+        Assert.assertEquals(PinState.HIGH, provider.getState(RaspiBcmPin.GPIO_04));
+    }
+
+    private static Map<String, String> write(final String address, final String state) {
+        Map<String, String> m = new HashMap<String, String>();
+        m.put("address", address);
+        m.put("state", state);
+        return m;
+    }
+
+    /**
+     * Provider whose setState blocks for a chosen pin until released.
+     */
+    private static class BlockingProvider extends GpioProviderBase {
+        volatile Pin blockedPin;
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public String getName() {
+            return RaspiGpioProvider.NAME;
+        }
+
+        @Override
+        public void setState(final Pin pin, final PinState state) {
+            if (pin.equals(blockedPin)) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.setState(pin, state);
+        }
+
+        void fire(final Pin pin, final PinState state) {
+            getPinCache(pin).setState(state);
+            dispatchPinDigitalStateChangeEvent(pin, state);
+        }
+    }
+}
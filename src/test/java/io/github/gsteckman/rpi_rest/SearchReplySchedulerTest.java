@@ -0,0 +1,78 @@
+package io.github.gsteckman.rpi_rest;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SearchReplySchedulerTest {
+
+    /**
+     * Simulates a discovery storm: 300 control points each send an M-SEARCH three times within one second. Each must be
+     * answered exactly once, within its MX, with the replies spread over the MX period and sent in batches.
+     */
+    @Test
+    public void testSearchStorm() throws Exception {
+        final int requesters = 300;
+        final int mx = 1;
+        final Map<SocketAddress, Long> repliedAt = new ConcurrentHashMap<SocketAddress, Long>();
+        final CountDownLatch done = new CountDownLatch(requesters);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            SearchReplyScheduler s = new SearchReplyScheduler(executor, new SearchReplyScheduler.Sender() {
+                public void send(final SocketAddress to, final String st) {
+                    Assert.assertNull("duplicate reply", repliedAt.put(to, System.currentTimeMillis()));
+                    done.countDown();
+                }
+            });
+
+            long start = System.currentTimeMillis();
+            for (int repeat = 0; repeat < 3; repeat++) {
+                for (int i = 0; i < requesters; i++) {
+                    s.schedule(new InetSocketAddress("10.0." + (i / 250) + "." + (i % 250 + 1), 50000), "ssdp:all", mx);
+                }
+                Thread.sleep(100);
+            }
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Thread.sleep(200);
+
+            Assert.assertEquals(requesters, s.getSentCount());
+            Assert.assertEquals(2 * requesters, s.getSuppressedCount());
+            Assert.assertTrue("not batched: " + s.getBatchCount(), s.getBatchCount() < requesters / 2);
+            long first = Long.MAX_VALUE;
+            long last = 0;
+            for (long t : repliedAt.values()) {
+                first = Math.min(first, t);
+                last = Math.max(last, t);
+            }
+            Assert.assertTrue(last - start <= mx * 1000 + SearchReplyScheduler.BATCH_WINDOW + 200);
+            Assert.assertTrue("replies not spread: " + (last - first), last - first > mx * 1000 / 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDuplicateSearchSuppressed() throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            SearchReplyScheduler s = new SearchReplyScheduler(executor, new SearchReplyScheduler.Sender() {
+                public void send(final SocketAddress to, final String st) {
+                }
+            });
+            SocketAddress a = new InetSocketAddress("10.0.0.1", 50000);
+            Assert.assertTrue(s.schedule(a, "upnp:rootdevice", 1));
+            Assert.assertFalse(s.schedule(a, "upnp:rootdevice", 1));
+            Assert.assertTrue(s.schedule(a, "ssdp:all", 1)); // a different search target is a different search
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package io.github.gsteckman.rpi_rest;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+import com.pi4j.io.gpio.impl.GpioControllerImpl;
+
+/**
+ * The simulated GPIO used by the tests: a SimulatedGpioProvider delivering pin events without latency, and a
+ * controller with outputs 4 and 17, initially LOW, and input 22 provisioned on it.
+ */
+final class SimulatedGpio {
+    final SimulatedGpioProvider provider;
+    final GpioController gpio;
+
+    SimulatedGpio() {
+        provider = new SimulatedGpioProvider();
+        provider.setEventLatency(0);
+        gpio = new GpioControllerImpl(provider);
+        gpio.provisionDigitalOutputPin(provider, RaspiBcmPin.GPIO_04, PinState.LOW);
+        gpio.provisionDigitalOutputPin(provider, RaspiBcmPin.GPIO_17, PinState.LOW);
+        gpio.provisionDigitalInputPin(provider, RaspiBcmPin.GPIO_22);
+    }
+
+    /**
+     * Shuts down the simulated provider.
+     */
+    void shutdown() {
+        provider.shutdown(); // not gpio.shutdown(), which stops the Pi4J executor shared by all controllers
+    }
+}
@@ -0,0 +1,63 @@
+package io.github.gsteckman.rpi_rest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+
+public class SimulatedGpioProviderTest {
+    private SimulatedGpio sim;
+
+    @Before
+    public void setUp() {
+        sim = new SimulatedGpio();
+    }
+
+    @After
+    public void tearDown() {
+        sim.shutdown();
+    }
+
+    @Test
+    public void testSquareWaveUpdatesCache() throws Exception {
+        sim.provider.setDefaultWaveform(SimulatedGpioProvider.Waveform.SQUARE, 20000);
+        sim.gpio.provisionDigitalInputPin(sim.provider, RaspiBcmPin.GPIO_27);
+        PinStateCache cache = new PinStateCache(sim.gpio);
+
+        long version = cache.getSnapshot().getPin(27).getVersion();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getSnapshot().getPin(27).getVersion() < version + 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(cache.getSnapshot().getPin(27).getVersion() >= version + 4);
+        Assert.assertTrue(sim.provider.getEdgeCount() >= 4);
+        Assert.assertEquals(SimulatedGpioProvider.Waveform.NONE, sim.provider.getWaveform(RaspiBcmPin.GPIO_04));
+        Assert.assertEquals("LOW", cache.getSnapshot().getPin(4).getState());
+    }
+
+    @Test
+    public void testRestControllerOnSimulator() throws Exception {
+        sim.provider.setEventLatency(SimulatedGpioProvider.DEFAULT_EVENT_LATENCY); // events through the scheduler
+        sim.gpio.provisionDigitalInputPin(sim.provider, RaspiBcmPin.GPIO_27);
+        PinStateCache cache = new PinStateCache(sim.gpio);
+        RestGpioController ctrl = new RestGpioController(sim.gpio, new PinLocks(), cache);
+
+        Map<String, String> model = new HashMap<String, String>();
+        model.put("state", "HIGH");
+        ctrl.setGpio(17, model);
+        Assert.assertEquals(PinState.HIGH, sim.provider.getState(RaspiBcmPin.GPIO_17));
+
+        sim.provider.setInputState(RaspiBcmPin.GPIO_27, PinState.HIGH);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!"HIGH".equals(cache.getSnapshot().getPin(27).getState()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("HIGH", cache.getSnapshot().getPin(27).getState());
+    }
+}
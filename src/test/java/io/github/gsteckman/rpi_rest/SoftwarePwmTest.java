@@ -0,0 +1,167 @@
+package io.github.gsteckman.rpi_rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.ResponseEntity;
+
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiBcmPin;
+
+public class SoftwarePwmTest {
+    private SimulatedGpio sim;
+    private PinLocks locks;
+    private PinStateCache cache;
+    private SoftwarePwm pwm;
+
+    @Before
+    public void setUp() {
+        sim = new SimulatedGpio();
+        locks = new PinLocks();
+        cache = new PinStateCache(sim.gpio);
+        pwm = new SoftwarePwm(sim.gpio, locks, cache, 100);
+    }
+
+    @After
+    public void tearDown() {
+        pwm.close();
+        sim.shutdown();
+    }
+
+    @Test
+    public void testTogglesPins() throws Exception {
+        Assert.assertEquals(200, set(4, "25", null).getStatusCodeValue());
+        Assert.assertEquals("{\"address\":17,\"frequency\":400,\"duty\":50.0}", body(set(17, "50", "400")));
+        Assert.assertEquals("{\"address\":4,\"frequency\":100,\"duty\":25.0}", body(pwm.getPwm(4)));
+        Thread.sleep(200);
+        // 100 Hz on pin 4 and 400 Hz on pin 17, each toggling twice per period
+        long toggles = pwm.getToggles();
+        Assert.assertTrue("toggles " + toggles, toggles >= 100 && toggles <= 260);
+        String json = body(pwm.getPwms());
+        Assert.assertTrue(json, json.startsWith("{\"frequency\":100,\"toggles\":"));
+        Assert.assertTrue(json, json.endsWith(",\"channels\":[{\"address\":4,\"frequency\":100,\"duty\":25.0},"
+                + "{\"address\":17,\"frequency\":400,\"duty\":50.0}]}"));
+
+        // duty changes take effect at the next frame
+        Assert.assertEquals(200, set(4, "100", null).getStatusCodeValue());
+        Thread.sleep(50);
+        Assert.assertEquals(PinState.HIGH, sim.provider.getState(RaspiBcmPin.GPIO_04));
+
+        Assert.assertEquals(200, pwm.stopPwm(17).getStatusCodeValue());
+        Thread.sleep(50);
+        Assert.assertEquals(PinState.LOW, sim.provider.getState(RaspiBcmPin.GPIO_17));
+        Assert.assertEquals("LOW", cache.getSnapshot().getPin(17).getState());
+        Assert.assertEquals(404, pwm.getPwm(17).getStatusCodeValue());
+        Assert.assertEquals(404, pwm.stopPwm(17).getStatusCodeValue());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        set(4, "50", "1000");
+        Thread.sleep(50);
+        pwm.resetStatistics();
+        Thread.sleep(100);
+        Assert.assertTrue(pwm.getToggles() > 0 && pwm.getToggles() <= 2 * 1000 * 110 / 1000);
+        Assert.assertTrue(pwm.getMaxLateness() >= pwm.getMeanLateness());
+        Assert.assertTrue(pwm.getCpuTime() >= 0);
+    }
+
+    @Test
+    public void testDrivenPinsReserved() throws Exception {
+        RestGpioController rest = new RestGpioController(sim.gpio, locks, cache);
+        OutputSequencer sequencer = new OutputSequencer(sim.gpio, locks, cache);
+        try {
+            Assert.assertEquals(200, set(4, "50", null).getStatusCodeValue());
+            Assert.assertEquals(409, rest.setGpio(4, Collections.singletonMap("state", "HIGH")).getStatusCodeValue());
+            List<Map<String, String>> batch = new ArrayList<Map<String, String>>();
+            batch.add(pinState(17, "HIGH"));
+            batch.add(pinState(4, "HIGH"));
+            Assert.assertEquals(409, rest.setGpios(batch).getStatusCodeValue());
+            Assert.assertEquals(PinState.LOW, sim.provider.getState(RaspiBcmPin.GPIO_17));
+            Assert.assertEquals(409, sequencer.startSequence(sequence(1 << 4)).getStatusCodeValue());
+
+            // a pin of a running sequence can't be driven
+            Assert.assertEquals(201, sequencer.startSequence(sequence(1 << 17)).getStatusCodeValue());
+            Assert.assertEquals(409, set(17, "50", null).getStatusCodeValue());
+            sequencer.cancelSequence(1);
+
+            // a stopped pin is released once the thread has set it low
+            Assert.assertEquals(200, pwm.stopPwm(4).getStatusCodeValue());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (locks.isReserved(4) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(200, rest.setGpio(4, Collections.singletonMap("state", "HIGH")).getStatusCodeValue());
+            Assert.assertEquals(PinState.HIGH, sim.provider.getState(RaspiBcmPin.GPIO_04));
+        } finally {
+            sequencer.close();
+        }
+    }
+
+    @Test
+    public void testWriteErrorStopsThread() throws Exception {
+        Assert.assertEquals(200, set(4, "50", null).getStatusCodeValue());
+        Assert.assertEquals(200, set(17, "50", null).getStatusCodeValue());
+        sim.gpio.unprovisionPin(sim.gpio.getProvisionedPin(RaspiBcmPin.GPIO_04));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!pwm.isFailed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertTrue(pwm.isFailed());
+        Assert.assertTrue(body(pwm.getPwms()).endsWith(",\"failed\":true,\"channels\":[]}"));
+        Assert.assertEquals(PinState.LOW, sim.provider.getState(RaspiBcmPin.GPIO_17));
+        Assert.assertFalse(locks.isReserved(4) || locks.isReserved(17));
+        Assert.assertEquals(503, set(17, "50", null).getStatusCodeValue());
+    }
+
+    @Test
+    public void testInvalidSettings() {
+        Assert.assertEquals(400, set(22, "50", null).getStatusCodeValue());
+        Assert.assertEquals(400, set(5, "50", null).getStatusCodeValue());
+        Assert.assertEquals(400, set(4, "101", null).getStatusCodeValue());
+        Assert.assertEquals(400, set(4, "x", null).getStatusCodeValue());
+        Assert.assertEquals(400, set(4, null, null).getStatusCodeValue());
+        Assert.assertEquals(400, set(4, "50", "150").getStatusCodeValue());
+        Assert.assertEquals(400, set(4, "50", "50").getStatusCodeValue());
+        Assert.assertEquals(404, pwm.getPwm(4).getStatusCodeValue());
+    }
+
+    private ResponseEntity<byte[]> set(final int address, final String duty, final String frequency) {
+        Map<String, String> model = new HashMap<String, String>();
+        if (duty != null) {
+            model.put("duty", duty);
+        }
+        if (frequency != null) {
+            model.put("frequency", frequency);
+        }
+        return pwm.setPwm(address, model);
+    }
+
+    private static Map<String, String> pinState(final int address, final String state) {
+        Map<String, String> m = new HashMap<String, String>();
+        m.put("address", Integer.toString(address));
+        m.put("state", state);
+        return m;
+    }
+
+    private static Map<String, Object> sequence(final long mask) {
+        Map<String, Object> step = new HashMap<String, Object>();
+        step.put("mask", mask);
+        step.put("state", "HIGH");
+        step.put("delay", 1000000);
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("steps", Collections.singletonList(step));
+        return model;
+    }
+
+    private static String body(final ResponseEntity<byte[]> res) {
+        return new String(res.getBody());
+    }
+}
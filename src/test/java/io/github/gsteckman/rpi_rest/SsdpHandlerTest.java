@@ -0,0 +1,137 @@
+package io.github.gsteckman.rpi_rest;
+
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SsdpHandlerTest {
+    private static final String[] TARGETS = { "upnp:rootdevice", "uuid:1234", "urn:gsteckman-github-io:device:rpi:1" };
+    private static final String[] USNS = { "uuid:1234::upnp:rootdevice", "uuid:1234",
+            "uuid:1234::urn:gsteckman-github-io:device:rpi:1" };
+
+    @Test
+    public void testResponsesReencodedWhenPortOrConfigIdChanges() throws Exception {
+        SsdpHandler.Interface i = new SsdpHandler.Interface(loopback(), address("192.168.1.2"), 24);
+        ByteBuffer[] r = i.getSearchResponses(8080, 1, TARGETS, USNS);
+        Assert.assertEquals(3, r.length);
+        String text = text(r[2]);
+        Assert.assertTrue(text, text.startsWith("HTTP/1.1 200 OK\r\n"));
+        Assert.assertTrue(text, text.contains("\r\nLOCATION: http://192.168.1.2:8080\r\n"));
+        Assert.assertTrue(text, text.contains("\r\nST: urn:gsteckman-github-io:device:rpi:1\r\n"));
+        Assert.assertTrue(text, text.contains("\r\nUSN: uuid:1234::urn:gsteckman-github-io:device:rpi:1\r\n"));
+        Assert.assertTrue(text, text.contains("\r\nCONFIGID.UPNP.ORG: 1\r\n"));
+        Assert.assertSame(r, i.getSearchResponses(8080, 1, TARGETS, USNS));
+
+        r = i.getSearchResponses(9090, 1, TARGETS, USNS);
+        text = text(r[0]);
+        Assert.assertTrue(text, text.contains("\r\nLOCATION: http://192.168.1.2:9090\r\n"));
+        Assert.assertTrue(text, text.contains("\r\nCONFIGID.UPNP.ORG: 1\r\n"));
+
+        r = i.getSearchResponses(9090, 7, TARGETS, USNS);
+        text = text(r[1]);
+        Assert.assertTrue(text, text.contains("\r\nLOCATION: http://192.168.1.2:9090\r\n"));
+        Assert.assertTrue(text, text.contains("\r\nCONFIGID.UPNP.ORG: 7\r\n"));
+
+        DatagramPacket[] notifies = i.getNotifies(9090, 7, TARGETS, USNS);
+        Assert.assertEquals(3, notifies.length);
+        text = new String(notifies[0].getData(), 0, notifies[0].getLength(), StandardCharsets.US_ASCII);
+        Assert.assertTrue(text, text.contains("\r\nLOCATION: http://192.168.1.2:9090\r\n"));
+        Assert.assertTrue(text, text.contains("\r\nNT: upnp:rootdevice\r\nNTS: ssdp:alive\r\n"));
+        Assert.assertTrue(text, text.contains("\r\nCONFIGID.UPNP.ORG: 7\r\n"));
+        Assert.assertSame(notifies, i.getNotifies(9090, 7, TARGETS, USNS));
+        text = new String(i.getNotifies(8080, 8, TARGETS, USNS)[0].getData(), StandardCharsets.US_ASCII);
+        Assert.assertTrue(text, text.contains("\r\nLOCATION: http://192.168.1.2:8080\r\n"));
+        Assert.assertTrue(text, text.contains("\r\nCONFIGID.UPNP.ORG: 8\r\n"));
+    }
+
+    @Test
+    public void testContains() throws Exception {
+        SsdpHandler.Interface i = new SsdpHandler.Interface(loopback(), address("192.168.1.2"), 24);
+        Assert.assertTrue(i.contains(address("192.168.1.200")));
+        Assert.assertFalse(i.contains(address("192.168.2.2")));
+        Assert.assertFalse(i.contains(InetAddress.getByName("::1")));
+
+        i = new SsdpHandler.Interface(loopback(), address("192.168.1.2"), 32);
+        Assert.assertTrue(i.contains(address("192.168.1.2")));
+        Assert.assertFalse(i.contains(address("192.168.1.3")));
+
+        i = new SsdpHandler.Interface(loopback(), address("192.168.1.2"), 0);
+        Assert.assertTrue(i.contains(address("10.1.2.3")));
+
+        i = new SsdpHandler.Interface(loopback(), address("192.168.1.2"), 64);
+        Assert.assertFalse(i.contains(address("192.168.1.2")));
+    }
+
+    @Test
+    public void testInterfaceChosenByRequesterSubnet() throws Exception {
+        SsdpHandler.Interface wired = new SsdpHandler.Interface(loopback(), address("192.168.1.2"), 24);
+        SsdpHandler.Interface wireless = new SsdpHandler.Interface(loopback(), address("10.0.0.7"), 8);
+        List<SsdpHandler.Interface> interfaces = Arrays.asList(wired, wireless);
+        Assert.assertSame(wireless, SsdpHandler.getInterface(interfaces, address("10.20.30.40")));
+        Assert.assertSame(wired, SsdpHandler.getInterface(interfaces, address("192.168.1.99")));
+
+        // a requester on no subnet, for example behind a router, is answered from the first interface
+        Assert.assertSame(wired, SsdpHandler.getInterface(interfaces, address("172.16.0.1")));
+        Assert.assertNull(SsdpHandler.getInterface(Collections.<SsdpHandler.Interface> emptyList(),
+                address("172.16.0.1")));
+    }
+
+    @Test
+    public void testUpdateKeepsUnchangedAndClosesRemovedInterfaces() throws Exception {
+        SsdpHandler.Interface kept = new SsdpHandler.Interface(loopback(), address("127.0.0.1"), 8);
+        SsdpHandler.Interface removed = new SsdpHandler.Interface(loopback(), address("127.0.0.2"), 8);
+        kept.open();
+        removed.open();
+        kept.getSearchResponses(8080, 1, TARGETS, USNS);
+        List<SsdpHandler.Interface> current = Arrays.asList(kept, removed);
+
+        SsdpHandler.Interface added = new SsdpHandler.Interface(loopback(), address("127.0.0.3"), 8);
+        List<SsdpHandler.Interface> updated = SsdpHandler.update(current,
+                Arrays.asList(added, new SsdpHandler.Interface(loopback(), address("127.0.0.1"), 8)));
+        try {
+            Assert.assertEquals(2, updated.size());
+            Assert.assertSame(added, updated.get(0));
+            Assert.assertTrue(added.isOpen());
+            // the same instance, with its socket and encoded messages
+            Assert.assertSame(kept, updated.get(1));
+            Assert.assertTrue(kept.isOpen());
+            Assert.assertFalse(removed.isOpen());
+
+            // a change of prefix length is a new interface
+            List<SsdpHandler.Interface> again = SsdpHandler.update(updated, Arrays.asList(added,
+                    new SsdpHandler.Interface(loopback(), address("127.0.0.1"), 16)));
+            Assert.assertSame(added, again.get(0));
+            Assert.assertNotSame(kept, again.get(1));
+            Assert.assertFalse(kept.isOpen());
+            again.get(1).close();
+        } finally {
+            added.close();
+            kept.close();
+        }
+    }
+
+    private static NetworkInterface loopback() throws Exception {
+        return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+    }
+
+    private static Inet4Address address(final String a) throws Exception {
+        return (Inet4Address) InetAddress.getByName(a);
+    }
+
+    private static String text(final ByteBuffer b) {
+        ByteBuffer d = b.duplicate();
+        d.rewind();
+        byte[] ba = new byte[d.remaining()];
+        d.get(ba);
+        return new String(ba, StandardCharsets.US_ASCII);
+    }
+}
@@ -1,13 +1,34 @@
 package io.github.gsteckman.rpi_rest;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.junit.Assert;
 
 public class SubscriptionManagerTest {
-    
+
     @Test
     public void testParseCallbackHeader() {
         SubscriptionManager sm = new SubscriptionManager();
@@ -16,9 +37,544 @@ public class SubscriptionManagerTest {
 
         List<URL> list = sm.parseCallbackHeader(hdr1);
         Assert.assertEquals(1, list.size());
-        
+
         list = sm.parseCallbackHeader(hdr2);
         Assert.assertEquals(2, list.size());
     }
 
+    @Test
+    public void testParseCallbackHeaderValidation() {
+        SubscriptionManager sm = new SubscriptionManager(1);
+        List<URL> list = sm.parseCallbackHeader(
+                " <ftp://a.com/x> <HTTP://192.168.1.5:49152/cb?x=1> <http:// a.com/> <http:///cb> junk <http://b.com>");
+        Assert.assertEquals(2, list.size());
+        Assert.assertEquals("192.168.1.5", list.get(0).getHost());
+        Assert.assertEquals(49152, list.get(0).getPort());
+        Assert.assertEquals("/cb?x=1", list.get(0).getFile());
+        Assert.assertEquals("b.com", list.get(1).getHost());
+
+        StringBuilder sb = new StringBuilder("<http://a.com/");
+        for (int i = 0; i < SubscriptionManager.MAX_CALLBACK_LENGTH; i++) {
+            sb.append('x');
+        }
+        Assert.assertTrue(sm.parseCallbackHeader(sb.append('>').toString()).isEmpty());
+
+        sb.setLength(0);
+        for (int i = 0; i < SubscriptionManager.MAX_CALLBACKS + 3; i++) {
+            sb.append("<http://10.0.0.").append(i + 1).append("/>");
+        }
+        Assert.assertEquals(SubscriptionManager.MAX_CALLBACKS, sm.parseCallbackHeader(sb.toString()).size());
+        sm.shutdown();
+    }
+
+    @Test
+    public void testFireEventIsAsynchronousAndOrdered() throws Exception {
+        SubscriptionManager sm = new SubscriptionManager();
+        NotifyReceiver receiver = new NotifyReceiver();
+        try {
+            // a subscriber whose callback never answers must not delay the other subscriber
+            subscribe(sm, "k", "<http://10.255.255.1:9/dead>");
+            subscribe(sm, "k", "<http://127.0.0.1:" + receiver.getPort() + "/cb>");
+
+            long start = System.nanoTime();
+            for (int i = 0; i < 5; i++) {
+                sm.fireEvent("k", "text/xml", "<e>" + i + "</e>");
+            }
+            Assert.assertTrue("fireEvent blocked", System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+            // each event i must carry SEQ i
+            for (int i = 0; i < 5; i++) {
+                String notify = receiver.requests.poll(5, TimeUnit.SECONDS);
+                Assert.assertNotNull(notify);
+                int seq = notify.indexOf("SEQ: ") + 5;
+                String n = notify.substring(seq, notify.indexOf("\r\n", seq));
+                Assert.assertTrue(notify, notify.endsWith("<e>" + n + "</e>"));
+            }
+        } finally {
+            sm.shutdown();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testNotifyFormat() throws Exception {
+        SubscriptionManager sm = new SubscriptionManager();
+        NotifyReceiver receiver = new NotifyReceiver();
+        try {
+            String sid = subscribe(sm, "k", "<http://127.0.0.1:" + receiver.getPort() + "/cb?x=1>").getHeader("SID");
+            String body = "<e>\u00e9\u20ac</e>";
+            sm.fireEvent("k", "text/xml; charset=\"utf-8\"", body);
+            sm.fireEvent("k", "text/xml; charset=\"utf-8\"", body);
+            String[] expected = new String[2];
+            for (int i = 0; i < 2; i++) {
+                expected[i] = "NOTIFY /cb?x=1 HTTP/1.1\r\n" + "HOST: 127.0.0.1:" + receiver.getPort() + "\r\n"
+                        + "NT: upnp:event\r\n" + "NTS: upnp:propchange\r\n" + "SID: " + sid + "\r\n" + "SEQ: " + i
+                        + "\r\n" + "CONTENT-TYPE: text/xml; charset=\"utf-8\"\r\n" + "CONTENT-LENGTH: 12\r\n" + "\r\n"
+                        + body;
+            }
+            String a = receiver.requests.poll(5, TimeUnit.SECONDS);
+            String b = receiver.requests.poll(5, TimeUnit.SECONDS);
+            if (a.contains("SEQ: 1")) {
+                String t = a;
+                a = b;
+                b = t;
+            }
+            Assert.assertEquals(expected[0], a);
+            Assert.assertEquals(expected[1], b);
+        } finally {
+            sm.shutdown();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testNotifyConnectionsAreReused() throws Exception {
+        SubscriptionManager sm = new SubscriptionManager();
+        NotifyReceiver receiver = new NotifyReceiver();
+        try {
+            subscribe(sm, "k", "<http://127.0.0.1:" + receiver.getPort() + "/cb>");
+            for (int i = 0; i < 10; i++) {
+                sm.fireEvent("k", "text/xml", "<e>" + i + "</e>");
+            }
+            for (int i = 0; i < 10; i++) {
+                Assert.assertNotNull(receiver.requests.poll(5, TimeUnit.SECONDS));
+            }
+            NotifyConnectionPool pool = sm.getConnectionPool();
+            Assert.assertEquals(1, receiver.getConnections());
+            Assert.assertEquals(1, pool.getConnectCount());
+            // the last response may not have been read yet
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.getReuseCount() < 9 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(9, pool.getReuseCount());
+            Assert.assertEquals(0.9, pool.getReuseRate(), 1e-9);
+        } finally {
+            sm.shutdown();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testNotifyErrorStatusTriesNextCallback() throws Exception {
+        SubscriptionManager sm = new SubscriptionManager();
+        NotifyReceiver rejecting = new NotifyReceiver(412);
+        NotifyReceiver receiver = new NotifyReceiver();
+        try {
+            subscribe(sm, "k", "<http://127.0.0.1:" + rejecting.getPort() + "/cb><http://127.0.0.1:"
+                    + receiver.getPort() + "/cb>");
+            sm.fireEvent("k", "text/xml", "<e>0</e>");
+            Assert.assertNotNull(rejecting.requests.poll(5, TimeUnit.SECONDS));
+            String notify = receiver.requests.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(notify);
+            Assert.assertTrue(notify, notify.contains("SEQ: 0\r\n"));
+        } finally {
+            sm.shutdown();
+            rejecting.close();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testSlowSubscriberYieldsBetweenEvents() throws Exception {
+        // one dispatcher thread, shared by a subscriber taking 200 ms per NOTIFY and a fast one
+        SubscriptionManager sm = new SubscriptionManager(1);
+        NotifyReceiver slow = new NotifyReceiver();
+        slow.delay = 200;
+        NotifyReceiver fast = new NotifyReceiver();
+        try {
+            subscribe(sm, "k", "<http://127.0.0.1:" + slow.getPort() + "/cb>");
+            subscribe(sm, "k", "<http://127.0.0.1:" + fast.getPort() + "/cb>");
+            Thread.sleep(100);
+            long start = System.nanoTime();
+            for (int i = 0; i < 5; i++) {
+                sm.fireEvent("k", "text/xml", "<e>" + i + "</e>");
+            }
+            for (int i = 0; i < 5; i++) {
+                Assert.assertNotNull(fast.requests.poll(5, TimeUnit.SECONDS));
+                // the fast subscriber gets a turn after each of the slow subscriber's events
+                Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200 * (i + 1) + 400));
+            }
+        } finally {
+            sm.shutdown();
+            slow.close();
+            fast.close();
+        }
+    }
+
+    @Test
+    public void testFailingSubscriberBacksOff() throws Exception {
+        SubscriptionManager sm = new SubscriptionManager();
+        NotifyReceiver rejecting = new NotifyReceiver(412);
+        try {
+            subscribe(sm, "k", "<http://127.0.0.1:" + rejecting.getPort() + "/cb>");
+            for (int i = 0; i < 3; i++) {
+                sm.fireEvent("k", "text/xml", "<e>" + i + "</e>");
+            }
+            Assert.assertNotNull(rejecting.requests.poll(5, TimeUnit.SECONDS));
+            long start = System.nanoTime();
+            // retried after 1 s, then after 2 s
+            Assert.assertNull(rejecting.requests.poll(800, TimeUnit.MILLISECONDS));
+            String second = rejecting.requests.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(second);
+            Assert.assertTrue(second, second.endsWith("<e>1</e>"));
+            long elapsed = System.nanoTime() - start;
+            Assert.assertNull(rejecting.requests.poll(1800 - TimeUnit.NANOSECONDS.toMillis(elapsed) + 800,
+                    TimeUnit.MILLISECONDS));
+            Assert.assertNotNull(rejecting.requests.poll(5, TimeUnit.SECONDS));
+        } finally {
+            sm.shutdown();
+            rejecting.close();
+        }
+    }
+
+    @Test
+    public void testCoalescingWithMinInterval() throws Exception {
+        SubscriptionManager sm = new SubscriptionManager();
+        NotifyReceiver receiver = new NotifyReceiver();
+        try {
+            sm.setCoalescing(true);
+            sm.setMinInterval(300);
+            subscribe(sm, "k", "<http://127.0.0.1:" + receiver.getPort() + "/cb>");
+            sm.fireEvent("k", "text/xml", "<e>0</e>");
+            String first = receiver.requests.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(first);
+            Assert.assertTrue(first, first.endsWith("<e>0</e>"));
+
+            // within the minimum interval, later events collapse into the latest
+            for (int i = 1; i < 50; i++) {
+                sm.fireEvent("k", "text/xml", "<e>" + i + "</e>");
+            }
+            String last = receiver.requests.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(last);
+            Assert.assertTrue(last, last.contains("SEQ: 1\r\n"));
+            Assert.assertTrue(last, last.endsWith("<e>49</e>"));
+            Assert.assertNull(receiver.requests.poll(500, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(48, sm.getCoalescedCount());
+            Assert.assertEquals(0, sm.getDroppedCount());
+        } finally {
+            sm.shutdown();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testKeyMinIntervalDefersLatestEvent() throws Exception {
+        SubscriptionManager sm = new SubscriptionManager();
+        NotifyReceiver receiver = new NotifyReceiver();
+        try {
+            sm.setKeyMinInterval("k", 300);
+            subscribe(sm, "k", "<http://127.0.0.1:" + receiver.getPort() + "/cb>");
+            for (int i = 0; i < 10; i++) {
+                sm.fireEvent("k", "text/xml", "<e>" + i + "</e>");
+            }
+
+            String first = receiver.requests.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(first);
+            Assert.assertTrue(first, first.endsWith("<e>0</e>"));
+            long start = System.nanoTime();
+            String last = receiver.requests.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(last);
+            Assert.assertTrue(last, last.endsWith("<e>9</e>"));
+            Assert.assertTrue(System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(150));
+            Assert.assertNull(receiver.requests.poll(500, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(8, sm.getCoalescedCount());
+        } finally {
+            sm.shutdown();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testExpiredSubscriptionsAreRemoved() throws Exception {
+        SubscriptionManager sm = new SubscriptionManager();
+        try {
+            subscribe(sm, "k", "<http://127.0.0.1:9/a>", 1);
+            String sid = subscribe(sm, "k", "<http://127.0.0.1:9/b>", 1).getHeader("SID");
+            Assert.assertEquals(2, sm.getSubscriptions("k").size());
+
+            Thread.sleep(600);
+            MockHttpServletRequest req = new MockHttpServletRequest("SUBSCRIBE", "/k");
+            req.addHeader("SID", sid);
+            req.addHeader("TIMEOUT", "Second-2");
+            MockHttpServletResponse res = new MockHttpServletResponse();
+            sm.processSubscribe("k", req, res);
+            Assert.assertEquals(200, res.getStatus());
+            Assert.assertEquals("Second-2", res.getHeader("TIMEOUT"));
+
+            // removed without any event being fired for the key; the renewed subscription remains
+            Thread.sleep(1000);
+            Assert.assertEquals(1, sm.getSubscriptions("k").size());
+            Assert.assertEquals(sid, "uuid:" + sm.getSubscriptions("k").iterator().next().getSid());
+            Thread.sleep(1500);
+            Assert.assertEquals(0, sm.getSubscriptions("k").size());
+            Assert.assertEquals(2, sm.getExpiredCount());
+        } finally {
+            sm.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentSubscribeUnsubscribeAndFire() throws Exception {
+        final SubscriptionManager sm = new SubscriptionManager();
+        NotifyReceiver receiver = new NotifyReceiver();
+        final String callback = "<http://127.0.0.1:" + receiver.getPort() + "/cb>";
+        final String[] keys = { "a", "b", "c", "d" };
+        final int threads = 8;
+        final int perThread = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService ex = Executors.newFixedThreadPool(threads + 1);
+        try {
+            sm.setCoalescing(true); // bound the NOTIFY traffic
+            List<Future<Integer>> workers = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                workers.add(ex.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        start.await();
+                        int kept = 0;
+                        for (int i = 0; i < perThread; i++) {
+                            String key = keys[(id + i) % keys.length];
+                            String sid = subscribe(sm, key, callback).getHeader("SID");
+                            if (i % 2 == 0) {
+                                Assert.assertEquals(200, unsubscribe(sm, key, sid).getStatus());
+                            } else {
+                                kept++;
+                            }
+                        }
+                        return kept;
+                    }
+                }));
+            }
+            Future<?> firer = ex.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+                    while (running.get()) {
+                        for (String key : keys) {
+                            sm.fireEvent(key, "text/xml", "<e/>");
+                        }
+                        Thread.sleep(1);
+                    }
+                    return null;
+                }
+            });
+
+            start.countDown();
+            int kept = 0;
+            for (Future<Integer> f : workers) {
+                kept += f.get(60, TimeUnit.SECONDS); // rethrows any exception from the worker
+            }
+            running.set(false);
+            firer.get(10, TimeUnit.SECONDS);
+
+            int registered = 0;
+            for (String key : keys) {
+                registered += sm.getSubscriptions(key).size();
+            }
+            Assert.assertEquals(threads * perThread / 2, kept);
+            Assert.assertEquals(kept, registered);
+        } finally {
+            ex.shutdownNow();
+            sm.shutdown();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testSubscriptionsRestoredFromJournal() throws Exception {
+        File file = File.createTempFile("subscriptions", ".journal");
+        NotifyReceiver receiver = new NotifyReceiver();
+        try {
+            String callback = "<http://127.0.0.1:" + receiver.getPort() + "/cb>";
+            SubscriptionManager sm = new SubscriptionManager(2, new SubscriptionJournal(file));
+            String kept = subscribe(sm, "k", callback).getHeader("SID");
+            String removed = subscribe(sm, "k", callback).getHeader("SID");
+            Assert.assertEquals(200, unsubscribe(sm, "k", removed).getStatus());
+            sm.fireEvent("k", "text/xml", "<e>0</e>");
+            sm.fireEvent("k", "text/xml", "<e>1</e>");
+            Assert.assertNotNull(receiver.requests.poll(5, TimeUnit.SECONDS));
+            Assert.assertNotNull(receiver.requests.poll(5, TimeUnit.SECONDS));
+            SubscriptionManager.SubscriptionInfo si = sm.getSubscriptions("k").iterator().next();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (si.getEventKey() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10); // the second response may not have been read yet
+            }
+            long expiration = si.getExpiration();
+            sm.shutdown();
+
+            sm = new SubscriptionManager(2, new SubscriptionJournal(file));
+            Assert.assertEquals(1, sm.getSubscriptions("k").size());
+            si = sm.getSubscriptions("k").iterator().next();
+            Assert.assertEquals(kept, "uuid:" + si.getSid());
+            Assert.assertEquals(expiration, si.getExpiration());
+            Assert.assertEquals(2, si.getEventKey());
+
+            // without shutdown, as after a crash; records are written within the flush interval
+            String added = subscribe(sm, "j", callback).getHeader("SID");
+            Thread.sleep(500);
+            SubscriptionManager restarted = new SubscriptionManager(2, new SubscriptionJournal(file));
+            Assert.assertEquals(1, restarted.getSubscriptions("k").size());
+            Assert.assertEquals(added, "uuid:" + restarted.getSubscriptions("j").iterator().next().getSid());
+            sm.shutdown();
+            restarted.shutdown();
+        } finally {
+            receiver.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testUnrecognizedJournalMovedAside() throws Exception {
+        File file = File.createTempFile("subscriptions", ".journal");
+        File bad = new File(file.getPath() + ".bad");
+        try {
+            byte[] junk = "not a journal".getBytes(StandardCharsets.US_ASCII);
+            Files.write(file.toPath(), junk);
+            SubscriptionJournal journal = new SubscriptionJournal(file);
+            Assert.assertTrue(journal.getEntries().isEmpty());
+            Assert.assertArrayEquals(junk, Files.readAllBytes(bad.toPath()));
+            journal.close();
+            // the new journal is recognized when reopened
+            journal = new SubscriptionJournal(file);
+            journal.close();
+            Assert.assertArrayEquals(junk, Files.readAllBytes(bad.toPath()));
+        } finally {
+            file.delete();
+            bad.delete();
+        }
+    }
+
+    static MockHttpServletResponse subscribe(final SubscriptionManager sm, final String key, final String callback)
+            throws IOException {
+        return subscribe(sm, key, callback, 300);
+    }
+
+    static MockHttpServletResponse subscribe(final SubscriptionManager sm, final String key, final String callback,
+            final int timeout) throws IOException {
+        MockHttpServletRequest req = new MockHttpServletRequest("SUBSCRIBE", "/" + key);
+        req.addHeader("CALLBACK", callback);
+        req.addHeader("NT", "upnp:event");
+        req.addHeader("TIMEOUT", "Second-" + timeout);
+        MockHttpServletResponse res = new MockHttpServletResponse();
+        sm.processSubscribe(key, req, res);
+        Assert.assertEquals(200, res.getStatus());
+        return res;
+    }
+
+    static MockHttpServletResponse unsubscribe(final SubscriptionManager sm, final String key, final String sid)
+            throws IOException {
+        MockHttpServletRequest req = new MockHttpServletRequest("UNSUBSCRIBE", "/" + key);
+        req.addHeader("SID", sid);
+        MockHttpServletResponse res = new MockHttpServletResponse();
+        sm.processUnsubscribe(key, req, res);
+        return res;
+    }
+
+    /**
+     * Minimal HTTP server that records each NOTIFY request received and answers with a fixed status, keeping the
+     * connection open.
+     */
+    static class NotifyReceiver implements Runnable {
+        final BlockingQueue<String> requests = new LinkedBlockingQueue<String>();
+        private final ServerSocket server;
+        private final int status;
+        private volatile int connections;
+        volatile long delay; // ms before each response
+
+        NotifyReceiver() throws IOException {
+            this(200);
+        }
+
+        NotifyReceiver(final int status) throws IOException {
+            this.status = status;
+            server = new ServerSocket(0);
+            Thread t = new Thread(this, "NotifyReceiver");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        int getConnections() {
+            return connections;
+        }
+
+        void close() throws IOException {
+            server.close();
+        }
+
+        public void run() {
+            while (!server.isClosed()) {
+                try {
+                    final Socket s = server.accept();
+                    connections++;
+                    Thread t = new Thread(new Runnable() {
+                        public void run() {
+                            serve(s);
+                        }
+                    });
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(final Socket s) {
+            try {
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                while (true) {
+                    StringBuilder sb = new StringBuilder();
+                    int length = 0;
+                    String line;
+                    while ((line = readLine(in)) != null && line.length() > 0) {
+                        sb.append(line).append("\r\n");
+                        if (line.toUpperCase().startsWith("CONTENT-LENGTH:")) {
+                            length = Integer.parseInt(line.substring(15).trim());
+                        }
+                    }
+                    if (line == null) {
+                        break;
+                    }
+                    sb.append("\r\n");
+                    byte[] body = new byte[length];
+                    int n = 0;
+                    while (n < length) {
+                        int r = in.read(body, n, length - n);
+                        if (r < 0) {
+                            break;
+                        }
+                        n += r;
+                    }
+                    sb.append(new String(body, 0, n, StandardCharsets.UTF_8));
+                    requests.add(sb.toString());
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                    out.write(("HTTP/1.1 " + status + " Status\r\nContent-Length: 0\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+                s.close();
+            } catch (IOException | InterruptedException e) {
+                // connection closed
+            }
+        }
+
+        private static String readLine(final InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0 && c != '\n') {
+                if (c != '\r') {
+                    sb.append((char) c);
+                }
+            }
+            return c < 0 ? null : sb.toString();
+        }
+    }
 }